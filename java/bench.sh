@@ -0,0 +1,8 @@
+#! /bin/bash
+# Example: ./bench.sh PrintBenchmark 30000 10
+#          ./bench.sh DataAccessBenchmark mydb 5432 $USER
+mkdir -p bench/bin
+javac -cp ".:lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bench/bin/
+BENCH=$1
+shift
+java -cp lib/*:bench/bin/ $BENCH "$@"
@@ -0,0 +1,185 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small JMH-style measurement loop for the benchmarks in this directory.
+ * Each benchmark is called back to back on one thread, first for the
+ * warm-up iterations, whose numbers are thrown away, then for the measured
+ * iterations. It reports throughput with its spread across iterations,
+ * latency percentiles over every measured call and the bytes allocated
+ * per call by the benchmark thread.
+ *
+ * Settings: -Dbench.warmup (iterations, default 3), -Dbench.iterations
+ * (default 5) and -Dbench.iterationMillis (default 1000).
+ *
+ */
+
+public class BenchHarness{
+	static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+	static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 1000L);
+	//latencies kept per benchmark, enough for a few seconds of microsecond calls
+	static final int MAX_SAMPLES = 1 << 22;
+
+	/**
+	 * The code being measured.
+	 */
+	public interface Operation{
+		void run() throws Exception;
+	}
+
+	/**
+	 * The numbers for one benchmark.
+	 */
+	public static class Result{
+		final String name;
+		long ops;
+		double opsPerSec;
+		double opsPerSecError;
+		double p50, p90, p99, p999, max;
+		double bytesPerOp = -1;
+
+		Result(String name){
+			this.name = name;
+		}
+	}//end Result
+
+	private final com.sun.management.ThreadMXBean _threads;
+	private final List<Result> _results = new ArrayList<Result>();
+	private long[] _samples = new long[1 << 16];
+	private int _sampleCount = 0;
+
+	public BenchHarness(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean threads = null;
+		if (bean instanceof com.sun.management.ThreadMXBean){
+			threads = (com.sun.management.ThreadMXBean) bean;
+			if (!threads.isThreadAllocatedMemorySupported()) threads = null;
+			else threads.setThreadAllocatedMemoryEnabled(true);
+		}//end if
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to warm up and measure one operation.
+	 *
+	 * @param name the benchmark name
+	 * @param op the operation
+	 * @return the measured numbers
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public Result measure(String name, Operation op) throws Exception {
+		System.gc();
+		for (int i = 0; i < WARMUP; ++i)
+			iteration(op, false);
+
+		Result result = new Result(name);
+		this._sampleCount = 0;
+		double[] rates = new double[ITERATIONS];
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = this._threads == null ? 0 : this._threads.getThreadAllocatedBytes(threadId);
+		long harnessBytes = 0;
+		for (int i = 0; i < ITERATIONS; ++i){
+			long[] run = iteration(op, true);
+			result.ops += run[0];
+			harnessBytes += run[2];
+			rates[i] = run[0] / (run[1] / 1e9);
+		}//end for
+		if (this._threads != null && result.ops > 0){
+			long allocated = this._threads.getThreadAllocatedBytes(threadId) - allocatedBefore - harnessBytes;
+			result.bytesPerOp = Math.max(0, allocated) / (double) result.ops;
+		}//end if
+
+		double sum = 0;
+		for (double rate : rates) sum += rate;
+		result.opsPerSec = sum / rates.length;
+		double squares = 0;
+		for (double rate : rates) squares += (rate - result.opsPerSec) * (rate - result.opsPerSec);
+		result.opsPerSecError = rates.length > 1 ? Math.sqrt(squares / (rates.length - 1)) : 0;
+
+		Arrays.sort(this._samples, 0, this._sampleCount);
+		result.p50 = percentile(0.50);
+		result.p90 = percentile(0.90);
+		result.p99 = percentile(0.99);
+		result.p999 = percentile(0.999);
+		result.max = this._sampleCount == 0 ? 0 : this._samples[this._sampleCount - 1] / 1e3;
+		this._results.add(result);
+		return result;
+	}//end measure
+
+	/**
+	 * Method to call the operation for one iteration.
+	 *
+	 * @return the calls made, the nanoseconds taken and the bytes the
+	 *         harness itself allocated to grow the latency buffer
+	 */
+	private long[] iteration(Operation op, boolean record) throws Exception {
+		long ops = 0;
+		long grown = 0;
+		long start = System.nanoTime();
+		long deadline = start + ITERATION_MILLIS * 1000000L;
+		long now = start;
+		while (now < deadline){
+			op.run();
+			long end = System.nanoTime();
+			if (record && this._sampleCount < MAX_SAMPLES){
+				if (this._sampleCount == this._samples.length){
+					this._samples = Arrays.copyOf(this._samples, Math.min(MAX_SAMPLES, this._samples.length * 2));
+					grown += 16 + 8L * this._samples.length;
+				}//end if
+				this._samples[this._sampleCount++] = end - now;
+			}//end if
+			now = end;
+			++ops;
+		}//end while
+		return new long[] { ops, now - start, grown };
+	}
+
+	private double percentile(double p){
+		if (this._sampleCount == 0) return 0;
+		int index = (int) Math.ceil(p * this._sampleCount) - 1;
+		return this._samples[Math.max(0, Math.min(index, this._sampleCount - 1))] / 1e3;
+	}
+
+	public static void printHeader(PrintStream out){
+		out.printf("%-28s %12s %10s %10s %10s %10s %10s %10s %12s%n", "benchmark", "ops/s", "error",
+			"p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "alloc B/op");
+	}
+
+	public static void print(PrintStream out, Result r){
+		out.printf("%-28s %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %12s%n", r.name, r.opsPerSec, r.opsPerSecError,
+			r.p50, r.p90, r.p99, r.p999, r.max, r.bytesPerOp < 0 ? "n/a" : String.format("%.0f", r.bytesPerOp));
+	}
+
+	/**
+	 * Method to append every result to a tab separated file, writing the
+	 * header when the file is new, so runs can be compared over time.
+	 *
+	 * @param file the result file
+	 * @param label describes the run, e.g. the data scale
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public void publish(String file, String label) throws IOException {
+		boolean fresh = !new java.io.File(file).exists();
+		PrintWriter out = new PrintWriter(new FileWriter(file, true));
+		try{
+			if (fresh) out.println("timestamp\trun\tbenchmark\tops_per_sec\terror\tp50_us\tp90_us\tp99_us\tp999_us\tmax_us\talloc_bytes_per_op");
+			long now = System.currentTimeMillis();
+			for (Result r : this._results)
+				out.println(String.format("%d\t%s\t%s\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.0f", now, label, r.name, r.opsPerSec,
+					r.opsPerSecError, r.p50, r.p90, r.p99, r.p999, r.max, r.bytesPerOp));
+		}finally{
+			out.close();
+		}
+	}
+
+	public List<Result> getResults(){
+		return this._results;
+	}
+}//end BenchHarness
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark of the data-access paths against a live database: the result
+ * collecting and printing helpers, the single-row lookups with and without
+ * the lookup cache, and the report queries behind menu options 6 to 10.
+ * Printed output is discarded so only the query and formatting cost shows.
+ *
+ * The benchmark reads whatever the database holds. With
+ * -Dbench.reload=true every table is replaced first, so only give it
+ * against a scratch database: from the bundled data set at scale 1,
+ * otherwise from DataGenerator at that multiple of it (10 and 100 are the
+ * usual points). Lookup keys are drawn from rows that exist, with a fixed
+ * seed so runs are comparable.
+ *
+ * Usage: java DataAccessBenchmark <dbname> <port> <user> [scale]
+ *
+ * -Dbench.include=<regex> runs only the matching benchmarks and
+ * -Dbench.out=<file> appends the results to a tab separated file.
+ *
+ */
+
+public class DataAccessBenchmark{
+	static final String DATA_DIR = System.getProperty("bench.data", "../data");
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java DataAccessBenchmark <dbname> <port> <user> [scale]");
+			return;
+		}//end if
+		int scale = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		Pattern include = Pattern.compile(System.getProperty("bench.include", ".*"));
+		PrintStream console = System.out;
+
+		MechanicShop esql = new MechanicShop(args[0], args[1], args[2], "");
+		try{
+			if (Boolean.getBoolean("bench.reload"))
+				seed(esql, scale);
+
+			final int[] customerIds = ints(esql.executeQueryAndReturnResult("SELECT id FROM Customer"));
+			final int[] ownerIds = ints(esql.executeQueryAndReturnResult("SELECT DISTINCT customer_id FROM Owns"));
+			final int[] rids = ints(esql.executeQueryAndReturnResult("SELECT rid FROM Service_Request"));
+			List<List<String>> names = esql.executeQueryAndReturnResult("SELECT DISTINCT lname FROM Customer");
+			final String[] lnames = new String[names.size()];
+			for (int i = 0; i < lnames.length; ++i)
+				lnames[i] = names.get(i).get(0);
+			final Random random = new Random(42);
+			final ServiceCountIndex counts = esql.getServiceCounts();
+
+			//printed rows go nowhere, the console keeps the benchmark table
+			System.setOut(new PrintStream(new OutputStream(){
+				public void write(int b){}
+				public void write(byte[] b, int off, int len){}
+			}));
+
+			BenchHarness harness = new BenchHarness();
+			console.println();
+			console.println("scale " + scale + "x: " + customerIds.length + " customers, " + rids.length + " service requests");
+			BenchHarness.printHeader(console);
+			Map<String, BenchHarness.Operation> benchmarks = new LinkedHashMap<String, BenchHarness.Operation>();
+			benchmarks.put("returnResult.customersByLname", () ->
+				esql.executeQueryAndReturnResult(MechanicShop.CUSTOMERS_BY_LNAME, lnames[random.nextInt(lnames.length)]));
+			benchmarks.put("printResult.carsByOwner", () ->
+				esql.executeQueryAndPrintResult(MechanicShop.CARS_BY_OWNER, ownerIds[random.nextInt(ownerIds.length)]));
+			benchmarks.put("lookup.customerById", () ->
+				esql.executeQueryAndReturnResult(MechanicShop.CUSTOMER_BY_ID, customerIds[random.nextInt(customerIds.length)]));
+			benchmarks.put("lookup.customerById.cached", () ->
+				esql.lookupCustomer(customerIds[random.nextInt(customerIds.length)]));
+			benchmarks.put("lookup.requestByRid", () ->
+				esql.executeQueryAndReturnResult(MechanicShop.REQUEST_BY_RID, rids[random.nextInt(rids.length)]));
+			benchmarks.put("report6.billUnder100", () ->
+				esql.executeQueryAndPrintResult(MechanicShop.BILL_LESS_THAN_100));
+			benchmarks.put("report7.moreThan20Cars", () ->
+				esql.executeQueryAndPrintResult(MechanicShop.MORE_THAN_20_CARS));
+			benchmarks.put("report8.before1995", () ->
+				esql.executeQueryAndPrintResult(MechanicShop.BEFORE_1995_UNDER_50000));
+			benchmarks.put("report9.serviceCounts.sql", () ->
+				esql.executeQueryAndPrintResult(ServiceCountIndex.SEED_QUERY));
+			benchmarks.put("report9.serviceCounts.index", () ->
+				counts.top(10));
+			benchmarks.put("report10.totalBill", () ->
+				esql.executeQueryAndPrintResult(MechanicShop.TOTAL_BILL_LEADERBOARD));
+			for (Map.Entry<String, BenchHarness.Operation> benchmark : benchmarks.entrySet()){
+				if (!include.matcher(benchmark.getKey()).matches()) continue;
+				BenchHarness.print(console, harness.measure(benchmark.getKey(), benchmark.getValue()));
+			}//end for
+
+			String out = System.getProperty("bench.out");
+			if (out != null) harness.publish(out, scale + "x");
+		}finally{
+			System.setOut(console);
+			System.out.println(esql.getPool().stats());
+			esql.cleanup();
+		}//end try
+	}//end main
+
+	/**
+	 * Method to reload the database with the data set for a scale factor.
+	 */
+	static void seed(MechanicShop esql, int scale) throws Exception {
+		if (scale == 1){
+			new BulkLoader(esql).reload(new File(DATA_DIR));
+		}else{
+			DataGenerator generator = new DataGenerator(42L, scale, Runtime.getRuntime().availableProcessors());
+			try{
+				new BulkLoader(esql).reload(generator);
+			}finally{
+				generator.close();
+			}//end try
+		}//end if
+		esql.clearCaches();
+		esql.getServiceCounts().seed(esql);
+	}
+
+	static int[] ints(List<List<String>> rows){
+		int[] values = new int[rows.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = Integer.parseInt(rows.get(i).get(0).trim());
+		return values;
+	}
+}//end DataAccessBenchmark
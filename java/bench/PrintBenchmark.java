@@ -0,0 +1,94 @@
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+
+/**
+ * Throughput benchmark comparing the original per-cell System.out printing
+ * loop with ResultPrinter. Rows are synthesized in memory with the shape
+ * of the option 8 and option 10 reports so no database is needed; output
+ * goes to a file (default /dev/null) through an autoflushing PrintStream,
+ * as System.out does on a console.
+ *
+ * Usage: java PrintBenchmark [rows] [iterations] [output file]
+ *
+ */
+
+public class PrintBenchmark{
+	static final String[] COLUMNS = { "make", "model", "year", "fname", "lname", "total" };
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String target = args.length > 2 ? args[2] : "/dev/null";
+
+		String[][] data = synthesize(rows);
+		PrintStream out = new PrintStream(new FileOutputStream(target), true);
+		PrintStream console = System.out;
+
+		console.printf("%-14s %12s %12s %10s%n", "path", "rows/s", "ms/report", "speedup");
+		double legacy = measure("legacy", data, iterations, out, null, console, 0);
+		for (ResultPrinter.Mode mode : ResultPrinter.Mode.values())
+			measure("printer-" + mode.name().toLowerCase(), data, iterations, out, mode, console, legacy);
+		out.close();
+	}
+
+	/**
+	 * Method to time one output path, after a warm-up run, and print its
+	 * throughput line.
+	 */
+	static double measure(String name, String[][] data, int iterations, PrintStream out,
+			ResultPrinter.Mode mode, PrintStream console, double baseline) throws SQLException {
+		run(data, out, mode);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i)
+			run(data, out, mode);
+		double millis = (System.nanoTime() - start) / 1e6 / iterations;
+		double rowsPerSec = data.length / (millis / 1000.0);
+		console.printf("%-14s %12.0f %12.2f %10s%n", name, rowsPerSec, millis,
+			baseline == 0 ? "1.00x" : String.format("%.2fx", rowsPerSec / baseline));
+		return rowsPerSec;
+	}
+
+	static void run(String[][] data, PrintStream out, ResultPrinter.Mode mode) throws SQLException {
+		if (mode == null){
+			legacyPrint(data, out);
+			return;
+		}//end if
+		ResultPrinter printer = ResultPrinter.to(out, mode);
+		printer.begin(COLUMNS);
+		for (String[] row : data)
+			printer.row(row);
+		printer.end();
+	}
+
+	/**
+	 * The loop executeQueryAndPrintResult used before ResultPrinter: one
+	 * print call per cell and a metadata lookup per header cell.
+	 */
+	static void legacyPrint(String[][] data, PrintStream out){
+		boolean outputHeader = true;
+		for (String[] row : data){
+			if (outputHeader){
+				for (int i = 0; i < COLUMNS.length; i++)
+					out.print(COLUMNS[i] + "\t");
+				out.println();
+				outputHeader = false;
+			}//end if
+			for (int i = 0; i < row.length; ++i)
+				out.print(row[i] + "\t");
+			out.println();
+		}//end for
+	}
+
+	static String[][] synthesize(int rows){
+		String[] makes = { "Toyota", "Ford", "Honda", "Saab", "Renault", "Citroen" };
+		String[] models = { "Prius", "Sunny", "Passat", "Polo", "C3", "DB" };
+		String[][] data = new String[rows][];
+		for (int r = 0; r < rows; ++r){
+			data[r] = new String[] { makes[r % makes.length], models[(r / 7) % models.length],
+				String.valueOf(1970 + r % 50), "Fname" + (r % 500), "Lname" + (r % 331),
+				String.valueOf((r * 37) % 100000) };
+		}//end for
+		return data;
+	}
+}//end PrintBenchmark
@@ -0,0 +1,577 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+
+/**
+ * This class keeps Customer, Car, Owns, Service_Request and Closed_Request
+ * in memory as primitive column arrays and answers reports 6 to 10 from
+ * them, so the owner can rerun a report with other limits without a round
+ * trip to the database.
+ *
+ * Make, model and VIN are dictionary encoded: a car is its VIN's code, and
+ * every foreign key is resolved to a row position when the row is loaded,
+ * so the joins of the reports are array lookups. Each report is one scan
+ * over a column range, split across the common fork-join pool and merged.
+ *
+ * A refresh reads only the rows whose last_modified (migration V2) is past
+ * the database clock of the previous refresh, less an overlap for
+ * transactions that were still open then; rows read twice simply
+ * overwrite themselves. Rows are never deleted from the snapshot; the shop
+ * loads a new one after a delete or a reset of the change feed.
+ *
+ * While the change feed is listening a refresh only happens once a change
+ * has been committed since the last one; without it, once the last
+ * refresh is older than REFRESH_MILLIS.
+ *
+ * Reports 6 and 8 keep to the last mechanicshop.reports.months months as
+ * their queries do, counted from the database's date at the last refresh.
+ *
+ * Settings: mechanicshop.analytics (answer the report menu from the
+ * snapshot, default false), mechanicshop.analytics.refreshMillis (default
+ * 10000 when the change feed is off) and mechanicshop.analytics.overlapSeconds (default 60).
+ *
+ */
+
+public class AnalyticsSnapshot implements ChangeFeed.Subscriber{
+	static final boolean ENABLED = Boolean.getBoolean("mechanicshop.analytics");
+	static final long REFRESH_MILLIS = Long.getLong("mechanicshop.analytics.refreshMillis", 10000L);
+	static final int OVERLAP_SECONDS = Integer.getInteger("mechanicshop.analytics.overlapSeconds", 60);
+	//rows per fork-join leaf
+	static final int GRAIN = 1 << 14;
+
+	static final String CLOCK = "SELECT CAST(now() AS text);";
+	static final String CHANGED = "\nWHERE X.last_modified > CAST(? AS timestamptz) - ? * INTERVAL '1 second';";
+	static final String CUSTOMERS = "SELECT X.id, X.fname, X.lname\nFROM Customer X" + CHANGED;
+	static final String CARS = "SELECT X.vin, X.make, X.model, X.year\nFROM Car X" + CHANGED;
+	static final String OWNS = "SELECT X.ownership_id, X.customer_id, X.car_vin\nFROM Owns X" + CHANGED;
+	static final String REQUESTS = "SELECT X.rid, X.customer_id, X.car_vin, X.odometer, X.date\nFROM Service_Request X" + CHANGED;
+	static final String CLOSED = "SELECT X.wid, X.rid, X.date, X.bill, X.comment\nFROM Closed_Request X" + CHANGED;
+
+	/**
+	 * Strings mapped to dense int codes, in the order first seen.
+	 */
+	static class Dictionary{
+		private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+		private final List<String> _values = new ArrayList<String>();
+
+		int code(String value){
+			Integer code = this._codes.get(value);
+			if (code == null){
+				code = this._values.size();
+				this._codes.put(value, code);
+				this._values.add(value);
+			}//end if
+			return code;
+		}
+
+		String value(int code){
+			return this._values.get(code);
+		}
+
+		int size(){
+			return this._values.size();
+		}
+	}//end Dictionary
+
+	/**
+	 * A growable list of ints, the result of a filtering scan.
+	 */
+	static class IntList{
+		int[] values = new int[16];
+		int size = 0;
+
+		void add(int value){
+			if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+			this.values[this.size++] = value;
+		}
+
+		IntList addAll(IntList other){
+			for (int i = 0; i < other.size; ++i)
+				add(other.values[i]);
+			return this;
+		}
+	}//end IntList
+
+	/**
+	 * One scan over rows [from, to).
+	 */
+	interface Leaf<T>{
+		T scan(int from, int to);
+	}
+
+	/**
+	 * A range split in halves until it is at most GRAIN rows long.
+	 */
+	static class Range<T> extends RecursiveTask<T>{
+		private static final long serialVersionUID = 1L;
+		private final int _from;
+		private final int _to;
+		private final Leaf<T> _leaf;
+		private final BinaryOperator<T> _merge;
+
+		Range(int from, int to, Leaf<T> leaf, BinaryOperator<T> merge){
+			this._from = from;
+			this._to = to;
+			this._leaf = leaf;
+			this._merge = merge;
+		}
+
+		protected T compute(){
+			if (this._to - this._from <= GRAIN) return this._leaf.scan(this._from, this._to);
+			int mid = (this._from + this._to) >>> 1;
+			Range<T> left = new Range<T>(this._from, mid, this._leaf, this._merge);
+			left.fork();
+			T right = new Range<T>(mid, this._to, this._leaf, this._merge).compute();
+			return this._merge.apply(left.join(), right);
+		}
+	}//end Range
+
+	static <T> T parallel(int size, Leaf<T> leaf, BinaryOperator<T> merge){
+		if (size <= GRAIN) return leaf.scan(0, size);
+		return ForkJoinPool.commonPool().invoke(new Range<T>(0, size, leaf, merge));
+	}
+
+	static int[] add(int[] a, int[] b){
+		for (int i = 0; i < a.length; ++i)
+			a[i] += b[i];
+		return a;
+	}
+
+	static long[] add(long[] a, long[] b){
+		for (int i = 0; i < a.length; ++i)
+			a[i] += b[i];
+		return a;
+	}
+
+	static int[] grow(int[] column, int size){
+		return size < column.length ? column : Arrays.copyOf(column, Math.max(16, column.length * 2));
+	}
+
+	static String[] grow(String[] column, int size){
+		return size < column.length ? column : Arrays.copyOf(column, Math.max(16, column.length * 2));
+	}
+
+	private final MechanicShop _esql;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private String _watermark = "-infinity";
+	private volatile long _refreshedAt = 0;
+	//first date reports 6 and 8 count, null for the whole history
+	private volatile String _recentFrom = null;
+	//set by the change feed, cleared when a refresh starts
+	private volatile boolean _changed = true;
+
+	//Customer
+	private final Map<Integer, Integer> _customerRow = new HashMap<Integer, Integer>();
+	private int _customers = 0;
+	private int[] _customerId = new int[0];
+	private String[] _fname = new String[0];
+	private String[] _lname = new String[0];
+
+	//Car, the row of a car is the code of its VIN
+	private final Dictionary _vins = new Dictionary();
+	private final Dictionary _makes = new Dictionary();
+	private final Dictionary _models = new Dictionary();
+	private int[] _carMake = new int[0];
+	private int[] _carModel = new int[0];
+	private int[] _carYear = new int[0];
+
+	//Owns
+	private final Map<Integer, Integer> _ownsRow = new HashMap<Integer, Integer>();
+	private int _owns = 0;
+	private int[] _ownsCustomer = new int[0];
+	private int[] _ownsCar = new int[0];
+
+	//Service_Request
+	private final Map<Integer, Integer> _requestRow = new HashMap<Integer, Integer>();
+	private int _requests = 0;
+	private int[] _requestCustomer = new int[0];
+	private int[] _requestCar = new int[0];
+	private int[] _odometer = new int[0];
+	private String[] _requestDate = new String[0];
+
+	//Closed_Request
+	private final Map<Integer, Integer> _closedRow = new HashMap<Integer, Integer>();
+	private int _closed = 0;
+	private int[] _closedRequest = new int[0];
+	private int[] _bill = new int[0];
+	private String[] _closedDate = new String[0];
+	private String[] _comment = new String[0];
+
+	public AnalyticsSnapshot(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to read the rows changed since the last refresh, all rows the
+	 * first time. The reads happen outside the lock; only applying them
+	 * holds readers back.
+	 *
+	 * @return the number of rows read
+	 * @throws java.sql.SQLException when a query fails
+	 */
+	public int refresh() throws SQLException {
+		String since;
+		synchronized (this){
+			since = this._watermark;
+		}
+		this._changed = false;
+		String clock = this._esql.executeQueryAndReturnResult(CLOCK).get(0).get(0);
+		//children first, so every key they reference is in the parent rows read after them
+		List<List<String>> closed = this._esql.executeQueryAndReturnResult(CLOSED, since, OVERLAP_SECONDS);
+		List<List<String>> requests = this._esql.executeQueryAndReturnResult(REQUESTS, since, OVERLAP_SECONDS);
+		List<List<String>> owns = this._esql.executeQueryAndReturnResult(OWNS, since, OVERLAP_SECONDS);
+		List<List<String>> cars = this._esql.executeQueryAndReturnResult(CARS, since, OVERLAP_SECONDS);
+		List<List<String>> customers = this._esql.executeQueryAndReturnResult(CUSTOMERS, since, OVERLAP_SECONDS);
+		this._lock.writeLock().lock();
+		try{
+			for (List<String> row : customers)
+				putCustomer(Integer.parseInt(row.get(0)), row.get(1), row.get(2));
+			for (List<String> row : cars)
+				putCar(row.get(0), row.get(1), row.get(2), Integer.parseInt(row.get(3)));
+			for (List<String> row : owns)
+				putOwns(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)), row.get(2));
+			for (List<String> row : requests)
+				putRequest(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)), row.get(2), Integer.parseInt(row.get(3)), row.get(4));
+			for (List<String> row : closed)
+				putClosed(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)), row.get(2), Integer.parseInt(row.get(3)), row.get(4));
+		}finally{
+			this._lock.writeLock().unlock();
+		}//end try
+		synchronized (this){
+			this._watermark = clock;
+		}
+		this._recentFrom = recentFrom(clock);
+		this._refreshedAt = System.currentTimeMillis();
+		return customers.size() + cars.size() + owns.size() + requests.size() + closed.size();
+	}//end refresh
+
+	/**
+	 * Method to refresh when a change was committed since the last refresh
+	 * or, without a listening change feed, when the last refresh is older
+	 * than REFRESH_MILLIS.
+	 */
+	public void refreshIfStale() throws SQLException {
+		ChangeFeed feed = this._esql.getChangeFeed();
+		boolean stale = feed != null && feed.isListening() ? this._changed
+			: System.currentTimeMillis() - this._refreshedAt >= REFRESH_MILLIS;
+		if (stale) refresh();
+	}
+
+	public void onChange(ChangeFeed.Change change){
+		this._changed = true;
+	}
+
+	public void onReset(){
+		this._changed = true;
+	}
+
+	public long getRefreshedAt(){
+		return this._refreshedAt;
+	}
+
+	private int customer(int id){
+		Integer row = this._customerRow.get(id);
+		if (row != null) return row;
+		//a placeholder until the customer row itself is read
+		return putCustomer(id, null, null);
+	}
+
+	private int putCustomer(int id, String fname, String lname){
+		Integer row = this._customerRow.get(id);
+		if (row == null){
+			row = this._customers++;
+			this._customerId = grow(this._customerId, row);
+			this._fname = grow(this._fname, row);
+			this._lname = grow(this._lname, row);
+			this._customerRow.put(id, row);
+		}//end if
+		this._customerId[row] = id;
+		this._fname[row] = fname;
+		this._lname[row] = lname;
+		return row;
+	}
+
+	private int car(String vin){
+		int cars = this._vins.size();
+		int row = this._vins.code(vin);
+		if (row == cars){
+			this._carMake = grow(this._carMake, row);
+			this._carModel = grow(this._carModel, row);
+			this._carYear = grow(this._carYear, row);
+			//a placeholder no report matches until the car row itself is read
+			this._carMake[row] = -1;
+			this._carModel[row] = -1;
+			this._carYear[row] = Integer.MAX_VALUE;
+		}//end if
+		return row;
+	}
+
+	private void putCar(String vin, String make, String model, int year){
+		int row = car(vin);
+		this._carMake[row] = this._makes.code(make);
+		this._carModel[row] = this._models.code(model);
+		this._carYear[row] = year;
+	}
+
+	private void putOwns(int ownershipId, int customerId, String vin){
+		Integer row = this._ownsRow.get(ownershipId);
+		if (row == null){
+			row = this._owns++;
+			this._ownsCustomer = grow(this._ownsCustomer, row);
+			this._ownsCar = grow(this._ownsCar, row);
+			this._ownsRow.put(ownershipId, row);
+		}//end if
+		this._ownsCustomer[row] = customer(customerId);
+		this._ownsCar[row] = car(vin);
+	}
+
+	/**
+	 * Method to return the first date of the months MechanicShop.recent
+	 * keeps, as the database's CURRENT_DATE was when clock was read.
+	 *
+	 * @param clock now() as text, starting with the session's date
+	 * @return the date as yyyy-mm-dd, or null when REPORT_MONTHS is not set
+	 */
+	static String recentFrom(String clock){
+		if (MechanicShop.REPORT_MONTHS <= 0) return null;
+		return LocalDate.parse(clock.substring(0, 10)).withDayOfMonth(1).minusMonths(MechanicShop.REPORT_MONTHS).toString();
+	}
+
+	private void putRequest(int rid, int customerId, String vin, int odometer, String date){
+		Integer row = this._requestRow.get(rid);
+		if (row == null){
+			row = this._requests++;
+			this._requestCustomer = grow(this._requestCustomer, row);
+			this._requestCar = grow(this._requestCar, row);
+			this._odometer = grow(this._odometer, row);
+			this._requestDate = grow(this._requestDate, row);
+			this._requestRow.put(rid, row);
+		}//end if
+		this._requestCustomer[row] = customer(customerId);
+		this._requestCar[row] = car(vin);
+		this._odometer[row] = odometer;
+		this._requestDate[row] = date;
+	}
+
+	private void putClosed(int wid, int rid, String date, int bill, String comment){
+		Integer request = this._requestRow.get(rid);
+		//cannot happen while requests are read after closed requests
+		if (request == null) return;
+		Integer row = this._closedRow.get(wid);
+		if (row == null){
+			row = this._closed++;
+			this._closedRequest = grow(this._closedRequest, row);
+			this._bill = grow(this._bill, row);
+			this._closedDate = grow(this._closedDate, row);
+			this._comment = grow(this._comment, row);
+			this._closedRow.put(wid, row);
+		}//end if
+		this._closedRequest[row] = request;
+		this._bill[row] = bill;
+		this._closedDate[row] = date;
+		this._comment[row] = comment;
+	}
+
+	/**
+	 * Method to answer a report with its menu limits or other ones.
+	 *
+	 * @param report the menu option, 6 to 10
+	 * @param limits the limits of the report, defaults when left out: bill
+	 *               ceiling for 6 (100), car count for 7 (20), year and
+	 *               odometer for 8 (1995, 50000), k for 9 (10) and the
+	 *               number of customers for 10 (all)
+	 * @return the report rows
+	 */
+	public QueryResult report(int report, int... limits){
+		switch (report){
+			case 6: return billsAtMost(limit(limits, 0, 100));
+			case 7: return ownersOfMoreThan(limit(limits, 0, 20));
+			case 8: return carsBefore(limit(limits, 0, 1995), limit(limits, 1, 50000));
+			case 9: return mostServiced(limit(limits, 0, 10));
+			case 10: return billLeaderboard(limit(limits, 0, 0));
+			default: throw new IllegalArgumentException("No report " + report + ", reports are 6 to 10");
+		}
+	}
+
+	private static int limit(int[] limits, int i, int otherwise){
+		return i < limits.length ? limits[i] : otherwise;
+	}
+
+	/**
+	 * Report 6: closed requests billed at most max, highest bill first.
+	 */
+	public QueryResult billsAtMost(final int max){
+		this._lock.readLock().lock();
+		try{
+			final int[] bill = this._bill;
+			final String[] date = this._closedDate;
+			final String since = this._recentFrom;
+			IntList hits = parallel(this._closed, (from, to) -> {
+				IntList local = new IntList();
+				for (int i = from; i < to; ++i)
+					if (bill[i] <= max && (since == null || date[i].compareTo(since) >= 0)) local.add(i);
+				return local;
+			}, IntList::addAll);
+			Integer[] order = new Integer[hits.size];
+			for (int i = 0; i < hits.size; ++i)
+				order[i] = hits.values[i];
+			Arrays.sort(order, (a, b) -> Integer.compare(bill[b], bill[a]));
+			//DISTINCT over the printed columns, as the query does
+			LinkedHashSet<List<String>> distinct = new LinkedHashSet<List<String>>();
+			for (int row : order){
+				int customer = this._requestCustomer[this._closedRequest[row]];
+				distinct.add(Arrays.asList(this._closedDate[row], this._fname[customer], this._lname[customer],
+					Integer.toString(bill[row]), this._comment[row]));
+			}//end for
+			List<String[]> rows = new ArrayList<String[]>(distinct.size());
+			for (List<String> row : distinct)
+				rows.add(row.toArray(new String[0]));
+			return new QueryResult(new String[] { "date", "fname", "lname", "bill", "comment" }, rows);
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}//end billsAtMost
+
+	/**
+	 * Report 7: customers owning more than count cars.
+	 */
+	public QueryResult ownersOfMoreThan(int count){
+		this._lock.readLock().lock();
+		try{
+			final int customers = this._customers;
+			final int[] owner = this._ownsCustomer;
+			int[] cars = parallel(this._owns, (from, to) -> {
+				int[] local = new int[customers];
+				for (int i = from; i < to; ++i)
+					++local[owner[i]];
+				return local;
+			}, AnalyticsSnapshot::add);
+			List<String[]> rows = new ArrayList<String[]>();
+			for (int c = 0; c < customers; ++c)
+				if (cars[c] > count && this._fname[c] != null) rows.add(new String[] { this._fname[c], this._lname[c] });
+			return new QueryResult(new String[] { "fname", "lname" }, rows);
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}//end ownersOfMoreThan
+
+	/**
+	 * Report 8: cars built before year serviced below odometer miles, one
+	 * row per request.
+	 */
+	public QueryResult carsBefore(final int year, final int odometer){
+		this._lock.readLock().lock();
+		try{
+			final int[] car = this._requestCar;
+			final int[] miles = this._odometer;
+			final int[] built = this._carYear;
+			final String[] date = this._requestDate;
+			final String since = this._recentFrom;
+			IntList hits = parallel(this._requests, (from, to) -> {
+				IntList local = new IntList();
+				for (int i = from; i < to; ++i)
+					if (miles[i] < odometer && built[car[i]] < year && (since == null || date[i].compareTo(since) >= 0)) local.add(i);
+				return local;
+			}, IntList::addAll);
+			List<String[]> rows = new ArrayList<String[]>(hits.size);
+			for (int i = 0; i < hits.size; ++i){
+				int c = car[hits.values[i]];
+				rows.add(new String[] { this._makes.value(this._carMake[c]), this._models.value(this._carModel[c]), Integer.toString(built[c]) });
+			}//end for
+			return new QueryResult(new String[] { "make", "model", "year" }, rows);
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}//end carsBefore
+
+	/**
+	 * Report 9: the k makes and models with the most service requests.
+	 */
+	public QueryResult mostServiced(int k){
+		this._lock.readLock().lock();
+		try{
+			final int carCount = this._vins.size();
+			final int[] car = this._requestCar;
+			int[] perCar = parallel(this._requests, (from, to) -> {
+				int[] local = new int[carCount];
+				for (int i = from; i < to; ++i)
+					++local[car[i]];
+				return local;
+			}, AnalyticsSnapshot::add);
+			final long models = Math.max(1, this._models.size());
+			Map<Long, long[]> perModel = new HashMap<Long, long[]>();
+			for (int c = 0; c < carCount; ++c){
+				if (perCar[c] == 0 || this._carMake[c] < 0) continue;
+				long key = this._carMake[c] * models + this._carModel[c];
+				long[] total = perModel.get(key);
+				if (total == null) perModel.put(key, total = new long[1]);
+				total[0] += perCar[c];
+			}//end for
+			List<Map.Entry<Long, long[]>> ranked = new ArrayList<Map.Entry<Long, long[]>>(perModel.entrySet());
+			ranked.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+			List<String[]> rows = new ArrayList<String[]>();
+			for (Map.Entry<Long, long[]> entry : ranked.subList(0, Math.min(k, ranked.size()))){
+				long key = entry.getKey();
+				rows.add(new String[] { this._makes.value((int) (key / models)), this._models.value((int) (key % models)), Long.toString(entry.getValue()[0]) });
+			}//end for
+			return new QueryResult(new String[] { "make", "model", "service" }, rows);
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}//end mostServiced
+
+	/**
+	 * Report 10: customers by their total closed bill, highest first.
+	 *
+	 * @param top the number of customers, 0 for all
+	 */
+	public QueryResult billLeaderboard(int top){
+		this._lock.readLock().lock();
+		try{
+			final int customers = this._customers;
+			final int[] request = this._closedRequest;
+			final int[] requestCustomer = this._requestCustomer;
+			final int[] bill = this._bill;
+			//one slot per customer for the total and one for the number of bills
+			long[] totals = parallel(this._closed, (from, to) -> {
+				long[] local = new long[customers * 2];
+				for (int i = from; i < to; ++i){
+					int c = requestCustomer[request[i]];
+					local[c] += bill[i];
+					++local[customers + c];
+				}//end for
+				return local;
+			}, AnalyticsSnapshot::add);
+			List<Integer> billed = new ArrayList<Integer>();
+			for (int c = 0; c < customers; ++c)
+				if (totals[customers + c] > 0) billed.add(c);
+			billed.sort((a, b) -> totals[a] != totals[b] ? Long.compare(totals[b], totals[a]) : Integer.compare(this._customerId[a], this._customerId[b]));
+			if (top > 0 && top < billed.size()) billed = billed.subList(0, top);
+			List<String[]> rows = new ArrayList<String[]>(billed.size());
+			for (int c : billed)
+				rows.add(new String[] { Integer.toString(this._customerId[c]), this._fname[c], this._lname[c], Long.toString(totals[c]) });
+			return new QueryResult(new String[] { "id", "fname", "lname", "total" }, rows);
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}//end billLeaderboard
+
+	public String toString(){
+		this._lock.readLock().lock();
+		try{
+			return "snapshot of " + this._customers + " customers, " + this._vins.size() + " cars, " + this._owns + " ownerships, "
+				+ this._requests + " requests, " + this._closed + " closed requests";
+		}finally{
+			this._lock.readLock().unlock();
+		}//end try
+	}
+}//end AnalyticsSnapshot
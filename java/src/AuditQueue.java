@@ -0,0 +1,418 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes the audit trail of the shop operations (operation,
+ * table, key, old and new values) to Audit_Log behind the operations. The
+ * operations hand their entries to a bounded queue and return; a
+ * background thread inserts them in batches on a pooled connection.
+ *
+ * When the queue is full the operation waits for room, so a database that
+ * cannot keep up slows the writers down instead of losing entries. Entries
+ * made inside a transaction are held back until it commits and dropped
+ * when it, or the savepoint they follow, is rolled back. On shutdown the
+ * queue is flushed; entries that cannot be written are appended to the
+ * spill file and written first on the next start.
+ *
+ * Settings: mechanicshop.audit (default true, the log also stays off while
+ * Audit_Log does not exist), mechanicshop.audit.capacity (default 10000),
+ * mechanicshop.audit.batch (default 500), mechanicshop.audit.flushMillis
+ * (default 1000) and mechanicshop.audit.spillFile (default
+ * audit-pending.tsv).
+ *
+ */
+
+public class AuditQueue{
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mechanicshop.audit", "true"));
+	static final int CAPACITY = Integer.getInteger("mechanicshop.audit.capacity", 10000);
+	static final int BATCH = Integer.getInteger("mechanicshop.audit.batch", 500);
+	static final long FLUSH_MILLIS = Long.getLong("mechanicshop.audit.flushMillis", 1000L);
+	static final String SPILL_FILE = System.getProperty("mechanicshop.audit.spillFile", "audit-pending.tsv");
+	static final long CLOSE_MILLIS = 10000;
+	static final long RETRY_MILLIS = 1000;
+
+	static final String EXISTS = "SELECT CAST(to_regclass('audit_log') AS text);";
+	static final String INSERT = "INSERT INTO Audit_Log (at, operation, table_name, row_key, old_values, new_values) VALUES (?, ?, ?, ?, CAST(? AS jsonb), CAST(? AS jsonb))";
+
+	/**
+	 * One audited write.
+	 */
+	static class Entry{
+		final long at;
+		final String operation;
+		final String table;
+		final String key;
+		final String oldValues;
+		final String newValues;
+
+		Entry(long at, String operation, String table, String key, String oldValues, String newValues){
+			this.at = at;
+			this.operation = operation;
+			this.table = table;
+			this.key = key;
+			this.oldValues = oldValues;
+			this.newValues = newValues;
+		}
+
+		/**
+		 * Method to write the entry as one line of the spill file, in the
+		 * text format of COPY.
+		 */
+		String toLine(){
+			return this.at + "\t" + escape(this.operation) + "\t" + escape(this.table) + "\t" + escape(this.key)
+				+ "\t" + escape(this.oldValues) + "\t" + escape(this.newValues);
+		}
+
+		static Entry fromLine(String line){
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 6) throw new IllegalArgumentException("Not an audit entry: " + line);
+			return new Entry(Long.parseLong(fields[0]), unescape(fields[1]), unescape(fields[2]), unescape(fields[3]),
+				unescape(fields[4]), unescape(fields[5]));
+		}
+	}//end Entry
+
+	/**
+	 * Entries of one thread's open transaction, with the number of entries
+	 * at each savepoint.
+	 */
+	static class Pending{
+		final List<Entry> entries = new ArrayList<Entry>();
+		final Map<Savepoint, Integer> marks = new IdentityHashMap<Savepoint, Integer>();
+	}//end Pending
+
+	//marks the end of the queue for the writer thread
+	private static final Entry STOP = new Entry(0, "", "", "", null, null);
+
+	private final MechanicShop _esql;
+	private final ArrayBlockingQueue<Entry> _queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+	private final ThreadLocal<Pending> _pending = new ThreadLocal<Pending>();
+	private final AtomicLong _queued = new AtomicLong();
+	private final AtomicLong _written = new AtomicLong();
+	private final AtomicLong _blocked = new AtomicLong();
+	private final AtomicLong _spilled = new AtomicLong();
+	private final Thread _writer;
+	private volatile boolean _closed = false;
+
+	public AuditQueue(MechanicShop esql){
+		this._esql = esql;
+		this._writer = new Thread(this::drain, "audit-writer");
+		this._writer.setDaemon(true);
+		this._writer.start();
+	}
+
+	/**
+	 * Method to tell whether Audit_Log exists in the connected database.
+	 */
+	static boolean tableExists(MechanicShop esql) throws SQLException {
+		return esql.executeQueryAndReturnResult(EXISTS).get(0).get(0) != null;
+	}
+
+	/**
+	 * Method to audit one write. Outside a transaction the entry is queued
+	 * at once, inside one it waits for the commit.
+	 *
+	 * @param inTransaction whether the calling thread has a transaction open
+	 */
+	public void record(Entry entry, boolean inTransaction){
+		Pending pending = this._pending.get();
+		if (inTransaction){
+			if (pending == null) this._pending.set(pending = new Pending());
+			pending.entries.add(entry);
+		}else{
+			enqueue(entry);
+		}//end if
+	}
+
+	public void commit(){
+		Pending pending = this._pending.get();
+		this._pending.remove();
+		if (pending != null)
+			for (Entry entry : pending.entries)
+				enqueue(entry);
+	}
+
+	public void rollback(){
+		this._pending.remove();
+	}
+
+	public void mark(Savepoint savepoint){
+		Pending pending = this._pending.get();
+		if (pending == null) this._pending.set(pending = new Pending());
+		pending.marks.put(savepoint, pending.entries.size());
+	}
+
+	public void rollbackTo(Savepoint savepoint){
+		Pending pending = this._pending.get();
+		if (pending == null) return;
+		Integer mark = pending.marks.get(savepoint);
+		if (mark != null) pending.entries.subList(mark, pending.entries.size()).clear();
+	}
+
+	public void release(Savepoint savepoint){
+		Pending pending = this._pending.get();
+		if (pending != null) pending.marks.remove(savepoint);
+	}
+
+	/**
+	 * Method to queue an entry, waiting for room when the queue is full.
+	 */
+	private void enqueue(Entry entry){
+		if (this._closed){
+			spill(java.util.Collections.singletonList(entry));
+			return;
+		}//end if
+		try{
+			if (!this._queue.offer(entry)){
+				this._blocked.incrementAndGet();
+				this._queue.put(entry);
+			}//end if
+			this._queued.incrementAndGet();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			spill(java.util.Collections.singletonList(entry));
+		}//end try
+	}
+
+	public long getQueuedCount(){
+		return this._queued.get();
+	}
+
+	public long getWrittenCount(){
+		return this._written.get();
+	}
+
+	public long getBlockedCount(){
+		return this._blocked.get();
+	}
+
+	public long getSpilledCount(){
+		return this._spilled.get();
+	}
+
+	public int getDepth(){
+		return this._queue.size();
+	}
+
+	/**
+	 * Method to stop the queue after writing what it holds, waiting at most
+	 * CLOSE_MILLIS; whatever is left goes to the spill file.
+	 */
+	public void close(){
+		this._closed = true;
+		try{
+			if (this._queue.offer(STOP, CLOSE_MILLIS, TimeUnit.MILLISECONDS)) this._writer.join(CLOSE_MILLIS);
+			if (this._writer.isAlive()){
+				this._writer.interrupt();
+				this._writer.join(CLOSE_MILLIS);
+			}//end if
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}//end close
+
+	private void drain(){
+		replaySpill();
+		List<Entry> batch = new ArrayList<Entry>(BATCH);
+		boolean stopping = false;
+		try{
+			while (!stopping){
+				Entry first = this._queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				this._queue.drainTo(batch, BATCH - 1);
+				if (batch.remove(STOP)){
+					stopping = true;
+					//what is left behind the marker was queued while closing
+					this._queue.drainTo(batch);
+				}//end if
+				while (!batch.isEmpty()){
+					try{
+						writeAll(batch);
+					}catch (SQLException e){
+						if (stopping) break;
+						System.err.println("Audit log write failed, retrying: " + e.getMessage());
+						Thread.sleep(RETRY_MILLIS);
+					}//end try
+				}//end while
+			}//end while
+		}catch (InterruptedException e){
+			// stopping.
+		}finally{
+			this._queue.remove(STOP);
+			this._queue.drainTo(batch);
+			if (!batch.isEmpty()) spill(batch);
+		}//end try
+	}//end drain
+
+	/**
+	 * Method to write entries BATCH at a time, removing each chunk once it
+	 * is written so a retry after a failure starts at the first chunk that
+	 * did not make it.
+	 */
+	private void writeAll(List<Entry> entries) throws SQLException {
+		while (!entries.isEmpty()){
+			List<Entry> chunk = entries.subList(0, Math.min(entries.size(), BATCH));
+			write(chunk);
+			chunk.clear();
+		}//end while
+	}
+
+	private void write(List<Entry> batch) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._esql.getPool().borrow();
+		long start = System.nanoTime();
+		long rows = -1;
+		try{
+			PreparedStatement stmt = pc.getStatements().prepare(INSERT);
+			for (Entry entry : batch){
+				stmt.setTimestamp(1, new Timestamp(entry.at));
+				stmt.setString(2, entry.operation);
+				stmt.setString(3, entry.table);
+				stmt.setString(4, entry.key);
+				stmt.setString(5, entry.oldValues);
+				stmt.setString(6, entry.newValues);
+				stmt.addBatch();
+			}//end for
+			stmt.executeBatch();
+			rows = batch.size();
+			this._written.addAndGet(rows);
+		}finally{
+			this._esql.getPool().release(pc);
+			this._esql.finish(INSERT, new Object[0], start, rows);
+		}//end try
+	}//end write
+
+	/**
+	 * Method to append entries that could not be written to the spill file.
+	 */
+	private void spill(List<Entry> entries){
+		spill(entries, true);
+	}
+
+	private synchronized void spill(List<Entry> entries, boolean append){
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(SPILL_FILE, append), StandardCharsets.UTF_8))){
+			for (Entry entry : entries)
+				out.write(entry.toLine() + "\n");
+			this._spilled.addAndGet(entries.size());
+			System.err.println(entries.size() + " audit entries saved to " + SPILL_FILE);
+		}catch (IOException e){
+			System.err.println("Lost " + entries.size() + " audit entries: " + e.getMessage());
+		}//end try
+	}
+
+	/**
+	 * Method to write the entries a previous run spilled, then remove the
+	 * file. When that fails the file is cut down to the entries not yet
+	 * written and kept for the next start.
+	 */
+	private void replaySpill(){
+		File file = new File(SPILL_FILE);
+		if (!file.exists()) return;
+		List<Entry> entries = new ArrayList<Entry>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))){
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (!line.isEmpty()) entries.add(Entry.fromLine(line));
+		}catch (IOException | IllegalArgumentException e){
+			System.err.println("Could not replay " + SPILL_FILE + ": " + e.getMessage());
+			return;
+		}//end try
+		int total = entries.size();
+		try{
+			writeAll(entries);
+		}catch (SQLException e){
+			System.err.println("Could not replay " + SPILL_FILE + ": " + e.getMessage());
+			//the chunks written are gone from the list and must not come back
+			if (entries.size() < total) spill(entries, false);
+			return;
+		}//end try
+		if (file.delete()) System.err.println(total + " audit entries replayed from " + SPILL_FILE);
+	}//end replaySpill
+
+	/**
+	 * Method to turn the row of a result into a JSON object. With a prefix
+	 * only the columns starting with it are taken, named without it;
+	 * otherwise the columns starting with old_ and the skipped ones are
+	 * left out.
+	 *
+	 * @param result the row returned by the write
+	 * @param prefix the prefix of the columns to take, or null
+	 * @param skip columns that are not values of the row
+	 * @return the JSON text, or null when no column taken has a value, as
+	 *         for the old values of an insert
+	 */
+	static String json(QueryResult result, String prefix, String... skip){
+		if (result.size() == 0) return null;
+		String[] columns = result.getColumns();
+		String[] row = result.getRows().get(0);
+		StringBuilder sb = new StringBuilder(128).append('{');
+		boolean any = false;
+		boolean values = false;
+		outer:
+		for (int i = 0; i < columns.length; ++i){
+			String name = columns[i];
+			if (prefix != null){
+				if (!name.startsWith(prefix)) continue;
+				name = name.substring(prefix.length());
+			}else{
+				if (name.startsWith("old_")) continue;
+				for (String s : skip)
+					if (s.equals(name)) continue outer;
+			}//end if
+			if (any) sb.append(',');
+			sb.append(ScriptRunner.quote(name)).append(':').append(row[i] == null ? "null" : ScriptRunner.quote(row[i].trim()));
+			any = true;
+			values |= row[i] != null;
+		}//end for
+		return values ? sb.append('}').toString() : null;
+	}//end json
+
+	static String escape(String value){
+		if (value == null) return "\\N";
+		StringBuilder sb = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '\\': sb.append("\\\\"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				default: sb.append(c);
+			}
+		}//end for
+		return sb.toString();
+	}
+
+	static String unescape(String field){
+		if (field.equals("\\N")) return null;
+		StringBuilder sb = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); ++i){
+			char c = field.charAt(i);
+			if (c != '\\' || i + 1 == field.length()){
+				sb.append(c);
+				continue;
+			}//end if
+			char next = field.charAt(++i);
+			sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+		}//end for
+		return sb.toString();
+	}
+}//end AuditQueue
@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class inserts many customers, mechanics or cars at once from CSV
+ * lines, for example when a fleet customer is onboarded. Rows are checked
+ * with the same rules as AddCustomer, AddMechanic and AddCar, grouped into
+ * JDBC batches and committed one batch at a time. Customer and mechanic
+ * rows may leave out the id, which is then taken from the table sequence
+ * a batch-sized block at a time. Rows that fail
+ * validation or are refused by the database are reported with their line
+ * number instead of aborting the whole file.
+ *
+ */
+
+public class BatchInserter{
+	static final int BATCH_SIZE = Integer.getInteger("mechanicshop.batchSize", 500);
+
+	/**
+	 * The kinds of rows that can be ingested, with their INSERT template and
+	 * the number of CSV fields they expect.
+	 */
+	public enum Kind{
+		CUSTOMER("INSERT INTO Customer(id, fname, lname, phone, address) VALUES (?, ?, ?, ?, ?)", 5, "customer_id_seq"),
+		MECHANIC("INSERT INTO Mechanic(id, fname, lname, experience) VALUES (?, ?, ?, ?)", 4, "mechanic_id_seq"),
+		CAR("INSERT INTO Car(vin, make, model, year) VALUES (?, ?, ?, ?)", 4, null);
+
+		final String sql;
+		final int fields;
+		//sequence for rows that leave out the id, null when the key is natural
+		final String sequence;
+
+		Kind(String sql, int fields, String sequence){
+			this.sql = sql;
+			this.fields = fields;
+			this.sequence = sequence;
+		}
+	}//end Kind
+
+	/**
+	 * A validated row waiting in the current batch.
+	 */
+	static class Row{
+		final int line;
+		final String text;
+		final Object[] values;
+
+		Row(int line, String text, Object[] values){
+			this.line = line;
+			this.text = text;
+			this.values = values;
+		}
+	}//end Row
+
+	private final MechanicShop _esql;
+	private final Kind _kind;
+	private final int _batchSize;
+	private final IdAllocator _ids;
+	private final List<String> _rejected = new ArrayList<String>();
+	private int _inserted = 0;
+	private int _batches = 0;
+
+	public BatchInserter(MechanicShop esql, Kind kind, int batchSize){
+		this._esql = esql;
+		this._kind = kind;
+		this._batchSize = batchSize;
+		this._ids = kind.sequence == null ? null : new IdAllocator(esql, kind.sequence, batchSize);
+	}
+
+	/**
+	 * Method to read CSV rows and insert them in batches. Blank lines and
+	 * lines starting with '#' are skipped.
+	 *
+	 * @param input the CSV source, a file or standard input
+	 * @return the number of rows inserted
+	 * @throws java.io.IOException when the input cannot be read
+	 * @throws java.sql.SQLException when the database is unavailable
+	 */
+	public int ingest(Reader input) throws IOException, SQLException {
+		BufferedReader reader = new BufferedReader(input);
+		List<Row> batch = new ArrayList<Row>(this._batchSize);
+		String text;
+		int line = 0;
+		while ((text = reader.readLine()) != null){
+			++line;
+			if (text.trim().isEmpty() || text.startsWith("#")) continue;
+			try{
+				batch.add(new Row(line, text, parse(text)));
+			}catch (RuntimeException e){
+				reject(line, text, e.getMessage());
+				continue;
+			}//end try
+			if (batch.size() >= this._batchSize){
+				flush(batch);
+				batch.clear();
+			}//end if
+		}//end while
+		if (!batch.isEmpty()) flush(batch);
+		return this._inserted;
+	}//end ingest
+
+	/**
+	 * Method to split and validate one CSV line into bind values.
+	 */
+	Object[] parse(String text) throws SQLException {
+		String[] f = text.split(",", -1);
+		if (f.length == this._kind.fields - 1 && this._ids != null){
+			//no id given, prepend a blank one to be allocated below
+			String[] withId = new String[f.length + 1];
+			withId[0] = "";
+			System.arraycopy(f, 0, withId, 1, f.length);
+			f = withId;
+		}//end if
+		if (f.length != this._kind.fields)
+			throw new RuntimeException("expected " + this._kind.fields + " fields, found " + f.length);
+		for (int i = 0; i < f.length; ++i)
+			f[i] = f[i].trim();
+		if (this._ids != null && f[0].isEmpty())
+			f[0] = String.valueOf(this._ids.next());
+		switch (this._kind){
+			case CUSTOMER:
+				return new Object[] { Integer.parseInt(f[0]), checkLength("Fname", f[1], 32),
+					checkLength("Lname", f[2], 32), checkLength("Phone Number", f[3], 13),
+					checkLength("Address", f[4], 256) };
+			case MECHANIC:
+				int experience = Integer.parseInt(f[3]);
+				if (experience < 0 || experience >= 100)
+					throw new RuntimeException("Experience must be between 0 and 99");
+				return new Object[] { Integer.parseInt(f[0]), checkLength("Fname", f[1], 32),
+					checkLength("Lname", f[2], 32), experience };
+			default:
+				if (f[3].length() != 4)
+					throw new RuntimeException("Year is not vaild!");
+				return new Object[] { checkLength("Vin", f[0], 16), checkLength("Make", f[1], 32),
+					checkLength("Model", f[2], 32), Integer.parseInt(f[3]) };
+		}
+	}//end parse
+
+	static String checkLength(String field, String value, int max){
+		if (value.length() <= 0 || value.length() > max)
+			throw new RuntimeException(field + " greater than " + max + " or empty");
+		return value;
+	}
+
+	/**
+	 * Method to insert one batch in its own transaction. When the database
+	 * refuses the batch, it is replayed row by row under savepoints so only
+	 * the offending rows are rejected.
+	 */
+	private void flush(List<Row> batch) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._esql.getPool().borrow();
+		Connection conn = pc.getConnection();
+		try{
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = pc.getStatements().prepare(this._kind.sql);
+			try{
+				for (Row row : batch){
+					bind(stmt, row.values);
+					stmt.addBatch();
+				}//end for
+				stmt.executeBatch();
+				conn.commit();
+				this._inserted += batch.size();
+			}catch (BatchUpdateException e){
+				conn.rollback();
+				stmt.clearBatch();
+				replay(conn, stmt, batch);
+			}//end try
+			++this._batches;
+		}finally{
+			this._esql.getPool().release(pc);
+		}//end try
+	}//end flush
+
+	private void replay(Connection conn, PreparedStatement stmt, List<Row> batch) throws SQLException {
+		for (Row row : batch){
+			Savepoint savepoint = conn.setSavepoint();
+			try{
+				bind(stmt, row.values);
+				stmt.executeUpdate();
+				conn.releaseSavepoint(savepoint);
+				++this._inserted;
+			}catch (SQLException e){
+				conn.rollback(savepoint);
+				reject(row.line, row.text, e.getMessage());
+			}//end try
+		}//end for
+		conn.commit();
+	}//end replay
+
+	private static void bind(PreparedStatement stmt, Object[] values) throws SQLException {
+		for (int i = 0; i < values.length; ++i)
+			stmt.setObject(i + 1, values[i]);
+	}
+
+	private void reject(int line, String text, String reason){
+		this._rejected.add("line " + line + ": " + reason + ": " + text);
+	}
+
+	public List<String> getRejected(){
+		return this._rejected;
+	}
+
+	/**
+	 * Method to print how many rows were inserted and every rejected row.
+	 */
+	public void printReport(){
+		System.out.println("RESULT________________________________________________");
+		System.out.println(this._inserted + " " + this._kind.name().toLowerCase() + " rows inserted in "
+			+ this._batches + " batches, " + this._rejected.size() + " rejected");
+		for (String rejected : this._rejected)
+			System.out.println("REJECTED " + rejected);
+	}
+}//end BatchInserter
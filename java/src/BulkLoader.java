@@ -0,0 +1,345 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class reloads the six shop tables from the CSV exports in data/
+ * with COPY FROM STDIN. The files are streamed from the client, so nothing
+ * has to be placed on the database host. Dates written as M/d/yyyy HH:mm
+ * are rewritten to ISO form on the way through, so the load does not
+ * depend on the server DateStyle.
+ *
+ * The files are first copied into unlogged staging tables, in foreign key
+ * order; the tables within one level do not reference each other and are
+ * loaded in parallel, each on its own pooled connection. The shop tables
+ * are then emptied and filled from the staging tables in one transaction,
+ * so a file that fails to load leaves the old data in place and other
+ * sessions see either the old rows or the new ones.
+ *
+ * User triggers are switched off while the tables are filled and the
+ * Customer_Bill totals are rebuilt once at the end. When the request
+ * tables are partitioned (migration V6), rows of months without a
+ * partition are copied into the default partition and given partitions of
+ * their own after the copy.
+ *
+ */
+
+public class BulkLoader{
+	static final int PROGRESS_ROWS = 10000;
+	static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * One table to load: its CSV file, its column list, and which of those
+	 * columns hold dates.
+	 */
+	static class TableSpec{
+		final String table;
+		final String file;
+		final String[] columns;
+		final int[] dateColumns;
+
+		TableSpec(String table, String file, String[] columns, int... dateColumns){
+			this.table = table;
+			this.file = file;
+			this.columns = columns;
+			this.dateColumns = dateColumns;
+		}
+
+		String staging(){
+			return "bulk_" + this.table.toLowerCase();
+		}
+
+		String copySql(){
+			return "COPY " + staging() + " (" + String.join(", ", this.columns) + ") FROM STDIN WITH DELIMITER ','";
+		}
+	}//end TableSpec
+
+	static final TableSpec CUSTOMER = new TableSpec("Customer", "customer.csv",
+		new String[] { "id", "fname", "lname", "phone", "address" });
+	static final TableSpec MECHANIC = new TableSpec("Mechanic", "mechanic.csv",
+		new String[] { "id", "fname", "lname", "experience" });
+	static final TableSpec CAR = new TableSpec("Car", "car.csv",
+		new String[] { "vin", "make", "model", "year" });
+	static final TableSpec OWNS = new TableSpec("Owns", "owns.csv",
+		new String[] { "ownership_id", "customer_id", "car_vin" });
+	static final TableSpec SERVICE_REQUEST = new TableSpec("Service_Request", "service_request.csv",
+		new String[] { "rid", "customer_id", "car_vin", "date", "odometer", "complain" }, 3);
+	static final TableSpec CLOSED_REQUEST = new TableSpec("Closed_Request", "closed_request.csv",
+		new String[] { "wid", "rid", "mid", "date", "comment", "bill" }, 3);
+
+	//each level only references tables of earlier levels
+	static final TableSpec[][] LEVELS = {
+		{ CUSTOMER, MECHANIC, CAR },
+		{ OWNS, SERVICE_REQUEST },
+		{ CLOSED_REQUEST }
+	};
+
+	//moves each key sequence past the ids that were just loaded
+	static final String[] SYNC_SEQUENCES = {
+		"SELECT setval('customer_id_seq', COALESCE((SELECT MAX(id) FROM Customer), 0) + 1, false)",
+		"SELECT setval('mechanic_id_seq', COALESCE((SELECT MAX(id) FROM Mechanic), 0) + 1, false)",
+		"SELECT setval('owns_ownership_id_seq', COALESCE((SELECT MAX(ownership_id) FROM Owns), 0) + 1, false)",
+		"SELECT setval('service_request_rid_seq', COALESCE((SELECT MAX(rid) FROM Service_Request), 0) + 1, false)",
+		"SELECT setval('closed_request_wid_seq', COALESCE((SELECT MAX(wid) FROM Closed_Request), 0) + 1, false)"
+	};
+	//the partitions of a table, none for a plain one
+	static final String PARTITIONS = "SELECT CAST(CAST(I.inhrelid AS regclass) AS text)\nFROM pg_inherits I\nWHERE I.inhparent = to_regclass(?);";
+
+	/**
+	 * Supplies the rows of one table, in COPY text form, to an open COPY.
+	 */
+	public interface TableSource{
+		long writeTo(TableSpec spec, CopyIn copy) throws IOException, SQLException;
+	}
+
+	private final MechanicShop _esql;
+
+	public BulkLoader(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to empty the shop tables and load them again from the CSV
+	 * files in a directory.
+	 *
+	 * @param dir the directory holding customer.csv, car.csv, ...
+	 * @return the total number of rows loaded
+	 * @throws java.lang.Exception when a file cannot be read or a COPY fails
+	 */
+	public long reload(final File dir) throws Exception {
+		return reload((spec, copy) -> copyFile(new File(dir, spec.file), spec, copy));
+	}
+
+	/**
+	 * Method to empty the shop tables and load them again from a row source.
+	 * Nothing changes in the shop tables unless every table loads.
+	 *
+	 * @param source writes the rows of each table
+	 * @return the total number of rows loaded
+	 * @throws java.lang.Exception when the source or a COPY fails
+	 */
+	public long reload(TableSource source) throws Exception {
+		long start = System.nanoTime();
+		long total = 0;
+		try{
+			dropStaging();
+			for (TableSpec[] level : LEVELS){
+				for (TableSpec spec : level){
+					this._esql.executeUpdate("CREATE UNLOGGED TABLE " + spec.staging() + " AS SELECT " + String.join(", ", spec.columns)
+						+ " FROM " + spec.table + " WITH NO DATA");
+				}//end for
+			}//end for
+			for (TableSpec[] level : LEVELS)
+				total += loadLevel(source, level);
+			swap();
+		}finally{
+			dropStaging();
+		}//end try
+		//the triggers were off, so listening shops start over instead
+		ChangeFeed.publishReset(this._esql);
+		System.out.println(String.format("Loaded %d rows in %.2f s", total, (System.nanoTime() - start) / 1e9));
+		return total;
+	}//end reload
+
+	private void dropStaging(){
+		for (TableSpec[] level : LEVELS){
+			for (TableSpec spec : level){
+				try{
+					this._esql.executeUpdate("DROP TABLE IF EXISTS " + spec.staging());
+				}catch (SQLException e){
+					// ignored, the next reload drops it first.
+				}//end try
+			}//end for
+		}//end for
+	}
+
+	/**
+	 * Method to replace the rows of the shop tables with the staging tables
+	 * in one transaction.
+	 */
+	private void swap() throws SQLException {
+		this._esql.beginTransaction();
+		try{
+			this._esql.executeUpdate("TRUNCATE Customer_Bill, Closed_Request, Service_Request, Owns, Car, Mechanic, Customer");
+			setTriggers("DISABLE");
+			for (TableSpec[] level : LEVELS){
+				for (TableSpec spec : level){
+					String columns = String.join(", ", spec.columns);
+					this._esql.executeUpdate("INSERT INTO " + spec.table + " (" + columns + ") SELECT " + columns + " FROM " + spec.staging());
+				}//end for
+			}//end for
+			if (this._esql.getPartitions() != null)
+				for (String table : Partitions.TABLES)
+					this._esql.executeQuery(Partitions.SPLIT_DEFAULT, table);
+			setTriggers("ENABLE");
+			for (String sync : SYNC_SEQUENCES)
+				this._esql.executeQuery(sync);
+			this._esql.executeQuery("SELECT customer_bill_rebuild()");
+			this._esql.commitTransaction();
+		}catch (SQLException | RuntimeException e){
+			if (this._esql.inTransaction()) this._esql.rollbackTransaction();
+			throw e;
+		}//end try
+	}//end swap
+
+	private void setTriggers(String action) throws SQLException {
+		for (TableSpec[] level : LEVELS){
+			for (TableSpec spec : level){
+				this._esql.executeUpdate("ALTER TABLE " + spec.table + " " + action + " TRIGGER USER");
+				//older servers do not pass this on to the partitions
+				for (List<String> partition : this._esql.executeQueryAndReturnResult(PARTITIONS, spec.table))
+					this._esql.executeUpdate("ALTER TABLE " + partition.get(0) + " " + action + " TRIGGER USER");
+			}//end for
+		}//end for
+	}
+
+	private long loadLevel(final TableSource source, TableSpec[] level) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(level.length);
+		try{
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (final TableSpec spec : level)
+				results.add(executor.submit(() -> copyTable(source, spec)));
+			long total = 0;
+			for (Future<Long> result : results){
+				try{
+					total += result.get();
+				}catch (ExecutionException e){
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) throw (Exception) cause;
+					throw e;
+				}//end try
+			}//end for
+			return total;
+		}finally{
+			executor.shutdownNow();
+		}//end try
+	}//end loadLevel
+
+	/**
+	 * Method to stream one table's rows from the source over COPY FROM STDIN.
+	 *
+	 * @param source writes the rows
+	 * @param spec the table whose staging table they are loaded into
+	 * @return the number of rows copied
+	 */
+	long copyTable(TableSource source, TableSpec spec) throws IOException, SQLException {
+		ConnectionPool pool = this._esql.getPool();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		CopyIn copy = null;
+		try{
+			copy = pc.getConnection().unwrap(PGConnection.class).getCopyAPI().copyIn(spec.copySql());
+			source.writeTo(spec, copy);
+			long rows = copy.endCopy();
+			copy = null;
+			System.out.println(spec.table + ": done, " + rows + " rows");
+			return rows;
+		}finally{
+			if (copy != null && copy.isActive()){
+				try{
+					copy.cancelCopy();
+				}catch (SQLException e){
+					// ignored, the original failure is reported.
+				}//end try
+			}//end if
+			pool.release(pc);
+		}//end try
+	}//end copyTable
+
+	/**
+	 * Method to stream one CSV file into an open COPY.
+	 *
+	 * @param file the CSV file
+	 * @param spec the table it is loaded into
+	 * @param copy the open COPY
+	 * @return the number of lines sent
+	 */
+	static long copyFile(File file, TableSpec spec, CopyIn copy) throws IOException, SQLException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+		StringBuilder chunk = new StringBuilder(COPY_BUFFER_SIZE);
+		long lines = 0;
+		try{
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (line.isEmpty()) continue;
+				appendRow(chunk, line, spec.dateColumns);
+				if (chunk.length() >= COPY_BUFFER_SIZE) flush(copy, chunk);
+				if (++lines % PROGRESS_ROWS == 0)
+					System.out.println(spec.table + ": " + lines + " rows");
+			}//end while
+		}finally{
+			reader.close();
+		}//end try
+		flush(copy, chunk);
+		return lines;
+	}//end copyFile
+
+	private static void flush(CopyIn copy, StringBuilder chunk) throws SQLException {
+		if (chunk.length() == 0) return;
+		byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+		copy.writeToCopy(bytes, 0, bytes.length);
+		chunk.setLength(0);
+	}
+
+	/**
+	 * Method to append one CSV line to the COPY buffer, rewriting the date
+	 * fields to yyyy-mm-dd.
+	 */
+	static void appendRow(StringBuilder out, String line, int[] dateColumns){
+		if (dateColumns.length == 0){
+			out.append(line).append('\n');
+			return;
+		}//end if
+		int field = 0;
+		int from = 0;
+		int dateIndex = 0;
+		while (true){
+			int comma = line.indexOf(',', from);
+			int to = comma < 0 ? line.length() : comma;
+			if (dateIndex < dateColumns.length && dateColumns[dateIndex] == field){
+				appendIsoDate(out, line, from, to);
+				++dateIndex;
+			}else{
+				out.append(line, from, to);
+			}//end if
+			if (comma < 0) break;
+			out.append(',');
+			from = comma + 1;
+			++field;
+		}//end while
+		out.append('\n');
+	}//end appendRow
+
+	/**
+	 * Method to rewrite M/d/yyyy (optionally followed by a time) as
+	 * yyyy-mm-dd. Values that are not in that form are copied unchanged.
+	 */
+	static void appendIsoDate(StringBuilder out, String line, int from, int to){
+		int slash1 = line.indexOf('/', from);
+		int slash2 = slash1 < 0 ? -1 : line.indexOf('/', slash1 + 1);
+		if (slash1 < 0 || slash2 < 0 || slash2 >= to){
+			out.append(line, from, to);
+			return;
+		}//end if
+		int end = slash2 + 1;
+		while (end < to && Character.isDigit(line.charAt(end))) ++end;
+		out.append(line, slash2 + 1, end).append('-');
+		if (slash1 - from < 2) out.append('0');
+		out.append(line, from, slash1).append('-');
+		if (slash2 - slash1 - 1 < 2) out.append('0');
+		out.append(line, slash1 + 1, slash2);
+	}//end appendIsoDate
+}//end BulkLoader
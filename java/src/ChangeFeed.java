@@ -0,0 +1,302 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class follows the changes committed to Customer, Car, Owns,
+ * Service_Request and Closed_Request, by any session, through the
+ * shop_changes channel the triggers of migration V5 publish on. A listener
+ * thread holds its own connection outside the pool, waits on
+ * getNotifications() and hands every change to the subscribers in commit
+ * order, so caches and in-memory aggregates stay current without polling.
+ *
+ * Notifications sent while the listener is disconnected are lost, so after
+ * a reconnect, and after a bulk reload which runs with the triggers off,
+ * the subscribers are told to start over from the database.
+ *
+ * Settings: mechanicshop.changeFeed (default true),
+ * mechanicshop.changeFeed.pollMillis (default 500) and
+ * mechanicshop.changeFeed.reconnectMillis (default 5000).
+ *
+ */
+
+public class ChangeFeed{
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mechanicshop.changeFeed", "true"));
+	static final int POLL_MILLIS = Integer.getInteger("mechanicshop.changeFeed.pollMillis", 500);
+	static final long RECONNECT_MILLIS = Long.getLong("mechanicshop.changeFeed.reconnectMillis", 5000L);
+	static final String CHANNEL = "shop_changes";
+	//sent after a bulk reload in place of the row changes
+	static final String RESET = "reset";
+	static final String INSTALLED = "SELECT CAST(to_regproc('publish_change') AS text);";
+
+	/**
+	 * One committed row change. The fields follow the transaction id in the
+	 * payload; an empty field is null.
+	 */
+	public static class Change{
+		//the table name in lower case, as the trigger sees it
+		public final String table;
+		//INSERT, UPDATE or DELETE
+		public final String op;
+		public final long txid;
+		private final String[] _fields;
+
+		Change(String table, String op, long txid, String[] fields){
+			this.table = table;
+			this.op = op;
+			this.txid = txid;
+			this._fields = fields;
+		}
+
+		public String field(int i){
+			return i < this._fields.length && !this._fields[i].isEmpty() ? this._fields[i] : null;
+		}
+
+		public Integer intField(int i){
+			String value = field(i);
+			return value == null ? null : Integer.valueOf(value);
+		}
+
+		public String toString(){
+			return this.table + " " + this.op + " " + String.join(",", this._fields);
+		}
+	}//end Change
+
+	/**
+	 * Something kept in step with the database.
+	 */
+	public interface Subscriber{
+		/**
+		 * Method to apply one committed change. Called on the listener
+		 * thread.
+		 */
+		void onChange(Change change) throws SQLException;
+
+		/**
+		 * Method to start over from the database because changes may have
+		 * been missed.
+		 */
+		void onReset() throws SQLException;
+	}
+
+	/**
+	 * The transactions a query saw, parsed from txid_current_snapshot(),
+	 * so a change the query already counted is not applied again.
+	 */
+	public static class Snapshot{
+		private final long _xmin;
+		private final long _xmax;
+		private final Set<Long> _running = new HashSet<Long>();
+
+		/**
+		 * @param text the snapshot as xmin:xmax:xip,...
+		 */
+		public Snapshot(String text){
+			String[] parts = text.split(":");
+			this._xmin = Long.parseLong(parts[0]);
+			this._xmax = Long.parseLong(parts[1]);
+			if (parts.length > 2 && !parts[2].isEmpty())
+				for (String txid : parts[2].split(","))
+					this._running.add(Long.valueOf(txid));
+		}
+
+		/**
+		 * Method to tell whether a transaction had committed when the
+		 * snapshot was taken.
+		 */
+		public boolean sees(long txid){
+			if (txid < this._xmin) return true;
+			return txid < this._xmax && !this._running.contains(txid);
+		}
+	}//end Snapshot
+
+	private final MechanicShop _esql;
+	private final List<Subscriber> _subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final Thread _listener;
+	private volatile boolean _closed = false;
+	private volatile boolean _listening = false;
+
+	private final AtomicLong _received = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	private final AtomicLong _resets = new AtomicLong();
+
+	/**
+	 * Creates the feed. The first LISTEN is done before returning, so no
+	 * change committed after the constructor is missed.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the listening connection cannot be opened
+	 */
+	public ChangeFeed(MechanicShop esql) throws SQLException {
+		this._esql = esql;
+		final Connection conn = connect();
+		this._listening = true;
+		this._listener = new Thread(() -> listen(conn), "change-feed");
+		this._listener.setDaemon(true);
+		this._listener.start();
+	}
+
+	/**
+	 * Method to tell whether the triggers of migration V5 are installed.
+	 */
+	static boolean installed(MechanicShop esql) throws SQLException {
+		return esql.executeQueryAndReturnResult(INSTALLED).get(0).get(0) != null;
+	}
+
+	public void subscribe(Subscriber subscriber){
+		this._subscribers.add(subscriber);
+	}
+
+	public void unsubscribe(Subscriber subscriber){
+		this._subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Method to tell whether the listener is connected, so every change
+	 * from now on will be delivered.
+	 */
+	public boolean isListening(){
+		return this._listening;
+	}
+
+	/**
+	 * Method to tell every listening shop, this one included, to start over
+	 * from the database. Used after changes made with the triggers off.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the notification cannot be sent
+	 */
+	public static void publishReset(MechanicShop esql) throws SQLException {
+		esql.executeQuery("SELECT pg_notify('" + CHANNEL + "', '" + RESET + "');");
+	}
+
+	private Connection connect() throws SQLException {
+		Connection conn = this._esql.getPool().connect();
+		try{
+			Statement stmt = conn.createStatement();
+			stmt.execute("LISTEN " + CHANNEL);
+			stmt.close();
+			return conn;
+		}catch (SQLException e){
+			close(conn);
+			throw e;
+		}//end try
+	}
+
+	private void listen(Connection conn){
+		while (!this._closed){
+			try{
+				if (conn == null){
+					conn = connect();
+					this._listening = true;
+					reset();
+				}//end if
+				PGNotification[] notifications = conn.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+				if (notifications != null)
+					for (PGNotification notification : notifications)
+						deliver(notification.getParameter());
+			}catch (SQLException e){
+				this._listening = false;
+				this._failures.incrementAndGet();
+				if (this._closed) break;
+				System.err.println("Change feed lost, reconnecting: " + e.getMessage());
+				close(conn);
+				conn = null;
+				try{
+					Thread.sleep(RECONNECT_MILLIS);
+				}catch (InterruptedException ie){
+					break;
+				}//end try
+			}//end try
+		}//end while
+		this._listening = false;
+		close(conn);
+	}//end listen
+
+	private static void close(Connection conn){
+		if (conn == null) return;
+		try{
+			conn.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to parse one payload and hand it to every subscriber. A
+	 * subscriber that fails is told to start over instead.
+	 */
+	void deliver(String payload){
+		this._received.incrementAndGet();
+		if (payload.equals(RESET)){
+			reset();
+			return;
+		}//end if
+		Change change;
+		try{
+			String[] parts = payload.split("\t", -1);
+			String[] fields = new String[parts.length - 3];
+			System.arraycopy(parts, 3, fields, 0, fields.length);
+			change = new Change(parts[0], parts[1], Long.parseLong(parts[2]), fields);
+		}catch (RuntimeException e){
+			System.err.println("Ignored change feed payload " + payload);
+			return;
+		}//end try
+		for (Subscriber subscriber : this._subscribers){
+			try{
+				subscriber.onChange(change);
+			}catch (SQLException | RuntimeException e){
+				this._failures.incrementAndGet();
+				System.err.println("Could not apply " + change + ": " + e.getMessage());
+				reset(subscriber);
+			}//end try
+		}//end for
+	}//end deliver
+
+	private void reset(){
+		this._resets.incrementAndGet();
+		for (Subscriber subscriber : this._subscribers)
+			reset(subscriber);
+	}
+
+	private void reset(Subscriber subscriber){
+		try{
+			subscriber.onReset();
+		}catch (SQLException | RuntimeException e){
+			this._failures.incrementAndGet();
+			System.err.println("Could not reload after a change feed reset: " + e.getMessage());
+		}//end try
+	}
+
+	/**
+	 * Method to stop the listener and close its connection.
+	 */
+	public void close(){
+		this._closed = true;
+		try{
+			this._listener.join(POLL_MILLIS * 4L);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getReceivedCount(){
+		return this._received.get();
+	}
+
+	public long getFailureCount(){
+		return this._failures.get();
+	}
+
+	public long getResetCount(){
+		return this._resets.get();
+	}
+}//end ChangeFeed
@@ -0,0 +1,316 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a small bounded pool of physical PostgreSQL
+ * connections. Each pooled connection carries its own statement cache so
+ * prepared statements survive between borrows.
+ *
+ * Connections are validated when borrowed, closed once they have been idle
+ * for too long, and recycled after a maximum lifetime. The time callers
+ * spend waiting for a connection is recorded for reporting.
+ *
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private final long _maxWaitMillis;
+	private final long _idleTimeoutMillis;
+	private final long _maxLifetimeMillis;
+	private final int _statementCacheSize;
+
+	//one permit per borrowed connection, idle ones hold none
+	private final Semaphore _permits;
+	//most recently released connection is at the head
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private boolean _closed = false;
+
+	private final AtomicLong _borrows = new AtomicLong();
+	private final AtomicLong _waitNanos = new AtomicLong();
+	private final AtomicLong _maxWaitNanos = new AtomicLong();
+	private final LatencyHistogram _waits = new LatencyHistogram();
+	private final AtomicLong _timeouts = new AtomicLong();
+	private final AtomicLong _created = new AtomicLong();
+	private final AtomicLong _evicted = new AtomicLong();
+
+	/**
+	 * A physical connection together with its statement cache and the
+	 * timestamps the pool uses for eviction.
+	 */
+	public static class PooledConnection{
+		final Connection connection;
+		final StatementCache statements;
+		final long createdAt;
+		long lastUsed;
+
+		PooledConnection(Connection connection, int statementCacheSize){
+			this.connection = connection;
+			this.statements = new StatementCache(connection, statementCacheSize);
+			this.createdAt = System.currentTimeMillis();
+			this.lastUsed = this.createdAt;
+		}
+
+		public Connection getConnection(){
+			return this.connection;
+		}
+
+		public StatementCache getStatements(){
+			return this.statements;
+		}
+
+		void close(){
+			this.statements.close();
+			try{
+				this.connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}
+	}//end PooledConnection
+
+	public ConnectionPool(String url, Properties props, int maxSize, long maxWaitMillis,
+			long idleTimeoutMillis, long maxLifetimeMillis, int statementCacheSize){
+		this._url = url;
+		this._props = props;
+		this._maxSize = maxSize;
+		this._maxWaitMillis = maxWaitMillis;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._maxLifetimeMillis = maxLifetimeMillis;
+		this._statementCacheSize = statementCacheSize;
+		this._permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Method to borrow a connection, waiting up to the configured time for
+	 * one to become free. Idle connections are validated before they are
+	 * handed out; broken or expired ones are replaced transparently.
+	 *
+	 * @return a connection that must be given back with release()
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		boolean acquired;
+		try{
+			acquired = this._permits.tryAcquire(this._maxWaitMillis, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}//end try
+		long waited = System.nanoTime() - start;
+		this._borrows.incrementAndGet();
+		this._waitNanos.addAndGet(waited);
+		updateMax(this._maxWaitNanos, waited);
+		this._waits.record(waited);
+		if (!acquired){
+			this._timeouts.incrementAndGet();
+			throw new SQLException("Timed out after " + this._maxWaitMillis + " ms waiting for a database connection");
+		}//end if
+
+		try{
+			PooledConnection pc;
+			while ((pc = pollIdle()) != null){
+				if (isUsable(pc)) return pc;
+				this._evicted.incrementAndGet();
+				pc.close();
+			}//end while
+			return open();
+		}catch (SQLException e){
+			this._permits.release();
+			throw e;
+		}catch (RuntimeException e){
+			this._permits.release();
+			throw e;
+		}//end try
+	}//end borrow
+
+	/**
+	 * Method to give a borrowed connection back to the pool. A connection
+	 * left inside a transaction is rolled back first; one that cannot be
+	 * reset or that is past its lifetime is closed instead.
+	 *
+	 * @param pc the connection returned by borrow()
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null) return;
+		boolean keep = !expired(pc, System.currentTimeMillis());
+		if (keep){
+			try{
+				if (!pc.connection.getAutoCommit()){
+					pc.connection.rollback();
+					pc.connection.setAutoCommit(true);
+				}//end if
+			}catch (SQLException e){
+				keep = false;
+			}//end try
+		}//end if
+		synchronized (this){
+			if (keep && !this._closed){
+				pc.lastUsed = System.currentTimeMillis();
+				this._idle.addFirst(pc);
+				pc = null;
+			}//end if
+		}
+		if (pc != null){
+			this._evicted.incrementAndGet();
+			pc.close();
+		}//end if
+		this._permits.release();
+	}//end release
+
+	/**
+	 * Method to close idle connections that have not been used within the
+	 * idle timeout or that have outlived the maximum lifetime. It is called
+	 * on every borrow and may also be called from a maintenance thread.
+	 */
+	public void evictIdle(){
+		long now = System.currentTimeMillis();
+		List<PooledConnection> stale = new ArrayList<PooledConnection>();
+		synchronized (this){
+			Iterator<PooledConnection> it = this._idle.iterator();
+			while (it.hasNext()){
+				PooledConnection pc = it.next();
+				if (expired(pc, now) || now - pc.lastUsed > this._idleTimeoutMillis){
+					it.remove();
+					stale.add(pc);
+				}//end if
+			}//end while
+		}
+		for (PooledConnection pc : stale){
+			this._evicted.incrementAndGet();
+			pc.close();
+		}//end for
+	}//end evictIdle
+
+	private PooledConnection pollIdle(){
+		evictIdle();
+		synchronized (this){
+			if (this._closed) return null;
+			return this._idle.pollFirst();
+		}
+	}
+
+	/**
+	 * Method to open a connection outside the pool, for a session that
+	 * stays open for the life of the program such as a LISTEN. It does not
+	 * count against the pool size and the caller closes it.
+	 *
+	 * @return a new physical connection
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection connect() throws SQLException {
+		synchronized (this){
+			if (this._closed) throw new SQLException("Connection pool is closed");
+		}
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	private PooledConnection open() throws SQLException {
+		synchronized (this){
+			if (this._closed) throw new SQLException("Connection pool is closed");
+		}
+		Connection conn = DriverManager.getConnection(this._url, this._props);
+		this._created.incrementAndGet();
+		return new PooledConnection(conn, this._statementCacheSize);
+	}
+
+	private boolean isUsable(PooledConnection pc){
+		if (expired(pc, System.currentTimeMillis())) return false;
+		try{
+			return pc.connection.isValid(2);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+
+	private boolean expired(PooledConnection pc, long now){
+		return now - pc.createdAt > this._maxLifetimeMillis;
+	}
+
+	private static void updateMax(AtomicLong max, long value){
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)){
+			// retry until the larger value sticks.
+		}//end while
+	}
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	public synchronized int getIdleCount(){
+		return this._idle.size();
+	}
+
+	public int getActiveCount(){
+		return this._maxSize - this._permits.availablePermits();
+	}
+
+	public long getBorrowCount(){
+		return this._borrows.get();
+	}
+
+	public long getTotalWaitNanos(){
+		return this._waitNanos.get();
+	}
+
+	public long getMaxWaitNanos(){
+		return this._maxWaitNanos.get();
+	}
+
+	public LatencyHistogram getWaitHistogram(){
+		return this._waits;
+	}
+
+	public long getTimeoutCount(){
+		return this._timeouts.get();
+	}
+
+	public long getCreatedCount(){
+		return this._created.get();
+	}
+
+	public long getEvictedCount(){
+		return this._evicted.get();
+	}
+
+	/**
+	 * Method to summarize the pool state and wait-time metrics in one line.
+	 *
+	 * @return the summary
+	 */
+	public String stats(){
+		long borrows = getBorrowCount();
+		double avgMillis = borrows == 0 ? 0.0 : getTotalWaitNanos() / 1e6 / borrows;
+		return String.format("pool size=%d active=%d idle=%d borrows=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d created=%d evicted=%d",
+			this._maxSize, getActiveCount(), getIdleCount(), borrows, avgMillis,
+			getMaxWaitNanos() / 1e6, getTimeoutCount(), getCreatedCount(), getEvictedCount());
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close(){
+		List<PooledConnection> idle;
+		synchronized (this){
+			this._closed = true;
+			idle = new ArrayList<PooledConnection>(this._idle);
+			this._idle.clear();
+		}
+		for (PooledConnection pc : idle){
+			pc.close();
+		}//end for
+	}//end close
+}//end ConnectionPool
@@ -0,0 +1,337 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class generates a synthetic shop data set at any multiple of the
+ * bundled one (500 customers, 250 mechanics, 5000 cars and 30000 service
+ * requests per scale unit). The output depends only on the seed and the
+ * scale: every row is drawn from its own random stream keyed by table and
+ * row number, so rows can be generated in parallel chunks and a service
+ * request can be looked up again when its closed request is written.
+ *
+ * The data is referentially consistent: every car has exactly one owner,
+ * a service request names the car's owner, and a closed request refers to
+ * an existing request and mechanic and is dated on or after it. The data
+ * is skewed the way the reports need it: one customer in fifty runs a
+ * fleet and owns well over 20 cars, a fifth of the cars are older than
+ * 1995, a few cars get most of the service visits and about a tenth of
+ * the bills are 100 or less.
+ *
+ * Rows are written either as CSV files in the data/ format or straight
+ * into COPY as a BulkLoader.TableSource.
+ *
+ */
+
+public class DataGenerator implements BulkLoader.TableSource{
+	static final int CUSTOMERS = 500;
+	static final int MECHANICS = 250;
+	static final int CARS = 5000;
+	static final int REQUESTS = 30000;
+	static final int CHUNK_ROWS = 10000;
+	//one customer in FLEET_EVERY is a fleet owner, and FLEET_SHARE of the cars belong to fleets
+	static final int FLEET_EVERY = 50;
+	static final double FLEET_SHARE = 0.3;
+	//HOT_SHARE of the visits go to the first HOT_CARS share of the cars
+	static final double HOT_CARS = 0.05;
+	static final double HOT_SHARE = 0.2;
+	static final double PRE_1995_SHARE = 0.2;
+	static final double CLOSED_SHARE = 0.9;
+	static final double SMALL_BILL_SHARE = 0.1;
+	static final long FIRST_DAY = LocalDate.of(2014, 1, 1).toEpochDay();
+	static final int DAYS = 10 * 365;
+
+	static final String[] FIRST_NAMES = { "Aaron", "Abbey", "Adele", "Aida", "Alberto", "Alec", "Alexandria", "Alfonso",
+		"Allan", "Amalia", "Annette", "Armand", "Blythe", "Carmen", "Darnell", "Elena", "Felix", "Gloria", "Hector",
+		"Ingrid", "Jamal", "Keiko", "Leon", "Marta", "Nadia", "Oscar", "Priya", "Rory", "Sofia", "Tobias", "Wyatt", "Yusuf" };
+	static final String[] LAST_NAMES = { "Berner", "Cuyler", "Enderle", "Ruoff", "Santacruz", "Scarlett", "Abbott",
+		"Baptiste", "Castillo", "Dunbar", "Eriksen", "Fontaine", "Gallagher", "Haddad", "Ishikawa", "Jankowski",
+		"Kowalski", "Lindqvist", "Moreau", "Nakamura", "Okafor", "Petrov", "Quintero", "Rasmussen", "Schreiber",
+		"Takahashi", "Uribe", "Vasquez", "Whitaker", "Xiong", "Yamamoto", "Zeller" };
+	static final String[] STREETS = { "Chapel Drive Melbourne", "Bald Hill Street Baton Rouge", "Campfire Ave. Cockeysville",
+		"Young Avenue Oak Forest", "East Warren St. New Brunswick", "Academy Circle Atlanta GA 30303",
+		"Addison Road Greer", "Airport Avenue Gettysburg PA 17325", "Andover Lane Madison Heights MI 48071",
+		"Arcadia Dr. Bedford", "3rd St. Latrobe", "8th St. East Haven CT 06512" };
+	static final String[] MAKES = { "Alfa Romeo", "Aston Martin", "Audi", "BMW", "Cadillac", "Chevrolet", "Citroen",
+		"Dodge", "Ferrari", "Fiat", "Ford", "Honda", "Hyundai", "Jaguar", "Jeep", "Kia", "Lamborghini", "Lexus",
+		"Mazda", "Mercedes-Benz", "Mini", "Nissan", "Opel", "Peugeot", "Porsche", "Renault", "Saab", "Skoda",
+		"Subaru", "Suzuki", "Tesla", "Toyota", "Volkswagen", "Volvo" };
+	static final String[] MODELS = { "C1", "C2", "C3", "C4", "C5", "Camry", "Cooper", "Corolla", "DB7", "DB8",
+		"Elentra", "Impreza", "Jimny", "M1", "M2", "M5", "Passat", "Polo", "Prius", "RX5", "Rio", "Summer", "Sunny" };
+	static final String[] COMPLAINTS = { "Add rockets", "Burns too much gas", "Change oil", "I cannot hear the horn",
+		"I cannot hear the radio", "It came back from space and it makes a funny noise", "It is not fast enough",
+		"It smells funny", "Needs new parachute", "No brakes", "Passenger side is always empty", "Replace windows",
+		"The wheel does not turn right", "The wings do not work" };
+	static final String[] COMMENTS = { "Breaks", "Breaks are ok", "Buy a new Car", "Change Roof", "Changed Oil",
+		"Fixed!!!", "Good Luck", "I do not know", "Made it faster", "Needs new Tires", "This is a bicycle",
+		"We changed the color", "We lost your car", "You are missing an engine" };
+
+	/**
+	 * One generated chunk of rows in COPY text form.
+	 */
+	static class Chunk{
+		final byte[] bytes;
+		final int rows;
+
+		Chunk(byte[] bytes, int rows){
+			this.bytes = bytes;
+			this.rows = rows;
+		}
+	}//end Chunk
+
+	/**
+	 * Receives the generated chunks of one table in order.
+	 */
+	interface ChunkSink{
+		void write(byte[] bytes) throws IOException, SQLException;
+	}
+
+	private final long _seed;
+	private final int _scale;
+	private final int _threads;
+	private final ExecutorService _executor;
+
+	public DataGenerator(long seed, int scale, int threads){
+		if (scale < 1) throw new IllegalArgumentException("Scale must be at least 1");
+		this._seed = seed;
+		this._scale = scale;
+		this._threads = threads;
+		this._executor = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "data-generator");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void close(){
+		this._executor.shutdownNow();
+	}
+
+	int customers(){ return CUSTOMERS * this._scale; }
+	int mechanics(){ return MECHANICS * this._scale; }
+	int cars(){ return CARS * this._scale; }
+	int requests(){ return REQUESTS * this._scale; }
+
+	/**
+	 * Method to write every table as a CSV file in the data/ format, with
+	 * M/d/yyyy HH:mm dates, so BulkLoader.reload(dir) can load it later.
+	 *
+	 * @param dir the output directory, created if missing
+	 * @return the total number of rows written
+	 * @throws java.lang.Exception when a file cannot be written
+	 */
+	public long writeCsv(File dir) throws Exception {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		long total = 0;
+		for (BulkLoader.TableSpec[] level : BulkLoader.LEVELS){
+			for (BulkLoader.TableSpec spec : level){
+				final OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, spec.file)), 1 << 16);
+				try{
+					long rows = generate(spec, false, bytes -> out.write(bytes));
+					System.out.println(spec.file + ": " + rows + " rows");
+					total += rows;
+				}finally{
+					out.close();
+				}//end try
+			}//end for
+		}//end for
+		return total;
+	}//end writeCsv
+
+	/**
+	 * Method to stream one table into an open COPY with ISO dates.
+	 */
+	public long writeTo(BulkLoader.TableSpec spec, final CopyIn copy) throws IOException, SQLException {
+		return generate(spec, true, bytes -> copy.writeToCopy(bytes, 0, bytes.length));
+	}
+
+	/**
+	 * Method to generate one table in chunks on the worker threads and hand
+	 * the chunks to the sink in row order. At most two chunks per thread
+	 * are kept in memory.
+	 */
+	long generate(final BulkLoader.TableSpec spec, final boolean iso, ChunkSink sink) throws IOException, SQLException {
+		final long rows = rowCount(spec);
+		long written = 0;
+		ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+		for (long first = 0; first < rows || !inFlight.isEmpty(); ){
+			if (first < rows && inFlight.size() < 2 * this._threads){
+				final long from = first;
+				final long to = Math.min(rows, first + CHUNK_ROWS);
+				inFlight.add(this._executor.submit(() -> chunk(spec, from, to, iso)));
+				first = to;
+				continue;
+			}//end if
+			Chunk chunk = await(inFlight.poll());
+			sink.write(chunk.bytes);
+			written += chunk.rows;
+		}//end for
+		return written;
+	}//end generate
+
+	private static Chunk await(Future<Chunk> future) throws IOException {
+		try{
+			return future.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating data", e);
+		}catch (ExecutionException e){
+			throw new IOException("Generating data failed: " + e.getCause(), e.getCause());
+		}//end try
+	}
+
+	long rowCount(BulkLoader.TableSpec spec){
+		if (spec == BulkLoader.CUSTOMER) return customers();
+		if (spec == BulkLoader.MECHANIC) return mechanics();
+		if (spec == BulkLoader.CAR || spec == BulkLoader.OWNS) return cars();
+		if (spec == BulkLoader.SERVICE_REQUEST || spec == BulkLoader.CLOSED_REQUEST) return requests();
+		throw new IllegalArgumentException("No generator for " + spec.table);
+	}
+
+	/**
+	 * Method to generate rows from (inclusive) to to (exclusive) of a table.
+	 * For Closed_Request the row numbers are service request ids, some of
+	 * which stay open, so the chunk may hold fewer rows.
+	 */
+	Chunk chunk(BulkLoader.TableSpec spec, long from, long to, boolean iso){
+		StringBuilder sb = new StringBuilder((int) (to - from) * 64);
+		int rows = 0;
+		for (long i = from; i < to; ++i){
+			if (spec == BulkLoader.CUSTOMER) customer(sb, i);
+			else if (spec == BulkLoader.MECHANIC) mechanic(sb, i);
+			else if (spec == BulkLoader.CAR) car(sb, i);
+			else if (spec == BulkLoader.OWNS) owns(sb, i);
+			else if (spec == BulkLoader.SERVICE_REQUEST) request(sb, i, iso);
+			else if (!closedRequest(sb, i, iso)) continue;
+			++rows;
+		}//end for
+		return new Chunk(sb.toString().getBytes(StandardCharsets.UTF_8), rows);
+	}//end chunk
+
+	/**
+	 * Method to return the random stream of one row. The same table and row
+	 * always give the same stream.
+	 */
+	SplittableRandom row(String table, long index){
+		return new SplittableRandom(mix(this._seed * 31 + table.hashCode()) ^ mix(index));
+	}
+
+	//the splitmix64 finalizer
+	static long mix(long z){
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	void customer(StringBuilder sb, long id){
+		SplittableRandom r = row("Customer", id);
+		sb.append(id).append(',').append(pick(r, FIRST_NAMES)).append(',').append(pick(r, LAST_NAMES)).append(',')
+			.append('(').append(100 + r.nextInt(900)).append(')').append(100 + r.nextInt(900)).append('-')
+			.append(1000 + r.nextInt(9000)).append(',').append(1 + r.nextInt(9999)).append(' ').append(pick(r, STREETS)).append('\n');
+	}
+
+	void mechanic(StringBuilder sb, long id){
+		SplittableRandom r = row("Mechanic", id);
+		sb.append(id).append(',').append(pick(r, FIRST_NAMES)).append(',').append(pick(r, LAST_NAMES)).append(',')
+			.append(r.nextInt(40)).append('\n');
+	}
+
+	void car(StringBuilder sb, long index){
+		SplittableRandom r = row("Car", index);
+		int year = r.nextDouble() < PRE_1995_SHARE ? 1970 + r.nextInt(25) : 1995 + r.nextInt(29);
+		appendVin(sb, index);
+		sb.append(',').append(pick(r, MAKES)).append(',').append(pick(r, MODELS)).append(',').append(year).append('\n');
+	}
+
+	void owns(StringBuilder sb, long index){
+		sb.append(index).append(',').append(ownerOf(index)).append(',');
+		appendVin(sb, index);
+		sb.append('\n');
+	}
+
+	void request(StringBuilder sb, long rid, boolean iso){
+		SplittableRandom r = row("Service_Request", rid);
+		long car = requestCar(r);
+		int day = r.nextInt(DAYS);
+		sb.append(rid).append(',').append(ownerOf(car)).append(',');
+		appendVin(sb, car);
+		sb.append(',');
+		appendDate(sb, day, iso);
+		sb.append(',').append(1 + r.nextInt(250000)).append(',').append(pick(r, COMPLAINTS)).append('\n');
+	}
+
+	boolean closedRequest(StringBuilder sb, long rid, boolean iso){
+		SplittableRandom r = row("Closed_Request", rid);
+		if (r.nextDouble() >= CLOSED_SHARE) return false;
+		//replays the request's stream up to its date
+		SplittableRandom request = row("Service_Request", rid);
+		requestCar(request);
+		int day = request.nextInt(DAYS) + r.nextInt(30);
+		int bill = r.nextDouble() < SMALL_BILL_SHARE ? 1 + r.nextInt(100) : 101 + r.nextInt(900);
+		sb.append(rid).append(',').append(rid).append(',').append(r.nextInt(mechanics())).append(',');
+		appendDate(sb, day, iso);
+		sb.append(',').append(pick(r, COMMENTS)).append(',').append(bill).append('\n');
+		return true;
+	}
+
+	/**
+	 * Method to pick the car of a service request, favouring a few cars.
+	 */
+	long requestCar(SplittableRandom r){
+		int hot = Math.max(1, (int) (cars() * HOT_CARS));
+		return r.nextDouble() < HOT_SHARE ? r.nextInt(hot) : r.nextInt(cars());
+	}
+
+	/**
+	 * Method to return the customer owning a car. Fleet customers are the
+	 * ids divisible by FLEET_EVERY.
+	 */
+	long ownerOf(long car){
+		SplittableRandom r = row("Owns", car);
+		int fleets = Math.max(1, customers() / FLEET_EVERY);
+		return r.nextDouble() < FLEET_SHARE ? (long) r.nextInt(fleets) * FLEET_EVERY : r.nextInt(customers());
+	}
+
+	/**
+	 * Method to append the 16 character vin of a car: six letters that
+	 * number the car, scrambled by a multiplier coprime to 26^6 so they stay
+	 * unique, then ten digits.
+	 */
+	void appendVin(StringBuilder sb, long index){
+		long letters = (index * 7919L + 104729L) % 308915776L;
+		for (int i = 0; i < 6; ++i){
+			sb.append((char) ('A' + (int) (letters % 26)));
+			letters /= 26;
+		}//end for
+		long digits = Math.floorMod(mix(this._seed ^ index), 10000000000L);
+		String text = Long.toString(digits);
+		for (int i = text.length(); i < 10; ++i) sb.append('0');
+		sb.append(text);
+	}
+
+	static void appendDate(StringBuilder sb, int day, boolean iso){
+		LocalDate date = LocalDate.ofEpochDay(FIRST_DAY + day);
+		if (iso){
+			sb.append(date.toString());
+		}else{
+			sb.append(date.getMonthValue()).append('/').append(date.getDayOfMonth()).append('/').append(date.getYear()).append(" 00:00");
+		}//end if
+	}
+
+	static String pick(SplittableRandom r, String[] values){
+		return values[r.nextInt(values.length)];
+	}
+}//end DataGenerator
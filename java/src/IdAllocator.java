@@ -0,0 +1,44 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class hands out ids from a database sequence in blocks. One round
+ * trip reserves the next blockSize values; later calls are served from
+ * memory until the block runs out. Values that are reserved but never used
+ * are simply skipped, as with any sequence.
+ *
+ */
+
+public class IdAllocator{
+	static final String NEXT_BLOCK = "SELECT nextval(CAST(? AS regclass)) FROM generate_series(1, ?)";
+
+	private final MechanicShop _esql;
+	private final String _sequence;
+	private final int _blockSize;
+	private int[] _block = new int[0];
+	private int _next = 0;
+
+	public IdAllocator(MechanicShop esql, String sequence, int blockSize){
+		this._esql = esql;
+		this._sequence = sequence;
+		this._blockSize = blockSize;
+	}
+
+	/**
+	 * Method to return the next id, fetching a new block from the sequence
+	 * when the current one is used up.
+	 *
+	 * @return an id no other session will receive
+	 * @throws java.sql.SQLException when the sequence cannot be read
+	 */
+	public synchronized int next() throws SQLException {
+		if (this._next == this._block.length){
+			List<List<String>> rows = this._esql.executeQueryAndReturnResult(NEXT_BLOCK, this._sequence, this._blockSize);
+			this._block = new int[rows.size()];
+			for (int i = 0; i < this._block.length; ++i)
+				this._block[i] = Integer.parseInt(rows.get(i).get(0));
+			this._next = 0;
+		}//end if
+		return this._block[this._next++];
+	}//end next
+}//end IdAllocator
@@ -0,0 +1,162 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * This class lets the operator pick one row of a long listing a page at a
+ * time. Pages are fetched with keyset pagination: the query orders by a
+ * unique key and continues after the last key shown, so every page costs
+ * one index range scan of PAGE_SIZE rows however deep the operator goes.
+ * Going back replays the key the previous page started after.
+ *
+ * The query takes its own parameters first, then an ILIKE pattern for the
+ * filter, the key to continue after, and the row limit, e.g.
+ *
+ *   ... WHERE C.lname = ? AND C.fname ILIKE ? AND C.id > ? ORDER BY C.id LIMIT ?;
+ *
+ * Settings: mechanicshop.pageSize (default 20).
+ *
+ */
+
+public class KeysetPager{
+	static final int PAGE_SIZE = Integer.getInteger("mechanicshop.pageSize", 20);
+	//the first key of a listing on an integer key, ids start at 0
+	static final Integer FIRST_ID = Integer.MIN_VALUE;
+
+	private final MechanicShop _esql;
+	private final String _sql;
+	private final Object[] _params;
+	private final int _keyColumn;
+	private final Object _firstKey;
+	private final Function<String, Object> _parseKey;
+	private final int _pageSize;
+	//the key each earlier page started after, for going back
+	private final Deque<Object> _previous = new ArrayDeque<Object>();
+	private Object _after;
+	private String _filter = "%";
+	private List<List<String>> _page = null;
+	private boolean _more = false;
+
+	/**
+	 * Creates a pager.
+	 *
+	 * @param esql the shop
+	 * @param sql the page query, see the class comment for its parameters
+	 * @param keyColumn the position of the key in the result rows
+	 * @param firstKey a key below every real key, FIRST_ID for integer keys
+	 * @param parseKey turns a key column value back into a bind value
+	 * @param params the query's own parameters
+	 */
+	public KeysetPager(MechanicShop esql, String sql, int keyColumn, Object firstKey, Function<String, Object> parseKey, Object... params){
+		this._esql = esql;
+		this._sql = sql;
+		this._params = params;
+		this._keyColumn = keyColumn;
+		this._firstKey = firstKey;
+		this._parseKey = parseKey;
+		this._pageSize = PAGE_SIZE;
+		this._after = firstKey;
+	}
+
+	/**
+	 * Method to fetch the page after the current key. One extra row is
+	 * asked for to know whether a next page exists.
+	 */
+	private void fetch() throws SQLException {
+		Object[] values = Arrays.copyOf(this._params, this._params.length + 3);
+		values[this._params.length] = this._filter;
+		values[this._params.length + 1] = this._after;
+		values[this._params.length + 2] = this._pageSize + 1;
+		List<List<String>> rows = this._esql.executeQueryAndReturnResult(this._sql, values);
+		this._more = rows.size() > this._pageSize;
+		this._page = this._more ? new ArrayList<List<String>>(rows.subList(0, this._pageSize)) : rows;
+	}
+
+	/**
+	 * Method to return the rows of the current page, fetching the first
+	 * page on first use.
+	 */
+	public List<List<String>> page() throws SQLException {
+		if (this._page == null) fetch();
+		return this._page;
+	}
+
+	/**
+	 * Method to tell whether the listing has no rows at all.
+	 */
+	public boolean isEmpty() throws SQLException {
+		return page().isEmpty() && this._previous.isEmpty() && this._filter.equals("%");
+	}
+
+	public boolean next() throws SQLException {
+		List<List<String>> page = page();
+		if (!this._more) return false;
+		this._previous.push(this._after);
+		this._after = this._parseKey.apply(page.get(page.size() - 1).get(this._keyColumn));
+		fetch();
+		return true;
+	}
+
+	public boolean previous() throws SQLException {
+		if (this._previous.isEmpty()) return false;
+		this._after = this._previous.pop();
+		fetch();
+		return true;
+	}
+
+	/**
+	 * Method to filter the listing on the server and start over from the
+	 * first page.
+	 *
+	 * @param text the text to look for, blank to show everything
+	 */
+	public void filter(String text) throws SQLException {
+		this._filter = text.trim().isEmpty() ? "%" : "%" + text.trim() + "%";
+		this._previous.clear();
+		this._after = this._firstKey;
+		fetch();
+	}
+
+	/**
+	 * Method to page through the listing until the operator picks a row.
+	 *
+	 * @param in the menu's input
+	 * @return the picked row, or null when the operator leaves the listing
+	 */
+	public List<String> choose(BufferedReader in) throws SQLException, IOException {
+		while (true){
+			List<List<String>> page = page();
+			if (page.isEmpty()) System.out.println("(no rows)");
+			for (int i = 0; i < page.size(); ++i)
+				System.out.println((i + 1) + ": " + page.get(i));
+			System.out.println("Pick a number, " + (this._more ? "n next, " : "") + (this._previous.isEmpty() ? "" : "p previous, ")
+				+ "/text to filter, blank to leave:");
+			String line = in.readLine();
+			if (line == null) return null;
+			line = line.trim();
+			if (line.isEmpty()){
+				return null;
+			}else if (line.equalsIgnoreCase("n")){
+				if (!next()) System.out.println("This is the last page");
+			}else if (line.equalsIgnoreCase("p")){
+				if (!previous()) System.out.println("This is the first page");
+			}else if (line.startsWith("/")){
+				filter(line.substring(1));
+			}else{
+				try{
+					int item = Integer.parseInt(line);
+					if (item >= 1 && item <= page.size()) return page.get(item - 1);
+				}catch (NumberFormatException e){
+					// ignored, asked again below.
+				}//end try
+				System.err.println("Input is invalid");
+			}//end if
+		}//end while
+	}//end choose
+}//end KeysetPager
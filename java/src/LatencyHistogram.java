@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, the layout HDR
+ * histograms use: values below 16 get a bucket each, and every power of
+ * two above that is split into 16 equal buckets, so any recorded value is
+ * known to within about 6%. The buckets are a fixed array of atomic
+ * counters, so recording is lock free and allocates nothing.
+ *
+ * Values are nanoseconds.
+ *
+ */
+
+public class LatencyHistogram{
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to count one value.
+	 *
+	 * @param nanos the latency; negative values count as 0
+	 */
+	public void record(long nanos){
+		long value = Math.max(0, nanos);
+		this._counts.incrementAndGet(bucket(value));
+		this._count.incrementAndGet();
+		this._sum.addAndGet(value);
+		long max;
+		while (value > (max = this._max.get()) && !this._max.compareAndSet(max, value)){
+			// retry, another thread raised the max.
+		}
+	}//end record
+
+	static int bucket(long value){
+		if (value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Method to return the largest value that falls into a bucket.
+	 */
+	static long upperBound(int bucket){
+		if (bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Method to estimate a percentile from the buckets. The answer is the
+	 * upper edge of the bucket holding that rank, capped by the largest
+	 * value seen.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds, or 0 when nothing was recorded
+	 */
+	public long percentile(double percentile){
+		long count = this._count.get();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += this._counts.get(i);
+			if (seen >= rank) return Math.min(upperBound(i), this._max.get());
+		}//end for
+		return this._max.get();
+	}//end percentile
+
+	public long getCount(){
+		return this._count.get();
+	}
+
+	public long getSum(){
+		return this._sum.get();
+	}
+
+	public long getMax(){
+		return this._max.get();
+	}
+}//end LatencyHistogram
@@ -0,0 +1,127 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is a small read-through cache for lookups the counter repeats
+ * over and over, such as a returning customer's record. It holds at
+ * most maxSize entries, dropping the least recently used one first, and an
+ * entry older than the time-to-live is loaded again on its next read.
+ *
+ * Writers call invalidate() or clear() after changing the rows behind a key.
+ *
+ */
+
+public class LookupCache<K, V>{
+	/**
+	 * Loads the value for a key on a cache miss.
+	 */
+	public interface Loader<K, V>{
+		V load(K key) throws SQLException;
+	}
+
+	private static class Entry<V>{
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt){
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}//end Entry
+
+	private final String _name;
+	private final int _maxSize;
+	private final long _ttlMillis;
+	private final LinkedHashMap<K, Entry<V>> _entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	//bumped by every invalidation so a load that raced with one is not cached
+	private long _generation = 0;
+
+	public LookupCache(String name, int maxSize, long ttlMillis){
+		this._name = name;
+		this._maxSize = maxSize;
+		this._ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Method to return the cached value for a key, loading and caching it
+	 * when it is missing or expired. The loader runs outside the cache lock
+	 * so a slow query does not block other lookups.
+	 *
+	 * @param key the lookup key
+	 * @param loader loads the value on a miss
+	 * @return the value
+	 * @throws java.sql.SQLException when the loader fails
+	 */
+	public V get(K key, Loader<K, V> loader) throws SQLException {
+		long now = System.currentTimeMillis();
+		long generation;
+		synchronized (this){
+			Entry<V> entry = this._entries.get(key);
+			if (entry != null && entry.expiresAt > now){
+				++this._hits;
+				return entry.value;
+			}//end if
+			if (entry != null) this._entries.remove(key);
+			++this._misses;
+			generation = this._generation;
+		}
+		V value = loader.load(key);
+		synchronized (this){
+			if (generation != this._generation) return value;
+			this._entries.put(key, new Entry<V>(value, System.currentTimeMillis() + this._ttlMillis));
+			Iterator<Map.Entry<K, Entry<V>>> it = this._entries.entrySet().iterator();
+			while (this._entries.size() > this._maxSize && it.hasNext()){
+				it.next();
+				it.remove();
+				++this._evictions;
+			}//end while
+		}
+		return value;
+	}//end get
+
+	public synchronized void invalidate(K key){
+		++this._generation;
+		this._entries.remove(key);
+	}
+
+	public synchronized void clear(){
+		++this._generation;
+		this._entries.clear();
+	}
+
+	public synchronized long getHits(){
+		return this._hits;
+	}
+
+	public synchronized long getMisses(){
+		return this._misses;
+	}
+
+	public synchronized long getEvictions(){
+		return this._evictions;
+	}
+
+	public synchronized int size(){
+		return this._entries.size();
+	}
+
+	public String getName(){
+		return this._name;
+	}
+
+	/**
+	 * Method to summarize the cache counters in one line.
+	 *
+	 * @return the summary
+	 */
+	public synchronized String stats(){
+		long lookups = this._hits + this._misses;
+		return String.format("cache %s size=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d", this._name,
+			this._entries.size(), this._hits, this._misses, lookups == 0 ? 0.0 : 100.0 * this._hits / lookups, this._evictions);
+	}
+}//end LookupCache
@@ -11,17 +11,19 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.List;
+import java.util.Properties;
 
 import javax.management.RuntimeErrorException;
 
@@ -34,10 +36,74 @@
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by every operation
+	private ConnectionPool _pool = null;
+	//connection pinned to a thread by beginTransaction()
+	private final ThreadLocal<ConnectionPool.PooledConnection> _transaction = new ThreadLocal<ConnectionPool.PooledConnection>();
+	//cache invalidations held back until the thread's transaction ends
+	private final ThreadLocal<List<Runnable>> _afterTransaction = new ThreadLocal<List<Runnable>>();
+	//latency, row and error counts for the helpers and operations
+	private final Metrics _metrics = new Metrics (this);
+	//statements over the threshold, logged in the background with their plans
+	private SlowQueryLog _slowQueries = null;
+	//reports running on their own connections, cancellable
+	private ReportRunner _reports = null;
+	//column store for reports 6 to 10, loaded on first use
+	private AnalyticsSnapshot _analytics = null;
+	//old and new values of the writes, written to Audit_Log in the background
+	private AuditQueue _audit = null;
+	//committed changes from every session, published by the V5 triggers
+	private ChangeFeed _changeFeed = null;
+	//monthly partitions of the request tables, when V6 is applied
+	private Partitions _partitions = null;
+	//make/model service counts for report 9, seeded on first use
+	private ServiceCountIndex _serviceCounts = null;
+	//read-through caches for the lookups repeated at the counter
+	static final int CACHE_SIZE = Integer.getInteger("mechanicshop.cache.size", 1000);
+	static final long CACHE_TTL_MILLIS = Long.getLong("mechanicshop.cache.ttlMillis", 60000L);
+	private final LookupCache<Integer, List<List<String>>> _customerById = new LookupCache<Integer, List<List<String>>>("customer-by-id", CACHE_SIZE, CACHE_TTL_MILLIS);
+	private final LookupCache<Integer, List<List<String>>> _requestByRid = new LookupCache<Integer, List<List<String>>>("request-by-rid", CACHE_SIZE, CACHE_TTL_MILLIS);
+	static final int STATEMENT_CACHE_SIZE = Integer.getInteger("mechanicshop.statementCacheSize", 64);
+	static final int POOL_SIZE = Integer.getInteger("mechanicshop.pool.size", 4);
+	static final long POOL_MAX_WAIT_MILLIS = Long.getLong("mechanicshop.pool.maxWaitMillis", 30000L);
+	static final long POOL_IDLE_TIMEOUT_MILLIS = Long.getLong("mechanicshop.pool.idleTimeoutMillis", 600000L);
+	static final int FETCH_SIZE = Integer.getInteger("mechanicshop.fetchSize", 500);
+	static final ResultPrinter.Mode OUTPUT_MODE = ResultPrinter.parseMode(System.getProperty("mechanicshop.output"));
+	static final long POOL_MAX_LIFETIME_MILLIS = Long.getLong("mechanicshop.pool.maxLifetimeMillis", 1800000L);
+	//queries behind menu options 4 to 10, shared with QueryAdvisor
+	static final String CUSTOMERS_BY_LNAME = "SELECT C.lname, C.fname, C.id FROM Customer C WHERE C.lname = ? ;";
+	static final String CARS_BY_OWNER = "SELECT C.make, C.model, C.vin\nFROM Car C, Owns O \nWHERE C.vin = O.car_vin AND O.customer_id = ?;";
+	static final String REQUESTS_BY_CUSTOMER_CAR = "SELECT *\nFROM Service_Request SR\n WHERE SR.customer_id = ? AND SR.car_vin = ?;";
+	//one screen of a listing at a time, see KeysetPager for the trailing filter, key and limit
+	static final String CUSTOMERS_BY_LNAME_PAGE = "SELECT C.lname, C.fname, C.id\nFROM Customer C\nWHERE C.lname = ? AND C.fname ILIKE ? AND C.id > ?\nORDER BY C.id\nLIMIT ?;";
+	//the pages continue after ownership_id and wid, car_vin and rid can repeat
+	static final String CARS_BY_OWNER_PAGE = "SELECT C.make, C.model, C.vin, O.ownership_id\nFROM Car C, Owns O\nWHERE C.vin = O.car_vin AND O.customer_id = ? AND C.make || ' ' || C.model ILIKE ? AND O.ownership_id > ?\nORDER BY O.ownership_id\nLIMIT ?;";
+	static final String CLOSED_BY_MECHANIC_PAGE = "SELECT CR.rid, CR.mid, CR.date, CR.bill, CR.wid\nFROM Closed_Request CR\nWHERE CR.mid = ? AND COALESCE(CR.comment, '') ILIKE ? AND CR.wid > ?\nORDER BY CR.wid\nLIMIT ?;";
+	//reports 6 and 8 only read this many months back when set, so older partitions are pruned
+	static final int REPORT_MONTHS = Integer.getInteger("mechanicshop.reports.months", 0);
+	static final String CLOSED_BY_REQUEST_MECHANIC = "SELECT CR.wid \nFROM Closed_Request CR\nWHERE CR.rid = ? AND CR.mid = ?;";
+	static final String BILL_LESS_THAN_100 = "SELECT DISTINCT  CR.date, C.fname, C.lname, CR.bill,CR.comment\nFROM Customer C, Closed_Request CR, Service_Request SR\n WHERE CR.bill <= 100 AND  CR.rid = SR.rid AND SR.customer_id = C.id" + recent("CR.date") + "\nORDER BY CR.bill DESC;";
+	static final String MORE_THAN_20_CARS = "SELECT C.fname, C.lname\nFROM Customer C\nWHERE 20 < ( SELECT COUNT(O.customer_id)\nFROM Owns O\nWHERE O.customer_id = C.id);";
+	static final String BEFORE_1995_UNDER_50000 = "SELECT C.make, C.model, C.year\nFROM Car C, Service_Request SR\nWHERE C.year < 1995 AND SR.odometer < 50000 AND C.vin = SR.car_vin" + recent("SR.date") + " ;";
+	static final String CUSTOMER_BY_ID = "SELECT C.id, C.fname, C.lname, C.phone, C.address\nFROM Customer C\nWHERE C.id = ?;";
+	static final String REQUEST_BY_RID = "SELECT SR.rid, SR.customer_id, SR.car_vin, SR.date, SR.odometer, SR.complain, SR.row_version\nFROM Service_Request SR\nWHERE SR.rid = ?;";
+	static final String[] REQUEST_COLUMNS = { "rid", "customer_id", "car_vin", "date", "odometer", "complain", "row_version" };
+	static final String TOTAL_BILL_LEADERBOARD = "SELECT C.id, C.fname, C.lname, B.total\nFROM Customer_Bill B, Customer C\nWHERE C.id = B.customer_id\nORDER BY B.total DESC;";
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
+	/**
+	 * Method to return the date condition of a report when REPORT_MONTHS is
+	 * set. It only depends on CURRENT_DATE, so the partitions before it are
+	 * pruned when the statement starts.
+	 * 
+	 * @param column the date column
+	 * @return the condition with a leading AND, or nothing
+	 */
+	static String recent (String column) {
+		if (REPORT_MONTHS <= 0) return "";
+		return " AND " + column + " >= CAST(date_trunc('month', CURRENT_DATE) - interval '" + REPORT_MONTHS + " months' AS date)";
+	}
+
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
@@ -45,8 +111,41 @@ public MechanicShop(String dbname, String dbport, String user, String passwd) th
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			//lets the driver collapse executeBatch() inserts into multi-row INSERTs
+			props.setProperty("reWriteBatchedInserts", "true");
+			this._pool = new ConnectionPool(url, props, POOL_SIZE, POOL_MAX_WAIT_MILLIS,
+				POOL_IDLE_TIMEOUT_MILLIS, POOL_MAX_LIFETIME_MILLIS, STATEMENT_CACHE_SIZE);
+
+			// obtain a first physical connection so a bad URL fails here
+			this._pool.release(this._pool.borrow());
+			this._metrics.start();
+			if (SlowQueryLog.THRESHOLD_MILLIS >= 0)
+				this._slowQueries = new SlowQueryLog(this, SlowQueryLog.THRESHOLD_MILLIS);
+			if (AuditQueue.ENABLED && AuditQueue.tableExists(this))
+				this._audit = new AuditQueue(this);
+			if (ChangeFeed.ENABLED && ChangeFeed.installed(this)){
+				this._changeFeed = new ChangeFeed(this);
+				this._changeFeed.subscribe(new ChangeFeed.Subscriber(){
+					public void onChange(ChangeFeed.Change change) throws SQLException {
+						applyChange(change);
+					}
+
+					public void onReset() throws SQLException {
+						reload();
+					}
+				});
+			}//end if
+			if (Partitions.installed(this)){
+				this._partitions = new Partitions(this);
+				try{
+					this._partitions.ensure();
+				}catch (SQLException e){
+					System.err.println("Could not create the coming partitions: " + e.getMessage());
+				}//end try
+			}//end if
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -54,23 +153,274 @@ public MechanicShop(String dbname, String dbport, String user, String passwd) th
 	        System.exit(-1);
 		}
 	}
+
+	public ConnectionPool getPool(){
+		return this._pool;
+	}
+
+	public Metrics getMetrics(){
+		return this._metrics;
+	}
+
+	public SlowQueryLog getSlowQueryLog(){
+		return this._slowQueries;
+	}
+
+	public AuditQueue getAudit(){
+		return this._audit;
+	}
+
+	public ChangeFeed getChangeFeed(){
+		return this._changeFeed;
+	}
+
+	public Partitions getPartitions(){
+		return this._partitions;
+	}
+
+	/**
+	 * Method to audit one write. Inside a transaction the entry waits for
+	 * the commit.
+	 * 
+	 * @param operation what was done, e.g. insert or update
+	 * @param table the table written
+	 * @param key the key of the row
+	 * @param oldValues the row before as a JSON object, null for an insert
+	 * @param newValues the row after as a JSON object
+	 */
+	public void audit(String operation, String table, String key, String oldValues, String newValues){
+		if (this._audit != null)
+			this._audit.record(new AuditQueue.Entry(System.currentTimeMillis(), operation, table, key, oldValues, newValues), inTransaction());
+	}
+
+	/**
+	 * Method to return the runner for reports, starting its threads on
+	 * first use.
+	 * 
+	 * @return the report runner
+	 */
+	public synchronized ReportRunner getReports(){
+		if (this._reports == null)
+			this._reports = new ReportRunner(this, ReportRunner.PARALLELISM);
+		return this._reports;
+	}
+
+	/**
+	 * Method to return the analytics snapshot, loading it on first use.
+	 * 
+	 * @return the snapshot
+	 * @throws java.sql.SQLException when the first load fails
+	 */
+	public synchronized AnalyticsSnapshot getAnalytics() throws SQLException {
+		if (this._analytics == null){
+			AnalyticsSnapshot snapshot = new AnalyticsSnapshot(this);
+			if (this._changeFeed != null) this._changeFeed.subscribe(snapshot);
+			snapshot.refresh();
+			this._analytics = snapshot;
+		}//end if
+		return this._analytics;
+	}
+
+	/**
+	 * Method to drop the analytics snapshot so the next use loads it
+	 * again, for changes a refresh cannot follow such as deletes.
+	 */
+	private synchronized void dropAnalytics(){
+		if (this._analytics == null) return;
+		if (this._changeFeed != null) this._changeFeed.unsubscribe(this._analytics);
+		this._analytics = null;
+	}
+
+	/**
+	 * Method to bring the caches, the service counts and the analytics
+	 * snapshot in line with a change committed by any session, this one
+	 * included. See V5__change_feed.sql for the fields of each table.
+	 * 
+	 * @param change the committed change
+	 * @throws java.sql.SQLException when a service count lookup fails
+	 */
+	void applyChange(ChangeFeed.Change change) throws SQLException {
+		if (change.op.equals("DELETE")) dropAnalytics();
+		switch (change.table){
+			case "customer":
+				invalidateCustomer(change.intField(0));
+				break;
+			case "service_request":
+				invalidateRequest(change.intField(0));
+				ServiceCountIndex counts;
+				synchronized (this){
+					counts = this._serviceCounts;
+				}
+				//not seeded yet, the seed will count it
+				if (counts != null) counts.apply(this, change);
+				break;
+			default:
+				break;
+		}//end switch
+	}//end applyChange
+
+	/**
+	 * Method to start over from the database after changes the feed may
+	 * have missed.
+	 * 
+	 * @throws java.sql.SQLException when the service counts cannot be seeded
+	 */
+	void reload() throws SQLException {
+		clearCaches();
+		dropAnalytics();
+		ServiceCountIndex counts;
+		synchronized (this){
+			counts = this._serviceCounts;
+		}
+		if (counts != null) counts.seed(this);
+	}
+
+	/**
+	 * Method to print an error an operation caught and count it against the
+	 * operation running on this thread.
+	 * 
+	 * @param e the error
+	 */
+	public void reportError(Exception e){
+		System.err.println(e.getMessage());
+		this._metrics.error(e);
+	}
+
+	/**
+	 * Method to return the make/model service counts behind report 9,
+	 * seeding them from the database on first use.
+	 * 
+	 * @return the service count index
+	 * @throws java.sql.SQLException when the seed query fails
+	 */
+	public synchronized ServiceCountIndex getServiceCounts() throws SQLException {
+		if (this._serviceCounts == null){
+			ServiceCountIndex index = new ServiceCountIndex();
+			index.seed(this);
+			this._serviceCounts = index;
+		}//end if
+		return this._serviceCounts;
+	}
 	
+	/**
+	 * Method to look up a customer by id through the customer cache.
+	 * 
+	 * @param id the customer id
+	 * @return the matching row, or no rows
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public List<List<String>> lookupCustomer (int id) throws SQLException {
+		return this._customerById.get (id, key -> executeQueryAndReturnResult (CUSTOMER_BY_ID, key));
+	}
+
+	/**
+	 * Method to look up a service request by rid through the cache. The
+	 * columns are those of REQUEST_COLUMNS.
+	 * 
+	 * @param rid the service request id
+	 * @return the matching row, or no rows
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public List<List<String>> lookupRequest (int rid) throws SQLException {
+		return this._requestByRid.get (rid, key -> executeQueryAndReturnResult (REQUEST_BY_RID, key));
+	}
+
+	/**
+	 * Method to drop the cached copy of a customer after it changed.
+	 * Inside a transaction it is dropped once it ends, so no other thread
+	 * can cache the old row again between the drop and the commit.
+	 * 
+	 * @param id the customer id
+	 */
+	public void invalidateCustomer (int id) {
+		afterTransaction (() -> this._customerById.invalidate (id));
+	}
+
+	/**
+	 * Method to drop the cached copy of a service request after it changed,
+	 * once the thread's transaction ends when one is open.
+	 * 
+	 * @param rid the service request id
+	 */
+	public void invalidateRequest (int rid) {
+		afterTransaction (() -> this._requestByRid.invalidate (rid));
+	}
+
+	private void afterTransaction (Runnable invalidation) {
+		if (!inTransaction ()){
+			invalidation.run ();
+			return;
+		}//end if
+		List<Runnable> pending = this._afterTransaction.get ();
+		if (pending == null) this._afterTransaction.set (pending = new ArrayList<Runnable> ());
+		pending.add (invalidation);
+	}
+
+	private void runAfterTransaction () {
+		List<Runnable> pending = this._afterTransaction.get ();
+		this._afterTransaction.remove ();
+		if (pending != null)
+			for (Runnable invalidation : pending)
+				invalidation.run ();
+	}
+
+	/**
+	 * Method to empty every lookup cache, used after bulk changes.
+	 */
+	public void clearCaches () {
+		for (LookupCache<?, ?> cache : getCaches ())
+			cache.clear ();
+	}
+
+	public List<LookupCache<?, ?>> getCaches () {
+		List<LookupCache<?, ?>> caches = new ArrayList<LookupCache<?, ?>>();
+		caches.add (this._customerById);
+		caches.add (this._requestByRid);
+		return caches;
+	}
+
+	/**
+	 * Method to print rows that are already in memory, with a header, the
+	 * same way executeQueryAndPrintResult prints a query result.
+	 * 
+	 * @param columns the column names
+	 * @param rows the rows
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the output cannot be written
+	 */
+	public static int printRows (String[] columns, List<List<String>> rows) throws SQLException {
+		ResultPrinter printer = ResultPrinter.to (System.out, OUTPUT_MODE);
+		printer.begin (columns);
+		for (List<String> row : rows)
+			printer.row (row.toArray (new String[0]));
+		printer.end ();
+		return rows.size ();
+	}
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, '?' marks a bind parameter
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			// fetches the cached statement and binds the values
+			PreparedStatement stmt = prepare (pc, sql, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			rows = stmt.executeUpdate ();
+			return rows;
+		}finally{
+			release (pc);
+			finish (sql, params, start, rows);
+		}//end try
 	}//end executeUpdate
 
 	/**
@@ -78,135 +428,467 @@ public void executeUpdate (String sql) throws SQLException {
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param params values bound to the '?' placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		//streams the rows through a cursor into a buffered printer on standard out.
+		ResultPrinter printer = ResultPrinter.to (System.out, OUTPUT_MODE);
+		try{
+			return executeQueryAndStreamResult (query, FETCH_SIZE, printer, params);
+		}finally{
+			printer.end ();
+			this._metrics.recordPrinted (printer.getCharsWritten ());
+		}//end try
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT or a
+	 * statement with RETURNING) and collect the rows with their column names.
+	 *
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the collected result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public QueryResult executeQueryAndCollect (String query, Object... params) throws SQLException {
+		QueryResult result = new QueryResult ();
+		executeQueryAndStreamResult (query, FETCH_SIZE, result, params);
+		return result;
 	}
+
+	/**
+	 * Callback used by executeQueryAndStreamResult. begin() is called once
+	 * with the column names before the first row, then row() once per row.
+	 */
+	public interface RowHandler {
+		default void begin (String[] columnNames) throws SQLException {}
+		void row (String[] values) throws SQLException;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) through
+	 * a server-side cursor.  Rows are fetched fetchSize at a time and handed
+	 * to the handler as they arrive, so memory use does not grow with the
+	 * size of the result.
+	 * 
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler the callback receiving the rows
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStreamResult (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		//time spent in the handler, such as printing, is not the query's
+		long handled = 0;
+		int rowCount = -1;
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			//the driver only uses a cursor outside autocommit mode
+			boolean own = !inTransaction (pc);
+			if (own) pc.getConnection ().setAutoCommit (false);
+			PreparedStatement stmt = prepare (pc, query, params);
+			stmt.setFetchSize (fetchSize);
+			int rows = 0;
+			try{
+				ResultSet rs = stmt.executeQuery ();
+				ResultSetMetaData rsmd = rs.getMetaData ();
+				int numCol = rsmd.getColumnCount ();
+				String[] columns = new String[numCol];
+				for (int i = 1; i <= numCol; ++i)
+					columns[i - 1] = rsmd.getColumnName (i);
+				long before = System.nanoTime ();
+				handler.begin (columns);
+				handled += System.nanoTime () - before;
+				while (rs.next ()){
+					String[] values = new String[numCol];
+					for (int i = 1; i <= numCol; ++i)
+						values[i - 1] = rs.getString (i);
+					before = System.nanoTime ();
+					handler.row (values);
+					handled += System.nanoTime () - before;
+					++rows;
+				}//end while
+				rs.close ();
+			}finally{
+				stmt.setFetchSize (0);
+			}//end try
+			if (own) pc.getConnection ().commit ();
+			rowCount = rows;
+			return rowCount;
+		}finally{
+			release (pc);
+			finish (query, params, start + handled, rowCount);
+		}//end try
+	}//end executeQueryAndStreamResult
+
+	/**
+	 * Method to open a server-side cursor over a query and return it as an
+	 * iterator of records.  The cursor holds a pooled connection until it is
+	 * closed, so callers should use it in a try-with-resources block.
+	 * 
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the open cursor
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openCursor (String query, int fetchSize, Object... params) throws SQLException {
+		//only the time to open the cursor is recorded, rows are read later
+		long start = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			boolean own = !inTransaction (pc);
+			if (own) pc.getConnection ().setAutoCommit (false);
+			PreparedStatement stmt = prepare (pc, query, params);
+			stmt.setFetchSize (fetchSize);
+			//inside a transaction the cursor must neither commit nor release
+			RowCursor cursor = new RowCursor (own ? this._pool : null, pc, stmt, stmt.executeQuery ());
+			finish (query, params, start, 0);
+			return cursor;
+		}catch (SQLException e){
+			release (pc);
+			finish (query, params, start, -1);
+			throw e;
+		}//end try
+	}//end openCursor
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param params values bound to the '?' placeholders in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		int rowCount = -1;
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			//fetches the cached statement and binds the values
+			PreparedStatement stmt = prepare (pc, query, params); 
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			rowCount = result.size ();
+			return result; 
+		}finally{
+			release (pc);
+			finish (query, params, start, rowCount);
+		}//end try
 	}//end executeQueryAndReturnResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bind parameter
+	 * @param params values bound to the '?' placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int recorded = -1;
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			//fetches the cached statement and binds the values
+			PreparedStatement stmt = prepare (pc, query, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			recorded = rowCount;
+			return rowCount;
+		}finally{
+			release (pc);
+			finish (query, params, start, recorded);
+		}//end try
 	}
 	
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * Method to execute an INSERT whose key is generated by the database and
+	 * return that key, read through getGeneratedKeys in the same round trip.
 	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param sql the INSERT statement, '?' marks a bind parameter
+	 * @param keyColumn the generated key column
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the generated key, or -1 when no row was inserted
+	 * @throws java.sql.SQLException when the insert failed
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public int executeInsertAndReturnKey (String sql, String keyColumn, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection pc = acquire ();
+		try{
+			PreparedStatement stmt = pc.getStatements ().prepare (sql, new String[] { keyColumn });
+			bind (stmt, params);
+			rows = stmt.executeUpdate ();
+			ResultSet keys = stmt.getGeneratedKeys ();
+			int key = keys.next () ? keys.getInt (1) : -1;
+			keys.close ();
+			return key;
+		}finally{
+			release (pc);
+			finish (sql, params, start, rows);
+		}//end try
+	}//end executeInsertAndReturnKey
+
+	/**
+	 * Method to start a transaction for the current thread.  Until it is
+	 * committed or rolled back, every helper called from this thread runs
+	 * on the same pooled connection inside that transaction.
+	 * 
+	 * @throws java.sql.SQLException when a transaction is already open
+	 */
+	public void beginTransaction () throws SQLException {
+		if (this._transaction.get () != null)
+			throw new SQLException ("A transaction is already open on this thread");
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			pc.getConnection ().setAutoCommit (false);
+		}catch (SQLException e){
+			this._pool.release (pc);
+			throw e;
+		}//end try
+		this._transaction.set (pc);
+	}//end beginTransaction
+
+	/**
+	 * Method to commit the current thread's transaction and give its
+	 * connection back to the pool.
+	 * 
+	 * @throws java.sql.SQLException when the commit fails
+	 */
+	public void commitTransaction () throws SQLException {
+		ConnectionPool.PooledConnection pc = currentTransaction ();
+		boolean committed = false;
+		try{
+			pc.getConnection ().commit ();
+			committed = true;
+		}finally{
+			this._transaction.remove ();
+			this._pool.release (pc);
+			runAfterTransaction ();
+			//queued after the release, the queue may block while it is full
+			if (this._audit != null){
+				if (committed) this._audit.commit (); else this._audit.rollback ();
+			}//end if
+		}//end try
+	}//end commitTransaction
+
+	/**
+	 * Method to roll back the current thread's transaction and give its
+	 * connection back to the pool.
+	 * 
+	 * @throws java.sql.SQLException when the rollback fails
+	 */
+	public void rollbackTransaction () throws SQLException {
+		ConnectionPool.PooledConnection pc = currentTransaction ();
+		try{
+			pc.getConnection ().rollback ();
+		}finally{
+			if (this._audit != null) this._audit.rollback ();
+			this._transaction.remove ();
+			this._pool.release (pc);
+			//the rows were not changed, but a lookup inside the transaction may have cached them
+			runAfterTransaction ();
+		}//end try
+	}//end rollbackTransaction
+
+	public Savepoint setSavepoint () throws SQLException {
+		Savepoint savepoint = currentTransaction ().getConnection ().setSavepoint ();
+		if (this._audit != null) this._audit.mark (savepoint);
+		return savepoint;
+	}
+
+	public void rollbackToSavepoint (Savepoint savepoint) throws SQLException {
+		boolean rolledBack = false;
+		try{
+			currentTransaction ().getConnection ().rollback (savepoint);
+			rolledBack = true;
+		}finally{
+			//the transaction cannot go on, so it is not left open on this thread
+			if (!rolledBack && inTransaction ()){
+				try{
+					rollbackTransaction ();
+				}catch (SQLException e){
+					// ignored, the original failure is reported.
+				}//end try
+			}//end if
+		}//end try
+		if (this._audit != null) this._audit.rollbackTo (savepoint);
+	}
+
+	public void releaseSavepoint (Savepoint savepoint) throws SQLException {
+		currentTransaction ().getConnection ().releaseSavepoint (savepoint);
+		if (this._audit != null) this._audit.release (savepoint);
+	}
+
+	public boolean inTransaction () {
+		return this._transaction.get () != null;
+	}
+
+	private boolean inTransaction (ConnectionPool.PooledConnection pc) {
+		return pc == this._transaction.get ();
+	}
+
+	private ConnectionPool.PooledConnection currentTransaction () throws SQLException {
+		ConnectionPool.PooledConnection pc = this._transaction.get ();
+		if (pc == null) throw new SQLException ("No transaction is open on this thread");
+		return pc;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to record the end of one helper call in the metrics and, when
+	 * it was slow, in the slow query log.
+	 * 
+	 * @param sql the SQL template
+	 * @param params the bind values
+	 * @param start System.nanoTime() when the call started, moved later by
+	 *              the time the caller spent on the rows, so printing does
+	 *              not count
+	 * @param rows rows returned or affected, negative when the call failed
 	 */
-	public void cleanup(){
+	void finish (String sql, Object[] params, long start, long rows) {
+		this._metrics.recordQuery (sql, start, rows);
+		if (this._slowQueries != null) this._slowQueries.check (sql, params, System.nanoTime () - start, rows);
+	}
+
+	/**
+	 * Method to get the connection for one helper call: the thread's open
+	 * transaction if there is one, otherwise a connection from the pool.
+	 * 
+	 * @return the connection
+	 * @throws java.sql.SQLException when no connection is available
+	 */
+	private ConnectionPool.PooledConnection acquire () throws SQLException {
+		ConnectionPool.PooledConnection pc = this._transaction.get ();
+		return pc != null ? pc : this._pool.borrow ();
+	}
+
+	/**
+	 * Method to give a connection obtained by acquire() back to the pool.
+	 * The connection of an open transaction stays with its thread.
+	 * 
+	 * @param pc the borrowed connection
+	 */
+	private void release (ConnectionPool.PooledConnection pc) {
+		if (!inTransaction (pc)) this._pool.release (pc);
+	}
+
+	/**
+	 * Method to look up the cached prepared statement for an SQL template and
+	 * bind the given values to its placeholders. Strings, numbers and dates
+	 * are bound with their own JDBC types so no quoting is ever needed.
+	 * 
+	 * @param pc the connection whose statement cache is used
+	 * @param sql the SQL template
+	 * @param params values bound to the '?' placeholders in order
+	 * @return the bound statement, owned by the statement cache
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	static PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object... params) throws SQLException {
+		PreparedStatement stmt = pc.getStatements ().prepare (sql);
+		bind (stmt, params);
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Method to bind values to the placeholders of a prepared statement.
+	 * 
+	 * @param stmt the statement
+	 * @param params values bound to the '?' placeholders in order
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i){
+			if (params[i] == null)
+				stmt.setNull (i + 1, Types.OTHER);
+			else
+				stmt.setObject (i + 1, params[i]);
+		}//end for
+	}//end bind
+
+	/**
+	 * Method to parse a date typed at the counter, either as mm/dd/yyyy (an
+	 * optional " hh:mm" suffix is ignored, as in the data files) or as
+	 * yyyy-mm-dd.
+	 * 
+	 * @param text the date string
+	 * @return the parsed date
+	 * @throws java.lang.IllegalArgumentException when the date is not valid
+	 */
+	public static java.sql.Date parseDate (String text) {
+		String value = text.trim ();
+		int space = value.indexOf (' ');
+		if (space > 0) value = value.substring (0, space);
+		String[] parts;
+		int month, day, year;
 		try{
-			if (this._connection != null){
-				this._connection.close ();
+			if (value.indexOf ('/') >= 0){
+				parts = value.split ("/");
+				month = Integer.parseInt (parts[0]);
+				day = Integer.parseInt (parts[1]);
+				year = Integer.parseInt (parts[2]);
+			}else{
+				parts = value.split ("-");
+				year = Integer.parseInt (parts[0]);
+				month = Integer.parseInt (parts[1]);
+				day = Integer.parseInt (parts[2]);
 			}//end if
-		}catch (SQLException e){
-	         // ignored.
+			return java.sql.Date.valueOf (java.time.LocalDate.of (year, month, day));
+		}catch (RuntimeException e){
+			throw new IllegalArgumentException ("Date is not valid: " + text);
 		}//end try
+	}//end parseDate
+
+	/**
+	 * Method to close the pooled physical connections if they are open.
+	 */
+	public void cleanup(){
+		synchronized (this){
+			if (this._reports != null) this._reports.shutdown ();
+		}
+		if (this._audit != null) this._audit.close ();
+		if (this._changeFeed != null) this._changeFeed.close ();
+		this._metrics.close ();
+		if (this._slowQueries != null) this._slowQueries.close ();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -215,10 +897,11 @@ public void cleanup(){
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]");
+			System.err.println (COMMANDS_USAGE);
 			return;
 		}//end if
 		
@@ -242,6 +925,17 @@ public static void main (String[] args) {
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
+
+			//a command after the login arguments runs instead of the menu
+			if (args.length > 3){
+				runCommand (esql, java.util.Arrays.copyOfRange (args, 3, args.length));
+				return;
+			}//end if
+
+			//report 9 is answered from memory, seed it once up front
+			esql.getServiceCounts();
+			//each menu operation is timed as a whole
+			final MechanicShop shop = esql;
 			
 			boolean keepon = true;
 			while(keepon){
@@ -258,22 +952,30 @@ public static void main (String[] args) {
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
 				System.out.println("11. < EXIT");
+				System.out.println("12. CheckServiceCounts");
+				System.out.println("13. QueueReports");
+				System.out.println("14. ReportStatus");
+				System.out.println("15. WhatIfReports");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
 				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+					case 1: shop.getMetrics().time("AddCustomer", () -> AddCustomer(shop)); break;
+					case 2: shop.getMetrics().time("AddMechanic", () -> AddMechanic(shop)); break;
+					case 3: shop.getMetrics().time("AddCar", () -> AddCar(shop)); break;
+					case 4: shop.getMetrics().time("InsertServiceRequest", () -> InsertServiceRequest(shop)); break;
+					case 5: shop.getMetrics().time("CloseServiceRequest", () -> CloseServiceRequest(shop)); break;
+					case 6: shop.getMetrics().time("ListCustomersWithBillLessThan100", () -> ListCustomersWithBillLessThan100(shop)); break;
+					case 7: shop.getMetrics().time("ListCustomersWithMoreThan20Cars", () -> ListCustomersWithMoreThan20Cars(shop)); break;
+					case 8: shop.getMetrics().time("ListCarsBefore1995With50000Milles", () -> ListCarsBefore1995With50000Milles(shop)); break;
+					case 9: shop.getMetrics().time("ListKCarsWithTheMostServices", () -> ListKCarsWithTheMostServices(shop)); break;
+					case 10: shop.getMetrics().time("ListCustomersInDescendingOrderOfTheirTotalBill", () -> ListCustomersInDescendingOrderOfTheirTotalBill(shop)); break;
 					case 11: keepon = false; break;
+					case 12: shop.getMetrics().time("CheckServiceCounts", () -> CheckServiceCounts(shop)); break;
+					case 13: shop.getMetrics().time("QueueReports", () -> QueueReports(shop)); break;
+					case 14: shop.getMetrics().time("ReportStatus", () -> ReportStatus(shop)); break;
+					case 15: shop.getMetrics().time("WhatIfReports", () -> WhatIfReports(shop)); break;
 				}
 			}
 		}catch(Exception e){
@@ -281,6 +983,9 @@ public static void main (String[] args) {
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getPool().stats());
+					for (LookupCache<?, ?> cache : esql.getCaches())
+						System.out.println(cache.stats());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -291,6 +996,116 @@ public static void main (String[] args) {
 		}
 	}
 
+	static final String COMMANDS_USAGE =
+		"Commands:\n" +
+		"  load <data dir>    replace every table with the CSV files over COPY FROM STDIN,\n" +
+		"                     all tables in one transaction once every file has loaded\n" +
+		"  ingest <customer|mechanic|car> <file|->\n" +
+		"                     batch insert CSV rows from a file or standard input\n" +
+		"  migrate [dir]      apply pending versioned migrations from sql/migrations\n" +
+		"  advise [apply]     EXPLAIN ANALYZE the menu queries, flag seq scans and spills;\n" +
+		"                     with apply, run the migrations and compare timings\n" +
+		"  script <file|-> [group size]\n" +
+		"                     replay operations (" + ScriptRunner.OPERATIONS + ")\n" +
+		"                     as JSON or key=value lines, writing one JSON result per line\n" +
+		"  generate <scale> <dir|copy> [seed]\n" +
+		"                     generate a synthetic data set at scale times the bundled one,\n" +
+		"                     as CSV files in dir or loaded straight into the tables\n" +
+		"  serve <port>       serve many counter terminals over TCP with the script line\n" +
+		"                     protocol, sharing one connection pool\n" +
+		"  partitions [ensure | archive <date>]\n" +
+		"                     list the monthly request partitions, create the coming\n" +
+		"                     months, or detach the months before date into the archive schema";
+
+	/**
+	 * Method to run one non-interactive command given on the command line
+	 * after the login arguments.
+	 * 
+	 * @param esql the connected shop
+	 * @param command the command name followed by its arguments
+	 * @throws java.lang.Exception when the command fails
+	 */
+	public static void runCommand(MechanicShop esql, String[] command) throws Exception {
+		switch (command[0]){
+			case "load":
+				new BulkLoader(esql).reload(new File(command.length > 1 ? command[1] : "../data"));
+				esql.clearCaches();
+				break;
+			case "ingest":
+				BatchInserter.Kind kind = BatchInserter.Kind.valueOf(command[1].toUpperCase());
+				Reader input = command.length < 3 || command[2].equals("-") ? new InputStreamReader(System.in) : new FileReader(command[2]);
+				BatchInserter inserter = new BatchInserter(esql, kind, BatchInserter.BATCH_SIZE);
+				try{
+					inserter.ingest(input);
+				}finally{
+					input.close();
+				}
+				inserter.printReport();
+				esql.clearCaches();
+				break;
+			case "migrate":
+				new SchemaMigrator(esql, new File(command.length > 1 ? command[1] : SchemaMigrator.DEFAULT_DIR)).migrate();
+				break;
+			case "advise":
+				boolean apply = command.length > 1 && command[1].equals("apply");
+				new QueryAdvisor(esql).run(apply, new File(SchemaMigrator.DEFAULT_DIR));
+				break;
+			case "script":
+				Reader script = command.length < 2 || command[1].equals("-") ? new InputStreamReader(System.in) : new FileReader(command[1]);
+				int groupSize = command.length > 2 ? Integer.parseInt(command[2]) : ScriptRunner.GROUP_SIZE;
+				java.io.Writer results = new java.io.BufferedWriter(new java.io.OutputStreamWriter(System.out), 1 << 16);
+				try{
+					new ScriptRunner(esql, groupSize).run(script, results);
+				}finally{
+					script.close();
+				}
+				break;
+			case "generate":
+				int scale = Integer.parseInt(command[1]);
+				long seed = command.length > 3 ? Long.parseLong(command[3]) : 42L;
+				DataGenerator generator = new DataGenerator(seed, scale, Runtime.getRuntime().availableProcessors());
+				try{
+					if (command[2].equals("copy")){
+						new BulkLoader(esql).reload(generator);
+						esql.clearCaches();
+						esql.getServiceCounts().seed(esql);
+					}else{
+						generator.writeCsv(new File(command[2]));
+					}//end if
+				}finally{
+					generator.close();
+				}
+				break;
+			case "serve":
+				ShopServer server = new ShopServer(esql, Integer.parseInt(command[1]));
+				esql.getServiceCounts();
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					server.stop();
+					System.out.println(server.stats());
+					System.out.println(esql.getPool().stats());
+					esql.cleanup();
+				}));
+				server.serve();
+				break;
+			case "partitions":
+				Partitions partitions = esql.getPartitions();
+				if (partitions == null){
+					System.err.println("The request tables are not partitioned, run migrate first");
+				}else if (command.length > 2 && command[1].equals("archive")){
+					List<String> archived = partitions.archive(parseDate(command[2]));
+					System.out.println(archived.isEmpty() ? "Nothing to archive" : "Archived " + String.join(", ", archived));
+				}else if (command.length > 1 && command[1].equals("ensure")){
+					System.out.println("Created " + partitions.ensure() + " partitions");
+				}else{
+					partitions.list();
+				}//end if
+				break;
+			default:
+				System.err.println("Unknown command: " + command[0]);
+				System.err.println(COMMANDS_USAGE);
+		}
+	}//end runCommand
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -308,32 +1123,10 @@ public static int readChoice() {
 	}//end readChoice
 
 	public static void AddCustomer(MechanicShop esql){//1
-		int ID;
 		String Fname;
 		String Lname;
 		String Phone;
 		String Address;
-		//Grabbing Customer ID 
-		do{
-			System.out.println("Input Customer ID Number: ");
-			try{
-				ID = Integer.parseInt(in.readLine());
-				String query = "SELECT C.id\nFROM Customer C\nWHERE EXISTS (SELECT C.id FROM CUSTOMER  WHERE C.id = " + ID +");";
-				List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-				if(Query_Results.size() != 0){
-					System.out.println("Customer ID Number already EXISTS:");
-				}
-				else{
-					break;
-				}	
-			}
-
-			catch(Exception e){
-				System.out.println(e);
-				continue;
-			}
-		}while(true);
-
 		//Grabbing Customer Fname
 		do{
 			System.out.println("Input Customer First Name: ");
@@ -396,43 +1189,21 @@ public static void AddCustomer(MechanicShop esql){//1
 		}while(true);
 
 		try{
-			String query = "INSERT INTO Customer(id, fname, lname, phone, address) VALUES ( "+ ID + ",\'" + Fname + "\',\'" + Lname + "\',\'"  + Phone + "\',\'" + Address +  "\');";
-			esql.executeUpdate(query);
+			//the id comes from customer_id_seq, the row comes back through RETURNING
 			System.out.println("RESULT________________________________________________");
-			String Output_query = "SELECT * \n FROM Customer C\n WHERE C.id =" + ID  +";"; 
-			int result = esql.executeQueryAndPrintResult(Output_query);
+			int result = ShopOperations.addCustomer(esql, Fname, Lname, Phone, Address).print();
 			System.out.println(result);
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 	}
 	
 	public static void AddMechanic(MechanicShop esql){//2
 	
-		int ID;
 		String Fname;
 		String Lname;
 		int Experience;
-		//Grabbing Mechanic ID 
-		do{
-			System.out.println("Input Mechanic ID Number: ");
-			try{
-				ID = Integer.parseInt(in.readLine());
-				String query = "SELECT M.id\nFROM Mechanic M\nWHERE EXISTS (SELECT M.id FROM Mechanic WHERE M.id = " + ID +");";
-				List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-				if(Query_Results.size() != 0){
-					System.out.println("Mechanic ID Number already EXISTS:");
-				}
-				else{
-					break;
-				}	
-			}
-			catch(Exception e){
-				System.out.println(e);
-				continue;
-			}
-		}while(true);
 		//Grabbing Mechanic Fname
 		do{
 			System.out.println("Input Mechanic First Name: ");
@@ -479,19 +1250,15 @@ public static void AddMechanic(MechanicShop esql){//2
 
 
 		try{
-			String query = "INSERT INTO Mechanic(id, fname, lname, experience) VALUES ( "+ ID + ",\'" + Fname + "\',\'" + Lname+ "\',\'"  + Experience +  "\');";
-			esql.executeUpdate(query);
-			// esql.executeQueryAndPrintResult(query)
-			// System.out.println(esql.executeQuery(query));
+			//the id comes from mechanic_id_seq
 			System.out.println("RESULT________________________________________________");
-			String Output_query = "SELECT * \n FROM Mechanic M\n WHERE M.id =" + ID  +";"; 
-			int result = esql.executeQueryAndPrintResult(Output_query);
+			int result = ShopOperations.addMechanic(esql, Fname, Lname, Experience).print();
 			System.out.println(result);
 
          	
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 		
 		
@@ -511,8 +1278,8 @@ public static void AddCar(MechanicShop esql){//3
 				if(Vin.length() == 0 || Vin.length() > 16){
 					throw new RuntimeException("Vin greater than 16 or empty");
 				}
-				String query = "SELECT C.vin\nFROM Car C\nWHERE EXISTS (SELECT C.vin FROM Car WHERE C.vin = '" + Vin +"');";
-				List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
+				String query = "SELECT C.vin\nFROM Car C\nWHERE EXISTS (SELECT C.vin FROM Car WHERE C.vin = ?);";
+				List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query, Vin);
 				if(Query_Results.size() != 0){
 					System.out.println("Vin Number already EXISTS:");
 				}
@@ -567,6 +1334,7 @@ public static void AddCar(MechanicShop esql){//3
 				if(Year.length() != 4 || Year.length() == 0){
 					throw new RuntimeException("Year is not vaild!");
 				}
+				Integer.parseInt(Year);
 				break;
 			}
 			catch(Exception e){
@@ -577,46 +1345,17 @@ public static void AddCar(MechanicShop esql){//3
 
 
 		try{
-			String query = "INSERT INTO Car(vin, make, model, year) VALUES ( '"+ Vin +"',\'" + Make + "\',\'" + Model+ "\',\'"  + Year +  "\');";
-			esql.executeUpdate(query);
-			// System.out.println(esql.executeQuery(query));
 			System.out.println("RESULT________________________________________________");
-			String Output_query = "SELECT * \n FROM Car C\n WHERE C.vin = '" + Vin  +"';"; 
-			int result = esql.executeQueryAndPrintResult(Output_query);
+			int result = ShopOperations.addCar(esql, Vin, Make, Model, Integer.parseInt(Year), null).print();
 			System.out.println(result);
 		
          	
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 		
 	}
-	public static int Menu_Option(List<List<String>> query) throws SQLException{
-		int return_index;
-		int row_index = 1;
-		System.out.println(query.size());
-		// if(query.size() >= 0){
-			for(int i = 0; i < query.size(); ++i){
-				System.out.println(row_index + ": " + query.get(i));
-				row_index += 1;
-			}
-			try{
-				return_index = Integer.parseInt(in.readLine());
-				return_index -= 1;
-				return return_index;
-
-			}
-			catch(Exception e){
-				System.err.println("Input is invalid");
-
-			}
-		// }
-		// else{
-			// return 1;
-		// }
-		return 0;
-	}
 	//ADD AN UPDATE FEATURE 
 	public static void InsertServiceRequest(MechanicShop esql){//4
 		//1) get customer lname
@@ -653,15 +1392,15 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 		System.out.println("Grabbing Customer Information ...... ");
 	
 		try{
-	   		String query = "SELECT C.lname, C.fname, C.id FROM Customer C WHERE C.lname = '" + Lname + "' ;";
-			int rowCount = esql.executeQuery(query);
-		   if(rowCount != 0){
-			   //3) list customers with lname
-				List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-				int item = Menu_Option(Query_Results);
-				System.out.println(Query_Results.get(item));
-				String C_id = Query_Results.get(item).get(2);
-				System.out.println("CUSTOMER ID: " + C_id);
+	   		KeysetPager customers = new KeysetPager(esql, CUSTOMERS_BY_LNAME_PAGE, 2, KeysetPager.FIRST_ID, Integer::valueOf, Lname);
+		   if(!customers.isEmpty()){
+			   //3) list customers with lname, a page at a time
+				List<String> customer = customers.choose(in);
+				if(customer != null){
+					System.out.println(customer);
+					String C_id = customer.get(2);
+					System.out.println("CUSTOMER ID: " + C_id);
+				}
 		   }
 		   else{
 			//4) If customer does not exisit create new entry
@@ -671,7 +1410,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 		
 		}
 		catch(Exception e){
-		 System.err.println(e.getMessage());
+		 esql.reportError(e);
 	
 		}
 
@@ -681,6 +1420,12 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			System.out.println("Enter Customer ID from screen");
 			try{
 				CID = Integer.parseInt(in.readLine());
+				List<List<String>> customer = esql.lookupCustomer(CID);
+				if(customer.size() == 0){
+					System.out.println("Customer ID does not EXIST");
+					continue;
+				}
+				System.out.println(customer.get(0));
 				break;
 			}
 			catch(Exception e){
@@ -704,25 +1449,23 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			
 				try{
 					System.out.println("Select Car ");
-					String query = "SELECT C.make, C.model, C.vin\nFROM Car C, Owns O \nWHERE C.vin = O.car_vin AND O.customer_id = " + CID + ";";
-					int rowCount = esql.executeQuery(query);
-					if(rowCount != 0){
-						//5) list all the cars that customer owns
-						List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-						int item = Menu_Option(Query_Results);
-						System.out.println(Query_Results.get(item));
-						C_vin = Query_Results.get(item).get(2);
+					KeysetPager cars = new KeysetPager(esql, CARS_BY_OWNER_PAGE, 3, KeysetPager.FIRST_ID, Integer::valueOf, CID);
+					//5) list the cars that customer owns, a page at a time
+					List<String> car = cars.choose(in);
+					if(car != null){
+						System.out.println(car);
+						C_vin = car.get(2);
 						System.out.println("CAR VIN: " + C_vin);
 					}
 				}
 				catch(Exception e){
-					System.err.println(e.getMessage());
+					esql.reportError(e);
 				}
 			}
 
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 
 		do{
@@ -743,8 +1486,8 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			int input_s = Integer.parseInt(in.readLine());
 			if(input_s == 0){
 				System.out.println("OLD SERVICE REQUEST__________________");
-				String tmp_query = "SELECT *\nFROM Service_Request SR\n WHERE SR.customer_id = " +CID+ " AND SR.car_vin = '"+ Car_vin + "';";
-				int result = esql.executeQueryAndPrintResult(tmp_query);
+				String tmp_query = REQUESTS_BY_CUSTOMER_CAR;
+				int result = esql.executeQueryAndPrintResult(tmp_query, CID, Car_vin);
 				//6) update service request for that car 
 				if(result != 0){
 					// System.out.println(result);
@@ -760,6 +1503,21 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 						}
 	
 					}while(true);
+
+					//the version read here is the one the update is checked against; a
+					//stale cached copy only costs a conflict, which shows the current row
+					Integer Version = null;
+					try{
+						List<List<String>> current = esql.lookupRequest(RID);
+						System.out.println("OLD SERVICE REQUEST:_________________");
+						printRows(REQUEST_COLUMNS, current);
+						if(current.size() != 0){
+							Version = Integer.valueOf(current.get(0).get(6));
+						}
+					}
+					catch(Exception e){
+						esql.reportError(e);
+					}
 	
 					do{
 						System.out.println("Enter ODOMETER RADING:");
@@ -779,7 +1537,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 						System.out.println("Enter DATE AS (mm/dd/yyyy):");
 						try{
 							Date = in.readLine();
-							Date += " 00:00";
+							parseDate(Date);
 							break;
 						}
 						catch(Exception e){
@@ -801,21 +1559,28 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 					}while(true);
 
 					try{
-                        //String u_query = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain ) VALUES ("+ RID + ",\'" + CID + "\',\'" + Car_vin+ "\',\'"  + Date +  "\',\'" + Odometer + "\',\'" + Complain + "\'); ";
-                        String u_query = "UPDATE Service_Request  \nSET date = '"+ Date + "' ,odometer = "+ Odometer +", complain = '" + Complain +"'\nWHERE rid = " + RID + ";";
-                        //esql.executeUpdate(u_query);
-                        String old_query = "SELECT *\nFROM Service_Request SR\nWHERE SR.rid = " + RID + ";";
-                        System.out.println("OLD SERVICE REQUEST:_________________");
-                        int old_result = esql.executeQueryAndPrintResult(old_query);
-                        esql.executeUpdate(u_query);
-                        System.out.println("UPDATE RESULT_______________");
-        	            //int new_result = esql.executeQueryAndPrintResult(u_query);
-                        String update_query = "SELECT *\nFROM Service_Request SR\nWHERE SR.rid = " + RID + ";";
-                        int new_result = esql.executeQueryAndPrintResult(update_query);
+						//applies only while nobody else changed the request since it was read
+						while(true){
+							try{
+								QueryResult updated = ShopOperations.updateRequest(esql, RID, Version, parseDate(Date), Odometer, Complain);
+								System.out.println("UPDATE RESULT_______________");
+								updated.print();
+								break;
+							}
+							catch(ShopOperations.Conflict e){
+								System.out.println("ANOTHER TERMINAL CHANGED THIS REQUEST, CURRENT ROW:_________________");
+								e.getCurrent().print();
+								System.out.println("APPLY YOUR CHANGES ON TOP OF IT (yes(1)/no(0))");
+								if(!"1".equals(in.readLine().trim())){
+									break;
+								}
+								Version = e.getCurrentVersion();
+							}
+						}
 
 					}
 					catch(Exception e){
-						System.err.println("Input is invalid");
+						esql.reportError(e);
 						
 					}
 
@@ -828,26 +1593,6 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			//7) if its a new car create a new serivce request for exisiting customer
 			else{
 
-				do{
-					System.out.println("Enter Service Request ID:");
-					try{
-						RID = Integer.parseInt(in.readLine());
-						String query = "SELECT SR.rid\nFROM Service_Request SR\nWHERE EXISTS (SELECT SR.rid FROM Service_Request WHERE SR.rid = " + RID +");";
-						List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-						if(Query_Results.size() != 0){
-							System.out.println("Serivce_Request already EXISTS:");
-						}
-						else{
-							break;
-						}
-					}
-					catch(Exception e){
-						System.err.println("Input is invalid");
-						continue;
-					}
-
-				}while(true);
-
 				do{
 					System.out.println("Enter ODOMETER RADING:");
 					try{
@@ -866,7 +1611,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 					System.out.println("Enter DATE AS (mm/dd/yyyy):");
 					try{
 						Date = in.readLine();
-						Date += " 00:00";
+						parseDate(Date);
 						break;
 					}
 					catch(Exception e){
@@ -887,11 +1632,11 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 					}
 				}while(true);
 				try{
-					String u_query = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain ) VALUES ("+ RID + ",\'" + CID + "\',\'" + Car_vin+ "\',\'"  + Date +  "\',\'" + Odometer + "\',\'" + Complain + "\'); ";
-					esql.executeUpdate(u_query);
+					//the rid comes from service_request_rid_seq
+					QueryResult request = ShopOperations.openRequest(esql, CID, Car_vin, parseDate(Date), Odometer, Complain);
 					System.out.println("RESULT:______________");
-					String update_query = "SELECT *\nFROM Service_Request SR\nWHERE SR.rid = " + RID + ";";
-                    int new_result = esql.executeQueryAndPrintResult(update_query);
+					request.print();
+					System.out.println("SERVICE REQUEST ID: " + request.first("rid"));
 
 	
 				}
@@ -904,7 +1649,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 
 
@@ -913,13 +1658,9 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 		int Mid;
 		int Rid;
-		int WID;
+		Integer WID;
 		int bill;
-		String CR_rid;
 		String Comment;
-		
-
-
 
 		System.out.println("PLEASE ENTER MECHANIC ID:_______");
 		do{
@@ -936,20 +1677,20 @@ public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 		}while(true);
 
 		try{
-			String query = "SELECT CR.rid, CR.mid\nFROM Closed_Request CR\nWHERE EXISTS\n(SELECT M.id\nFROM Mechanic M\nWHERE M.id = " + Mid + "AND CR.mid = "+Mid+");";
-			List<List<String>> Query_Results = esql.executeQueryAndReturnResult(query);
-			int item = Menu_Option(Query_Results);
-			System.out.println("PLEASE SELECT SERVICE REQUEST ID:");
-			// System.out.println(Query_Results.get(item));
-			CR_rid = Query_Results.get(item).get(0);
-			System.out.println("Service Request: " + CR_rid);
-			if(item == 0){
-				System.out.println("MECHANIC ID DOES NOT EXISTS");
+			KeysetPager closed = new KeysetPager(esql, CLOSED_BY_MECHANIC_PAGE, 4, KeysetPager.FIRST_ID, Integer::valueOf, Mid);
+			if(closed.isEmpty()){
+				System.out.println("NO CLOSED REQUESTS FOR THIS MECHANIC YET");
+			}
+			else{
+				System.out.println("PLEASE SELECT SERVICE REQUEST ID:");
+				List<String> request = closed.choose(in);
+				if(request != null){
+					System.out.println("Service Request: " + request.get(0));
+				}
 			}
-
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 
 		do{
@@ -964,31 +1705,11 @@ public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 			}
 		}while(true);
 
-		try{
-			String query = "SELECT * \nFROM Service_Request SR\nWHERE SR.rid = " + Rid + ";";
-			int new_result = esql.executeQueryAndPrintResult(query);
-			
-		}
-		catch(Exception e){
-			System.err.println(e.getMessage());
-		}
-
-
-		System.out.println("UPDATE SERVICE INTO A CLOSED_REQUEST");
-		try{
-			String query = "SELECT CR.wid \nFROM Closed_Request CR\nWHERE CR.rid = " + Rid + "AND CR.mid = " +Mid +";";
-			System.out.println("CLOSED REQUEST ID:");
-			int new_result = esql.executeQueryAndPrintResult(query);
-			
-		}
-		catch(Exception e){
-			System.err.println(e.getMessage());
-		}
-
-		System.out.println("PLEASE ENTER CLOSED REQUEST ID:_______");
+		System.out.println("PLEASE ENTER CLOSED REQUEST ID (blank for the latest or a new one):_______");
 		do{
 			try{
-				WID = Integer.parseInt(in.readLine());
+				String line = in.readLine().trim();
+				WID = line.isEmpty() ? null : Integer.valueOf(line);
 				break;
 
 			}
@@ -999,15 +1720,6 @@ public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 
 		}while(true);
 
-		try{
-			String query = "SELECT * \nFROM Closed_Request CR\nWHERE CR.wid = " + WID +";";
-			int new_result = esql.executeQueryAndPrintResult(query);
-			
-		}
-		catch(Exception e){
-			System.err.println(e.getMessage());
-		}
-
 		System.out.println("PLEASE UPDATE COMMENT");
 		do{
 			try{
@@ -1036,24 +1748,18 @@ public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 
 		}while(true);
 
-
-
 		try{
-			// String u_query = "INSERT INTO Closed_Request ;";
-			String u_query = "UPDATE Closed_Request  \nSET date = CURRENT_DATE , bill = " + bill  +",comment = '" + Comment +"'\nWHERE wid = " + WID + ";";
-			//esql.executeUpdate(u_query);
-			String old_query = "SELECT *\nFROM Closed_Request CR\nWHERE CR.wid = " + WID + ";";
+			//checks, old row, write and new row in one statement
+			QueryResult result = ShopOperations.closeRequest(esql, Mid, Rid, WID, bill, Comment);
 			System.out.println("OLD CLOSED REQUEST:_________________");
-			int old_result = esql.executeQueryAndPrintResult(old_query);
-			esql.executeUpdate(u_query);
+			System.out.println(result.first("old_wid") == null ? "(new closed request)"
+				: result.first("old_wid") + ", " + result.first("old_date") + ", " + result.first("old_bill") + ", " + result.first("old_comment"));
 			System.out.println("UPDATE RESULT_______________");
-			//int new_result = esql.executeQueryAndPrintResult(u_query);
-			String update_query = "SELECT *\nFROM Closed_Request CR\nWHERE CR.wid = " + WID + ";";
-			int new_result = esql.executeQueryAndPrintResult(update_query);
-
+			System.out.println(result.first("wid") + ", " + result.first("rid") + ", " + result.first("mid") + ", "
+				+ result.first("date") + ", " + result.first("bill") + ", " + result.first("comment"));
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 			
 		}
 	
@@ -1069,20 +1775,10 @@ public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		//Where CR_bill <= 100 CR_rid = SR_rid AND SR_customer_id = C_id
 		//Order By CR_bill DESC
 		try{
-			String query = "SELECT DISTINCT  CR.date, C.fname, C.lname, CR.bill,CR.comment\nFROM Customer C, Closed_Request CR, Service_Request SR\n WHERE CR.bill <= 100 AND  CR.rid = SR.rid AND SR.customer_id = C.id\nORDER BY CR.bill DESC;";
-			// String query = "SELECT DISTINCT C.fname, C.lname, CR.bill\nFROM Customer C, Closed_Request CR, Service_Request SR\n WHERE CR.bill <= 100 AND  CR.rid = SR.rid AND SR.customer_id = C.id\nORDER BY CR.bill DESC;";
-			// if(esql.executeQueryAndPrintResult(query) == 0){
-					// System.out.println("Query does not exist");
-			// }
-			// else{
-					//List<List<String>> List_Res  = esql.executeQueryAndReturnResult(query);
-					//System.out.println(esql.executeQuery(query));
-					int result = esql.executeQueryAndPrintResult(query);
-					// System.out.println(result);
-			// }
+			runReport(esql, 6, 0);
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 		
 	}
@@ -1095,20 +1791,10 @@ public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		//			  From Owns O Customer CC
 		//			  Where O.customer_id = CC.id)
 		try{
-			String query = "SELECT C.fname, C.lname\nFROM Customer C\nWHERE 20 < ( SELECT COUNT(O.customer_id)\nFROM Owns O\nWHERE O.customer_id = C.id);";
-			//String query = "SELECT C.fname, C.lname\n FROM Customer C\n WHERE 20 < (SELECT COUNT(O.ownership_id)\n FROM Owns O, Customer CC\n WHERE O.customer_id = CC.id); ";
-			// String query = "SELECT C.fname, C.lname, COUNT(O.ownership_id) AS count\n FROM Owns O, Customer C\n WHERE 20 < (SELECT count\n FROM Owns OO, Customer CC\n WHERE OO.customer_id = CC.id); ";
-			// if(esql.executeQueryAndPrintResult(query) == 0){
-				// System.out.println("Query does not exist");
-			// }
-			// else{
-				//System.out.println(esql.executeQuery(query));
-				int result = esql.executeQueryAndPrintResult(query);
-				// System.out.println(result);
-			// }
+			runReport(esql, 7, 0);
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 
 
@@ -1119,19 +1805,10 @@ public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		
 
 		try{
-			String query = "SELECT C.make, C.model, C.year\nFROM Car C, Service_Request SR\nWHERE C.year < 1995 AND SR.odometer < 50000 AND C.vin = SR.car_vin ;";
-	
-			// if(esql.executeQueryAndPrintResult(query) == 0){
-				// System.out.println("Query does not exist");
-			// }
-			// else{
-				//System.out.println(esql.executeQuery(query));
-				int result = esql.executeQueryAndPrintResult(query);
-				// System.out.println(result);
-			// }
+			runReport(esql, 8, 0);
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 	}
 	
@@ -1157,43 +1834,164 @@ public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 
 		}while(true);
 		try{
-			String query = "SELECT C.make, C.model, COUNT(SR.rid) AS service\nFROM Car C, Service_Request SR\nWHERE C.vin = SR.car_vin\nGROUP BY C.make, C.model\nORDER BY service DESC LIMIT "  + K_value + ";";
-			// if(esql.executeQueryAndPrintResult(query) == 0){
-				// System.out.println("Query does not exist");
-			// }
-			// else{
-				//System.out.println(esql.executeQuery(query));
-				int result = esql.executeQueryAndPrintResult(query);
-				// System.out.println(result);
-			// }
+			//answered from the in-memory index instead of a GROUP BY over Service_Request
+			ResultPrinter printer = ResultPrinter.to(System.out, OUTPUT_MODE);
+			printer.begin(new String[] { "make", "model", "service" });
+			for (String[] row : esql.getServiceCounts().top(K_value))
+				printer.row(row);
+			printer.end();
+		}
+		catch(Exception e){
+			esql.reportError(e);
+		}
+	}
+
+	public static void CheckServiceCounts(MechanicShop esql){//12
+		try{
+			List<String> diffs = esql.getServiceCounts().verify(esql);
+			if(diffs.size() == 0){
+				System.out.println("Service counts match the database");
+			}
+			else{
+				for(String diff : diffs){
+					System.out.println(diff);
+				}
+				System.out.println(diffs.size() + " differences, reloading service counts");
+				esql.getServiceCounts().seed(esql);
+			}
 		}
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 	}
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
-		//
-		//Select C.fname, C.lname, Count(CR.bill) As total
-		//From Customer C, Closed_Request CR, Service_Request SR, Owns O
-		//Where C.id = O.customer_id AND SR.vin = O.car_vin AND SR.rid = CR.rid 
-		//Group by C.fname, C.lname
-		//Order by total Desc 
+		//Served from Customer_Bill, which the closed_request_bill trigger keeps
+		//current, so the report is an index scan instead of a four-way join.
+		//Totals are per customer id, so customers sharing a name stay apart.
 		try{
-			String query = "SELECT C.fname, C.lname, SUM(CR.bill) AS total\nFROM Customer C, Closed_Request CR, Service_Request SR, Owns O\nWHERE C.id = O.customer_id AND SR.car_vin = O.car_vin AND SR.rid = CR.rid\nGROUP BY C.fname, C.lname\nORDER BY total DESC;";
-			// if(esql.executeQueryAndPrintResult(query) == 0){
-				// System.out.println("Query does not exist");
-			// }
-			// else{
-				//System.out.println(esql.executeQuery(query));
-				int result = esql.executeQueryAndPrintResult(query);
-				// System.out.println(result);
-			// }
+			runReport(esql, 10, 0);
 		}
 
 		catch(Exception e){
-			System.err.println(e.getMessage());
+			esql.reportError(e);
 		}
 		
 	}	
+
+	/**
+	 * Method to run a report on its own connection and print it. On a
+	 * terminal, pressing Enter cancels it.
+	 * 
+	 * @param esql the shop
+	 * @param report the menu option
+	 * @param k the number of rows for report 9
+	 * @throws java.lang.Exception when the report failed
+	 */
+	static void runReport(MechanicShop esql, int report, int k) throws Exception {
+		if (AnalyticsSnapshot.ENABLED){
+			AnalyticsSnapshot snapshot = esql.getAnalytics();
+			snapshot.refreshIfStale();
+			//only report 9 takes k, the others keep their own limits
+			(report == 9 ? snapshot.report(report, k) : snapshot.report(report)).print();
+			return;
+		}//end if
+		ReportRunner reports = esql.getReports();
+		if (System.console() != null) System.out.println("(press Enter to cancel)");
+		reports.await(reports.submit(report, k, false), in);
+	}
+
+	public static void QueueReports(MechanicShop esql){//13
+		//the reports run in parallel, each on its own connection, into files
+		try{
+			System.out.println("Reports to run in the background (6-10, e.g. 6 9 10): ");
+			String[] picks = in.readLine().trim().split("[\\s,]+");
+			int k = 0;
+			for(String pick : picks){
+				if(pick.equals("9") && k == 0){
+					System.out.println("List the number of K cars ________: ");
+					k = Integer.parseInt(in.readLine().trim());
+					if(k <= 0){
+						throw new RuntimeException("Integer K most be greter than 0");
+					}
+				}
+			}
+			for(String pick : picks){
+				if(pick.isEmpty()){
+					continue;
+				}
+				ReportRunner.Task task = esql.getReports().submit(Integer.parseInt(pick), k, true);
+				System.out.println("Queued " + task);
+			}
+		}
+		catch(Exception e){
+			esql.reportError(e);
+		}
+	}
+
+	public static void ReportStatus(MechanicShop esql){//14
+		try{
+			esql.getReports().printStatus(System.out);
+			System.out.println("Report ids to cancel (blank for none): ");
+			String line = in.readLine();
+			if(line == null){
+				return;
+			}
+			for(String id : line.trim().split("[\\s,]+")){
+				if(id.isEmpty()){
+					continue;
+				}
+				ReportRunner.Task task = esql.getReports().getTask(Integer.parseInt(id));
+				if(task == null){
+					System.out.println("No report #" + id);
+				}
+				else{
+					task.cancel();
+					System.out.println("Cancelled " + task);
+				}
+			}
+		}
+		catch(Exception e){
+			esql.reportError(e);
+		}
+	}
+
+	public static void WhatIfReports(MechanicShop esql){//15
+		//reports 6 to 10 with other limits, answered from the in-memory snapshot
+		try{
+			AnalyticsSnapshot snapshot = esql.getAnalytics();
+			System.out.println(snapshot);
+			while(true){
+				System.out.println("Report and limits: 6 [max bill], 7 [min cars], 8 [year] [odometer], 9 [k], 10 [top]; r to refresh, blank to leave: ");
+				String line = in.readLine();
+				if(line == null || line.trim().isEmpty()){
+					break;
+				}
+				String[] words = line.trim().split("\\s+");
+				try{
+					if(words[0].equalsIgnoreCase("r")){
+						long start = System.nanoTime();
+						int rows = snapshot.refresh();
+						System.out.println(rows + " changed rows read in " + String.format("%.1f ms", (System.nanoTime() - start) / 1e6));
+						continue;
+					}
+					int[] limits = new int[words.length - 1];
+					for(int i = 1; i < words.length; ++i){
+						limits[i - 1] = Integer.parseInt(words[i]);
+					}
+					long start = System.nanoTime();
+					QueryResult result = snapshot.report(Integer.parseInt(words[0]), limits);
+					long nanos = System.nanoTime() - start;
+					result.print();
+					System.out.println(result.size() + " rows in " + String.format("%.3f ms", nanos / 1e6));
+				}
+				catch(RuntimeException e){
+					System.err.println(e.getMessage());
+				}
+			}
+		}
+		catch(Exception e){
+			esql.reportError(e);
+		}
+	}
 }
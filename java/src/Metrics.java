@@ -0,0 +1,408 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class collects the shop's latency metrics: a histogram, row count
+ * and error count per SQL template run through the query helpers, a
+ * histogram and error count per menu or script operation, the characters
+ * printed, the time spent waiting for a pooled connection, and the lookup
+ * cache hit rates.
+ *
+ * The numbers are published through JMX as mechanicshop:type=Metrics and
+ * in the Prometheus text format, written to a file every few seconds
+ * (mechanicshop.metrics.file) or served over HTTP at /metrics
+ * (mechanicshop.metrics.port).
+ *
+ */
+
+public class Metrics implements MetricsMBean{
+	static final String FILE = System.getProperty("mechanicshop.metrics.file");
+	static final int PORT = Integer.getInteger("mechanicshop.metrics.port", 0);
+	static final long PERIOD_MILLIS = Long.getLong("mechanicshop.metrics.periodMillis", 10000L);
+	//caps the number of label values, anything past it is counted as "other"
+	static final int MAX_SERIES = 256;
+	static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * Code timed as one operation.
+	 */
+	public interface Operation{
+		void run() throws Exception;
+	}
+
+	/**
+	 * The counters of one SQL template or operation.
+	 */
+	static class Series{
+		final String label;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+
+		Series(String label){
+			this.label = label;
+		}
+	}//end Series
+
+	private final MechanicShop _esql;
+	private final ConcurrentHashMap<String, Series> _queries = new ConcurrentHashMap<String, Series>();
+	private final ConcurrentHashMap<String, Series> _operations = new ConcurrentHashMap<String, Series>();
+	private final AtomicLong _charsPrinted = new AtomicLong();
+	//the operation running on this thread, errors are charged to it
+	private final ThreadLocal<String> _current = new ThreadLocal<String>();
+	private ScheduledExecutorService _fileExport = null;
+	private HttpServer _httpExport = null;
+	private ObjectName _name = null;
+
+	public Metrics(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to register the JMX bean and start the exports configured by
+	 * system properties. A failing export is reported and skipped.
+	 */
+	public void start(){
+		try{
+			this._name = new ObjectName("mechanicshop:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(this._name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, this._name);
+		}catch (Exception e){
+			System.err.println("Metrics are not available over JMX: " + e.getMessage());
+		}//end try
+		if (FILE != null){
+			this._fileExport = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "metrics-export");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this._fileExport.scheduleAtFixedRate(this::writeFile, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+		}//end if
+		if (PORT > 0){
+			try{
+				this._httpExport = HttpServer.create(new InetSocketAddress(PORT), 0);
+				this._httpExport.createContext("/metrics", exchange -> {
+					byte[] body = getPrometheusText().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				});
+				this._httpExport.start();
+			}catch (IOException e){
+				System.err.println("Metrics are not served on port " + PORT + ": " + e.getMessage());
+				this._httpExport = null;
+			}//end try
+		}//end if
+	}//end start
+
+	/**
+	 * Method to stop the exports, writing the metrics file one last time.
+	 */
+	public void close(){
+		if (this._fileExport != null){
+			this._fileExport.shutdownNow();
+			writeFile();
+		}//end if
+		if (this._httpExport != null) this._httpExport.stop(0);
+		try{
+			if (this._name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(this._name))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._name);
+		}catch (Exception e){
+			// ignored.
+		}
+	}//end close
+
+	private static Series series(ConcurrentHashMap<String, Series> map, String key){
+		Series series = map.get(key);
+		if (series != null) return series;
+		if (map.size() >= MAX_SERIES) key = "other";
+		final String label = key;
+		return map.computeIfAbsent(key, k -> new Series(label));
+	}
+
+	/**
+	 * Method to record one run of a query helper.
+	 *
+	 * @param sql the SQL template
+	 * @param startNanos System.nanoTime() when the call started
+	 * @param rows rows returned or affected, negative when the call failed
+	 */
+	public void recordQuery(String sql, long startNanos, long rows){
+		//keyed as exported, so templates differing only in layout share a series
+		Series series = series(this._queries, normalize(sql));
+		series.latency.record(System.nanoTime() - startNanos);
+		if (rows < 0) series.errors.incrementAndGet();
+		else series.rows.addAndGet(rows);
+	}
+
+	public void recordPrinted(long chars){
+		this._charsPrinted.addAndGet(chars);
+	}
+
+	/**
+	 * Method to run and time one menu or script operation. Errors reported
+	 * through error() while it runs are charged to it.
+	 *
+	 * @param name the operation name
+	 * @param op the operation
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public void time(String name, final Operation op) throws Exception {
+		timeCall(name, () -> {
+			op.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Method to run and time one operation that returns a value.
+	 *
+	 * @param name the operation name
+	 * @param op the operation
+	 * @return what the operation returned
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public <T> T timeCall(String name, Callable<T> op) throws Exception {
+		Series series = series(this._operations, name);
+		String outer = this._current.get();
+		this._current.set(name);
+		long start = System.nanoTime();
+		try{
+			return op.call();
+		}catch (Exception e){
+			series.errors.incrementAndGet();
+			throw e;
+		}finally{
+			series.latency.record(System.nanoTime() - start);
+			this._current.set(outer);
+		}//end try
+	}//end timeCall
+
+	/**
+	 * Method to count an error that an operation caught and reported itself.
+	 *
+	 * @param e the error
+	 */
+	public void error(Throwable e){
+		String name = this._current.get();
+		series(this._operations, name == null ? "none" : name).errors.incrementAndGet();
+	}
+
+	public long getQueryCount(){
+		long count = 0;
+		for (Series series : this._queries.values()) count += series.latency.getCount();
+		return count;
+	}
+
+	public long getQueryErrorCount(){
+		long count = 0;
+		for (Series series : this._queries.values()) count += series.errors.get();
+		return count;
+	}
+
+	public long getOperationErrorCount(){
+		long count = 0;
+		for (Series series : this._operations.values()) count += series.errors.get();
+		return count;
+	}
+
+	public long getCharsPrinted(){
+		return this._charsPrinted.get();
+	}
+
+	public double getPoolWaitP99Millis(){
+		return this._esql.getPool().getWaitHistogram().percentile(99) / 1e6;
+	}
+
+	public String[] getQueryTemplates(){
+		return this._queries.keySet().toArray(new String[0]);
+	}
+
+	public String[] getOperations(){
+		return this._operations.keySet().toArray(new String[0]);
+	}
+
+	public double queryPercentileMillis(String template, double percentile){
+		Series series = this._queries.get(normalize(template));
+		return series == null ? 0 : series.latency.percentile(percentile) / 1e6;
+	}
+
+	public double operationPercentileMillis(String operation, double percentile){
+		Series series = this._operations.get(operation);
+		return series == null ? 0 : series.latency.percentile(percentile) / 1e6;
+	}
+
+	/**
+	 * Method to render every metric in the Prometheus text format.
+	 *
+	 * @return the exposition text
+	 */
+	public String getPrometheusText(){
+		StringBuilder sb = new StringBuilder(4096);
+		summary(sb, "mechanicshop_query_seconds", "Latency of the query helpers per SQL template", "sql", this._queries);
+		counter(sb, "mechanicshop_query_rows_total", "Rows returned or affected per SQL template", "sql", this._queries, false);
+		counter(sb, "mechanicshop_query_errors_total", "Failed query helper calls per SQL template", "sql", this._queries, true);
+		summary(sb, "mechanicshop_operation_seconds", "Latency of menu and script operations", "operation", this._operations);
+		counter(sb, "mechanicshop_operation_errors_total", "Errors reported by menu and script operations", "operation", this._operations, true);
+
+		sb.append("# HELP mechanicshop_printed_chars_total Characters written by the result printers\n");
+		sb.append("# TYPE mechanicshop_printed_chars_total counter\n");
+		sb.append("mechanicshop_printed_chars_total ").append(this._charsPrinted.get()).append('\n');
+
+		ConnectionPool pool = this._esql.getPool();
+		LatencyHistogram waits = pool.getWaitHistogram();
+		sb.append("# HELP mechanicshop_pool_wait_seconds Time spent waiting for a pooled connection\n");
+		sb.append("# TYPE mechanicshop_pool_wait_seconds summary\n");
+		quantiles(sb, "mechanicshop_pool_wait_seconds", "", waits);
+		gauge(sb, "mechanicshop_pool_active", "Connections currently borrowed", pool.getActiveCount());
+		gauge(sb, "mechanicshop_pool_idle", "Connections currently idle", pool.getIdleCount());
+		sb.append("# TYPE mechanicshop_pool_timeouts_total counter\n");
+		sb.append("mechanicshop_pool_timeouts_total ").append(pool.getTimeoutCount()).append('\n');
+
+		sb.append("# HELP mechanicshop_cache_requests_total Lookup cache reads by result\n");
+		sb.append("# TYPE mechanicshop_cache_requests_total counter\n");
+		for (LookupCache<?, ?> cache : this._esql.getCaches()){
+			String label = "cache=\"" + escape(cache.getName()) + "\"";
+			sb.append("mechanicshop_cache_requests_total{").append(label).append(",result=\"hit\"} ").append(cache.getHits()).append('\n');
+			sb.append("mechanicshop_cache_requests_total{").append(label).append(",result=\"miss\"} ").append(cache.getMisses()).append('\n');
+		}//end for
+		SlowQueryLog slow = this._esql.getSlowQueryLog();
+		if (slow != null){
+			sb.append("# HELP mechanicshop_slow_queries_total Statements over the slow query threshold\n");
+			sb.append("# TYPE mechanicshop_slow_queries_total counter\n");
+			sb.append("mechanicshop_slow_queries_total{result=\"logged\"} ").append(slow.getLoggedCount()).append('\n');
+			sb.append("mechanicshop_slow_queries_total{result=\"dropped\"} ").append(slow.getDroppedCount()).append('\n');
+		}//end if
+		AuditQueue audit = this._esql.getAudit();
+		if (audit != null){
+			sb.append("# HELP mechanicshop_audit_entries_total Audit entries by stage\n");
+			sb.append("# TYPE mechanicshop_audit_entries_total counter\n");
+			sb.append("mechanicshop_audit_entries_total{stage=\"queued\"} ").append(audit.getQueuedCount()).append('\n');
+			sb.append("mechanicshop_audit_entries_total{stage=\"written\"} ").append(audit.getWrittenCount()).append('\n');
+			sb.append("mechanicshop_audit_entries_total{stage=\"spilled\"} ").append(audit.getSpilledCount()).append('\n');
+			sb.append("# HELP mechanicshop_audit_blocked_total Writes that waited for room in the audit queue\n");
+			sb.append("# TYPE mechanicshop_audit_blocked_total counter\n");
+			sb.append("mechanicshop_audit_blocked_total ").append(audit.getBlockedCount()).append('\n');
+			sb.append("# TYPE mechanicshop_audit_queue_depth gauge\n");
+			sb.append("mechanicshop_audit_queue_depth ").append(audit.getDepth()).append('\n');
+		}//end if
+		ChangeFeed feed = this._esql.getChangeFeed();
+		if (feed != null){
+			sb.append("# HELP mechanicshop_change_feed_total Change feed notifications, failures and resets\n");
+			sb.append("# TYPE mechanicshop_change_feed_total counter\n");
+			sb.append("mechanicshop_change_feed_total{event=\"received\"} ").append(feed.getReceivedCount()).append('\n');
+			sb.append("mechanicshop_change_feed_total{event=\"failed\"} ").append(feed.getFailureCount()).append('\n');
+			sb.append("mechanicshop_change_feed_total{event=\"reset\"} ").append(feed.getResetCount()).append('\n');
+			sb.append("# TYPE mechanicshop_change_feed_listening gauge\n");
+			sb.append("mechanicshop_change_feed_listening ").append(feed.isListening() ? 1 : 0).append('\n');
+		}//end if
+		sb.append("# TYPE mechanicshop_cache_evictions_total counter\n");
+		for (LookupCache<?, ?> cache : this._esql.getCaches())
+			sb.append("mechanicshop_cache_evictions_total{cache=\"").append(escape(cache.getName())).append("\"} ").append(cache.getEvictions()).append('\n');
+		return sb.toString();
+	}//end getPrometheusText
+
+	private static void summary(StringBuilder sb, String name, String help, String labelName, Map<String, Series> map){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" summary\n");
+		for (Series series : sorted(map).values())
+			quantiles(sb, name, labelName + "=\"" + escape(series.label) + "\"", series.latency);
+	}
+
+	private static void quantiles(StringBuilder sb, String name, String labels, LatencyHistogram histogram){
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		for (double q : QUANTILES)
+			sb.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+				.append(histogram.percentile(q * 100) / 1e9).append('\n');
+		String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+		sb.append(name).append("_sum").append(suffix).append(histogram.getSum() / 1e9).append('\n');
+		sb.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, String labelName, Map<String, Series> map, boolean errors){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		for (Series series : sorted(map).values())
+			sb.append(name).append('{').append(labelName).append("=\"").append(escape(series.label)).append("\"} ")
+				.append(errors ? series.errors.get() : series.rows.get()).append('\n');
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help, long value){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static TreeMap<String, Series> sorted(Map<String, Series> map){
+		return new TreeMap<String, Series>(map);
+	}
+
+	/**
+	 * Method to put an SQL template on one line, turning every whitespace
+	 * run into a single space.
+	 */
+	static String normalize(String sql){
+		StringBuilder sb = new StringBuilder(sql.length());
+		boolean space = false;
+		for (int i = 0; i < sql.length(); ++i){
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)){
+				space = sb.length() > 0;
+				continue;
+			}//end if
+			if (space) sb.append(' ');
+			space = false;
+			sb.append(c);
+		}//end for
+		return sb.toString();
+	}
+
+	/**
+	 * Method to turn an SQL template into a label value: normalized, with
+	 * quotes and backslashes escaped.
+	 */
+	static String escape(String value){
+		return normalize(value).replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Method to replace the metrics file with the current numbers. The text
+	 * goes to a temporary file first so scrapers never read half a dump.
+	 */
+	void writeFile(){
+		File target = new File(FILE);
+		File temp = new File(target.getPath() + ".tmp");
+		try{
+			Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8);
+			try{
+				out.write(getPrometheusText());
+			}finally{
+				out.close();
+			}//end try
+			if (!temp.renameTo(target)) throw new IOException("cannot replace " + target);
+		}catch (IOException | RuntimeException e){
+			System.err.println("Writing metrics failed: " + e.getMessage());
+		}//end try
+	}//end writeFile
+}//end Metrics
@@ -0,0 +1,15 @@
+/**
+ * JMX view of the shop metrics, registered as mechanicshop:type=Metrics.
+ */
+public interface MetricsMBean{
+	long getQueryCount();
+	long getQueryErrorCount();
+	long getOperationErrorCount();
+	long getCharsPrinted();
+	double getPoolWaitP99Millis();
+	String[] getQueryTemplates();
+	String[] getOperations();
+	double queryPercentileMillis(String template, double percentile);
+	double operationPercentileMillis(String operation, double percentile);
+	String getPrometheusText();
+}
@@ -0,0 +1,168 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class looks after the monthly partitions of Service_Request and
+ * Closed_Request from migration V6. The coming months are created when the
+ * shop starts, and the month of a request is created before the request is
+ * written if it is missing; a row that still finds no partition goes to
+ * the DEFAULT partition and is moved out when its month is created.
+ *
+ * Old months are archived by detaching their partitions into the archive
+ * schema, where they stay readable until a DBA drops or dumps them. A
+ * request closed after the cutoff goes with its request: its closing is
+ * moved into archive.closed_request_late. The Customer_Bill totals keep
+ * the archived bills. Neither detaching nor the move fires the row
+ * triggers, so every listening shop is told to reload.
+ *
+ * Settings: mechanicshop.partitions.monthsAhead (default 3) and
+ * mechanicshop.partitions.lockTimeoutMillis (default 2000).
+ *
+ */
+
+public class Partitions{
+	static final int MONTHS_AHEAD = Integer.getInteger("mechanicshop.partitions.monthsAhead", 3);
+	static final long LOCK_TIMEOUT_MILLIS = Long.getLong("mechanicshop.partitions.lockTimeoutMillis", 2000L);
+	static final String[] TABLES = { "service_request", "closed_request" };
+	static final String ARCHIVE_SCHEMA = "archive";
+	static final String INSTALLED = "SELECT CAST(to_regproc('create_month_partition') AS text);";
+	//creating a month waits for the writers of the default partition, but not for long
+	static final String CREATE_MONTH = "SELECT set_config('lock_timeout', ?, true), create_month_partition(?, ?);";
+	static final String CREATE_AHEAD = "SELECT set_config('lock_timeout', ?, true), create_month_partitions(?, CURRENT_DATE, CAST(CURRENT_DATE + make_interval(months => ?) AS date));";
+	static final String SPLIT_DEFAULT = "SELECT split_default_partition(?);";
+	static final String LIST = "SELECT P.relname AS table_name, C.relname AS partition, pg_get_expr(C.relpartbound, C.oid) AS bounds, CAST(C.reltuples AS bigint) AS rows\n"
+		+ "FROM pg_inherits I, pg_class C, pg_class P\n"
+		+ "WHERE I.inhparent IN (to_regclass('service_request'), to_regclass('closed_request')) AND C.oid = I.inhrelid AND P.oid = I.inhparent\n"
+		+ "ORDER BY P.relname, C.relname;";
+	static final String MONTHS_BEFORE = "SELECT C.relname\nFROM pg_inherits I, pg_class C\n"
+		+ "WHERE I.inhparent = to_regclass(?) AND C.oid = I.inhrelid AND C.relname ~ '_[0-9]{4}_[0-9]{2}$'\n"
+		+ "\tAND to_date(right(C.relname, 7), 'YYYY_MM') < ?\nORDER BY C.relname;";
+	//closings recorded after the month of their archived request
+	static final String LATE = "closed_request_late";
+	static final String CREATE_LATE = "CREATE TABLE IF NOT EXISTS " + ARCHIVE_SCHEMA + "." + LATE + " (LIKE Closed_Request)";
+	static final String MOVE_LATE = "WITH moved AS (DELETE FROM Closed_Request CR USING Service_Request SR\n"
+		+ "\tWHERE CR.rid = SR.rid AND SR.date < ? AND CR.date >= ? RETURNING CR.*)\n"
+		+ "INSERT INTO " + ARCHIVE_SCHEMA + "." + LATE + " SELECT * FROM moved;";
+	//closings dated before their own request, which would leave it looking open
+	static final String EARLY = "SELECT COUNT(*)\nFROM Closed_Request CR, Service_Request SR\nWHERE CR.rid = SR.rid AND CR.date < ? AND SR.date >= ?;";
+
+	private final MechanicShop _esql;
+	//table and month pairs known to have a partition
+	private final Set<String> _months = ConcurrentHashMap.newKeySet();
+
+	public Partitions(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to tell whether migration V6 has partitioned the tables.
+	 */
+	static boolean installed(MechanicShop esql) throws SQLException {
+		return esql.executeQueryAndReturnResult(INSTALLED).get(0).get(0) != null;
+	}
+
+	/**
+	 * Method to create the partitions of this month and the MONTHS_AHEAD
+	 * after it, and to move the rows of the default partitions into
+	 * partitions of their own.
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int ensure() throws SQLException {
+		int created = 0;
+		for (String table : TABLES){
+			created += Integer.parseInt(this._esql.executeQueryAndReturnResult(CREATE_AHEAD, LOCK_TIMEOUT_MILLIS + "ms", table, MONTHS_AHEAD).get(0).get(1));
+			created += Integer.parseInt(this._esql.executeQueryAndReturnResult(SPLIT_DEFAULT, table).get(0).get(0));
+		}//end for
+		return created;
+	}//end ensure
+
+	/**
+	 * Method to create the partition a row dated date will go to, unless it
+	 * is known to exist. Inside a transaction nothing is created, since the
+	 * transaction may already hold rows the new partition has to take over
+	 * from the default partition; the row goes to the default partition and
+	 * the next ensure() moves it.
+	 *
+	 * @param table service_request or closed_request
+	 * @param date the row's date
+	 */
+	public void ensureMonth(String table, java.sql.Date date){
+		String month = table + " " + date.toString().substring(0, 7);
+		if (this._months.contains(month) || this._esql.inTransaction()) return;
+		try{
+			this._esql.executeQueryAndReturnResult(CREATE_MONTH, LOCK_TIMEOUT_MILLIS + "ms", table, date);
+			this._months.add(month);
+		}catch (SQLException e){
+			// ignored, the row goes to the default partition.
+		}//end try
+	}//end ensureMonth
+
+	/**
+	 * Method to print every partition with its bounds and estimated rows.
+	 *
+	 * @throws java.sql.SQLException when the catalog query fails
+	 */
+	public void list() throws SQLException {
+		this._esql.executeQueryAndPrintResult(LIST);
+	}
+
+	/**
+	 * Method to detach every month before the month of a date into the
+	 * archive schema, all in one transaction, together with the later
+	 * closings of the requests archived. Refused while a closed request
+	 * before that month is dated before its own request.
+	 *
+	 * @param before the first day kept is the first of this date's month
+	 * @return the archived partitions
+	 * @throws java.sql.SQLException when a partition cannot be detached
+	 */
+	public List<String> archive(java.sql.Date before) throws SQLException {
+		java.sql.Date cutoff = java.sql.Date.valueOf(before.toLocalDate().withDayOfMonth(1));
+		List<String> archived = new ArrayList<String>();
+		this._esql.beginTransaction();
+		try{
+			//old rows still in the default partitions get their months first
+			for (String table : TABLES)
+				this._esql.executeQueryAndReturnResult(SPLIT_DEFAULT, table);
+			long early = Long.parseLong(this._esql.executeQueryAndReturnResult(EARLY, cutoff, cutoff).get(0).get(0));
+			if (early > 0)
+				throw new IllegalArgumentException(early + " closed requests before " + cutoff + " are dated before their request, fix their dates first");
+			this._esql.executeUpdate("CREATE SCHEMA IF NOT EXISTS " + ARCHIVE_SCHEMA);
+			//the rows only move, so the bill totals and the change feed stay quiet
+			this._esql.executeUpdate(CREATE_LATE);
+			setTriggers("DISABLE");
+			int late = this._esql.executeUpdate(MOVE_LATE, cutoff, cutoff);
+			setTriggers("ENABLE");
+			if (late > 0) archived.add(late + " later closings into " + ARCHIVE_SCHEMA + "." + LATE);
+			for (String table : TABLES){
+				for (List<String> row : this._esql.executeQueryAndReturnResult(MONTHS_BEFORE, table, cutoff)){
+					this._esql.executeUpdate("ALTER TABLE " + table + " DETACH PARTITION " + row.get(0));
+					this._esql.executeUpdate("ALTER TABLE " + row.get(0) + " SET SCHEMA " + ARCHIVE_SCHEMA);
+					archived.add(ARCHIVE_SCHEMA + "." + row.get(0));
+				}//end for
+			}//end for
+			this._esql.commitTransaction();
+		}catch (SQLException | RuntimeException e){
+			this._esql.rollbackTransaction();
+			throw e;
+		}//end try
+		if (!archived.isEmpty()){
+			this._months.clear();
+			ChangeFeed.publishReset(this._esql);
+			ChangeFeed feed = this._esql.getChangeFeed();
+			if (feed == null || !feed.isListening()) this._esql.reload();
+		}//end if
+		return archived;
+	}//end archive
+
+	private void setTriggers(String action) throws SQLException {
+		this._esql.executeUpdate("ALTER TABLE closed_request " + action + " TRIGGER USER");
+		for (List<String> partition : this._esql.executeQueryAndReturnResult(BulkLoader.PARTITIONS, "closed_request"))
+			this._esql.executeUpdate("ALTER TABLE " + partition.get(0) + " " + action + " TRIGGER USER");
+	}
+}//end Partitions
@@ -0,0 +1,179 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN (ANALYZE, BUFFERS) over the fixed queries behind
+ * menu options 4 to 10 and points out the usual culprits: sequential scans
+ * of the shop tables, hash joins that spill into batches and sorts that go
+ * to disk. With "apply" it runs the pending schema migrations, which carry
+ * the matching index set, and measures again so the effect shows up in a
+ * before/after table.
+ *
+ * Bind values for the lookups are taken from rows that exist, so the plans
+ * reflect real selectivity.
+ *
+ */
+
+public class QueryAdvisor{
+	static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	static final Pattern HASH_BATCHES = Pattern.compile("Batches: (\\d+)");
+	static final Pattern EXECUTION_TIME = Pattern.compile("(?:Execution Time|Total runtime): ([\\d.]+) ms");
+
+	/**
+	 * One canned query with a query that picks sample bind values for it.
+	 */
+	static class Canned{
+		final String option;
+		final String sql;
+		final String sampleSql;
+
+		Canned(String option, String sql, String sampleSql){
+			this.option = option;
+			this.sql = sql;
+			this.sampleSql = sampleSql;
+		}
+	}//end Canned
+
+	static final Canned[] QUERIES = {
+		new Canned("4 customers by lname", MechanicShop.CUSTOMERS_BY_LNAME,
+			"SELECT lname FROM Customer ORDER BY id LIMIT 1"),
+		new Canned("4 cars of customer", MechanicShop.CARS_BY_OWNER,
+			"SELECT customer_id FROM Owns ORDER BY ownership_id LIMIT 1"),
+		new Canned("4 requests of car", MechanicShop.REQUESTS_BY_CUSTOMER_CAR,
+			"SELECT customer_id, car_vin FROM Service_Request ORDER BY rid LIMIT 1"),
+		new Canned("4 customers page", MechanicShop.CUSTOMERS_BY_LNAME_PAGE,
+			"SELECT lname, '%', CAST(" + KeysetPager.FIRST_ID + " AS integer), 21 FROM Customer ORDER BY id LIMIT 1"),
+		new Canned("4 cars of customer page", MechanicShop.CARS_BY_OWNER_PAGE,
+			"SELECT customer_id, '%', CAST(" + KeysetPager.FIRST_ID + " AS integer), 21 FROM Owns ORDER BY ownership_id LIMIT 1"),
+		new Canned("5 closed by mechanic page", MechanicShop.CLOSED_BY_MECHANIC_PAGE,
+			"SELECT mid, '%', CAST(" + KeysetPager.FIRST_ID + " AS integer), 21 FROM Closed_Request ORDER BY wid LIMIT 1"),
+		new Canned("5 closed by request", MechanicShop.CLOSED_BY_REQUEST_MECHANIC,
+			"SELECT rid, mid FROM Closed_Request ORDER BY wid LIMIT 1"),
+		new Canned("6 bill <= 100", MechanicShop.BILL_LESS_THAN_100, null),
+		new Canned("7 more than 20 cars", MechanicShop.MORE_THAN_20_CARS, null),
+		new Canned("8 before 1995", MechanicShop.BEFORE_1995_UNDER_50000, null),
+		new Canned("9 service counts", ServiceCountIndex.SEED_QUERY, null),
+		new Canned("10 total bill", MechanicShop.TOTAL_BILL_LEADERBOARD, null)
+	};
+
+	/**
+	 * What one EXPLAIN ANALYZE run found.
+	 */
+	static class Finding{
+		double millis = -1;
+		final List<String> seqScans = new ArrayList<String>();
+		final List<String> spills = new ArrayList<String>();
+	}//end Finding
+
+	private final MechanicShop _esql;
+
+	public QueryAdvisor(MechanicShop esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to analyze every canned query, optionally apply the migrations
+	 * and analyze again, and print the findings.
+	 *
+	 * @param apply whether pending migrations should be applied
+	 * @param migrations the migration directory
+	 * @throws java.lang.Exception when a query or migration fails
+	 */
+	public void run(boolean apply, File migrations) throws Exception {
+		List<Finding> before = analyzeAll(true);
+		List<Finding> after = null;
+		if (apply){
+			new SchemaMigrator(this._esql, migrations).migrate();
+			after = analyzeAll(false);
+		}else{
+			System.out.println("Run 'advise apply' to create the indexes from " + migrations.getPath());
+		}//end if
+		printTable(before, after);
+	}//end run
+
+	private List<Finding> analyzeAll(boolean verbose) throws SQLException {
+		List<Finding> findings = new ArrayList<Finding>();
+		for (Canned query : QUERIES){
+			Finding finding = analyze(query);
+			findings.add(finding);
+			if (!verbose) continue;
+			for (String table : finding.seqScans)
+				System.out.println("[" + query.option + "] sequential scan on " + table);
+			for (String spill : finding.spills)
+				System.out.println("[" + query.option + "] " + spill);
+		}//end for
+		return findings;
+	}
+
+	/**
+	 * Method to run EXPLAIN (ANALYZE, BUFFERS) on one query and collect the
+	 * sequential scans, spills and execution time from its plan.
+	 */
+	Finding analyze(Canned query) throws SQLException {
+		Finding finding = new Finding();
+		ConnectionPool.PooledConnection pc = this._esql.getPool().borrow();
+		try{
+			Connection conn = pc.getConnection();
+			Object[] params = sample(conn, query.sampleSql);
+			//EXPLAIN ANALYZE really executes the query, keep it out of any commit
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + query.sql);
+			try{
+				MechanicShop.bind(stmt, params);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()){
+					String line = rs.getString(1);
+					Matcher m = SEQ_SCAN.matcher(line);
+					if (m.find() && !finding.seqScans.contains(m.group(1))) finding.seqScans.add(m.group(1));
+					m = HASH_BATCHES.matcher(line);
+					if (m.find() && Integer.parseInt(m.group(1)) > 1) finding.spills.add("hash join spilled into " + m.group(1) + " batches");
+					if (line.contains("external merge") || line.contains("external sort")) finding.spills.add("sort spilled to disk");
+					m = EXECUTION_TIME.matcher(line);
+					if (m.find()) finding.millis = Double.parseDouble(m.group(1));
+				}//end while
+				rs.close();
+			}finally{
+				stmt.close();
+				conn.rollback();
+			}//end try
+		}finally{
+			this._esql.getPool().release(pc);
+		}//end try
+		return finding;
+	}//end analyze
+
+	private static Object[] sample(Connection conn, String sampleSql) throws SQLException {
+		if (sampleSql == null) return new Object[0];
+		PreparedStatement stmt = conn.prepareStatement(sampleSql);
+		try{
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) throw new SQLException("No sample row for: " + sampleSql);
+			Object[] params = new Object[rs.getMetaData().getColumnCount()];
+			for (int i = 0; i < params.length; ++i)
+				params[i] = rs.getObject(i + 1);
+			rs.close();
+			return params;
+		}finally{
+			stmt.close();
+		}//end try
+	}
+
+	private static void printTable(List<Finding> before, List<Finding> after){
+		System.out.println();
+		System.out.println(String.format("%-22s %12s %12s  %-30s %s", "query", "before ms", "after ms", "seq scans before", "seq scans after"));
+		for (int i = 0; i < QUERIES.length; ++i){
+			Finding b = before.get(i);
+			Finding a = after == null ? null : after.get(i);
+			System.out.println(String.format("%-22s %12.3f %12s  %-30s %s", QUERIES[i].option, b.millis,
+				a == null ? "-" : String.format("%.3f", a.millis),
+				String.join(",", b.seqScans), a == null ? "-" : String.join(",", a.seqScans)));
+		}//end for
+	}
+}//end QueryAdvisor
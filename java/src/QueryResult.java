@@ -0,0 +1,72 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds a query result in memory together with its column
+ * names, for callers that hand rows on instead of printing them, such as
+ * the script runner.
+ *
+ */
+
+public class QueryResult implements MechanicShop.RowHandler{
+	private String[] _columns = new String[0];
+	private final List<String[]> _rows = new ArrayList<String[]>();
+
+	public QueryResult(){
+	}
+
+	public QueryResult(String[] columns, List<String[]> rows){
+		this._columns = columns;
+		this._rows.addAll(rows);
+	}
+
+	public void begin(String[] columnNames){
+		this._columns = columnNames;
+	}
+
+	public void row(String[] values){
+		this._rows.add(values);
+	}
+
+	public String[] getColumns(){
+		return this._columns;
+	}
+
+	public List<String[]> getRows(){
+		return this._rows;
+	}
+
+	public int size(){
+		return this._rows.size();
+	}
+
+	/**
+	 * Method to return one column of the first row by name.
+	 *
+	 * @param column the column name
+	 * @return the value, or null when there is no row or no such column
+	 */
+	public String first(String column){
+		if (this._rows.isEmpty()) return null;
+		for (int i = 0; i < this._columns.length; ++i)
+			if (this._columns[i].equals(column)) return this._rows.get(0)[i];
+		return null;
+	}
+
+	/**
+	 * Method to print the result the same way executeQueryAndPrintResult
+	 * prints a query.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the output cannot be written
+	 */
+	public int print() throws SQLException {
+		ResultPrinter printer = ResultPrinter.to(System.out, MechanicShop.OUTPUT_MODE);
+		printer.begin(this._columns);
+		for (String[] row : this._rows)
+			printer.row(row);
+		printer.end();
+		return this._rows.size();
+	}
+}//end QueryResult
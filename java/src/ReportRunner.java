@@ -0,0 +1,333 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the reports behind menu options 6 to 10 as asynchronous
+ * tasks, each on its own pooled connection. A task counts its rows as they
+ * stream in, is bounded by a query timeout, and can be cancelled at any
+ * time, which cancels the statement on the server.
+ *
+ * Reports queued from the menu run in parallel and write to files in the
+ * reports directory; a report picked directly from the menu prints to the
+ * console and can be cancelled by pressing Enter.
+ *
+ * Settings: mechanicshop.reports.timeoutSeconds (default 300),
+ * mechanicshop.reports.dir (default reports),
+ * mechanicshop.reports.parallelism (default one less than the pool size,
+ * so the menu keeps a connection) and mechanicshop.reports.months (reports
+ * 6 and 8 only cover that many months back, default 0 for all of them).
+ *
+ */
+
+public class ReportRunner{
+	static final int TIMEOUT_SECONDS = Integer.getInteger("mechanicshop.reports.timeoutSeconds", 300);
+	static final String DIR = System.getProperty("mechanicshop.reports.dir", "reports");
+	static final int PARALLELISM = Integer.getInteger("mechanicshop.reports.parallelism", Math.max(1, MechanicShop.POOL_SIZE - 1));
+	static final long POLL_MILLIS = 200;
+
+	/**
+	 * Method to return the query behind a report, or null for report 9,
+	 * which is answered from the service count index.
+	 */
+	static String sqlFor(int report){
+		switch (report){
+			case 6: return MechanicShop.BILL_LESS_THAN_100;
+			case 7: return MechanicShop.MORE_THAN_20_CARS;
+			case 8: return MechanicShop.BEFORE_1995_UNDER_50000;
+			case 9: return null;
+			case 10: return MechanicShop.TOTAL_BILL_LEADERBOARD;
+			default: throw new IllegalArgumentException("No report " + report + ", reports are 6 to 10");
+		}
+	}
+
+	/**
+	 * One submitted report.
+	 */
+	public class Task{
+		final int id;
+		final int report;
+		final int k;
+		final File output;
+		final long submitted = System.currentTimeMillis();
+		final AtomicLong rows = new AtomicLong();
+		volatile long started = 0;
+		volatile long finished = 0;
+		volatile boolean cancelled = false;
+		//the statement while it runs, so cancel() can reach it; guarded by
+		//the task so it is never cancelled after its connection went back
+		PreparedStatement running = null;
+		CompletableFuture<Long> future;
+
+		Task(int id, int report, int k, File output){
+			this.id = id;
+			this.report = report;
+			this.k = k;
+			this.output = output;
+		}
+
+		/**
+		 * Method to cancel the report. A running statement is cancelled on
+		 * the server; a queued one never starts.
+		 */
+		public void cancel(){
+			synchronized (this){
+				this.cancelled = true;
+				if (this.running != null){
+					try{
+						this.running.cancel();
+					}catch (SQLException e){
+						// ignored, the row loop stops on the flag as well.
+					}
+				}//end if
+			}
+			this.future.cancel(false);
+		}
+
+		public long getRows(){
+			return this.rows.get();
+		}
+
+		public String state(){
+			if (this.future.isCancelled()) return "cancelled";
+			if (this.future.isCompletedExceptionally()){
+				try{
+					this.future.join();
+				}catch (CompletionException e){
+					return "failed: " + (e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+				}//end try
+			}//end if
+			if (this.future.isDone()) return "done";
+			return this.started == 0 ? "queued" : "running";
+		}
+
+		public String toString(){
+			long end = this.finished != 0 ? this.finished : System.currentTimeMillis();
+			long from = this.started != 0 ? this.started : this.submitted;
+			return String.format("#%-3d report %-2d %-10s %8d rows %7.1f s  %s", this.id, this.report, state(), this.rows.get(),
+				(end - from) / 1000.0, this.output == null ? "console" : this.output.getPath());
+		}
+	}//end Task
+
+	private final MechanicShop _esql;
+	private final ExecutorService _executor;
+	private final AtomicInteger _ids = new AtomicInteger();
+	private final List<Task> _tasks = new ArrayList<Task>();
+
+	public ReportRunner(MechanicShop esql, int parallelism){
+		this._esql = esql;
+		this._executor = Executors.newFixedThreadPool(parallelism, task -> {
+			Thread thread = new Thread(task, "report");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Method to queue a report.
+	 *
+	 * @param report the menu option, 6 to 10
+	 * @param k the number of rows for report 9
+	 * @param toFile whether the rows go to a file in the reports directory
+	 *               instead of the console
+	 * @return the task
+	 */
+	public Task submit(int report, int k, boolean toFile){
+		sqlFor(report);
+		int id = this._ids.incrementAndGet();
+		File output = null;
+		if (toFile){
+			String extension = MechanicShop.OUTPUT_MODE == ResultPrinter.Mode.CSV ? "csv" : MechanicShop.OUTPUT_MODE == ResultPrinter.Mode.TSV ? "tsv" : "txt";
+			output = new File(DIR, "report" + report + "-" + id + "." + extension);
+		}//end if
+		final Task task = new Task(id, report, k, output);
+		task.future = CompletableFuture.supplyAsync(() -> {
+			try{
+				return run(task);
+			}catch (SQLException | IOException e){
+				throw new CompletionException(e);
+			}//end try
+		}, this._executor);
+		synchronized (this._tasks){
+			this._tasks.add(task);
+		}
+		return task;
+	}//end submit
+
+	public List<Task> getTasks(){
+		synchronized (this._tasks){
+			return new ArrayList<Task>(this._tasks);
+		}
+	}
+
+	public Task getTask(int id){
+		for (Task task : getTasks())
+			if (task.id == id) return task;
+		return null;
+	}
+
+	/**
+	 * Method to wait for a console report. On an interactive terminal a
+	 * press of Enter cancels it.
+	 *
+	 * @param task the report
+	 * @param in the menu's input
+	 * @throws java.lang.Exception when the report failed
+	 */
+	public void await(Task task, BufferedReader in) throws Exception {
+		boolean interactive = System.console() != null;
+		while (true){
+			try{
+				task.future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			}catch (TimeoutException e){
+				if (interactive && in.ready()){
+					in.readLine();
+					task.cancel();
+				}//end if
+			}catch (CancellationException e){
+				System.out.println("Report cancelled after " + task.getRows() + " rows");
+				return;
+			}catch (ExecutionException e){
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				throw e;
+			}//end try
+		}//end while
+	}//end await
+
+	/**
+	 * Method to run one report on its own connection, streaming the rows
+	 * into a printer.
+	 *
+	 * @return the number of rows written
+	 */
+	long run(Task task) throws SQLException, IOException {
+		if (task.cancelled) throw new CancellationException();
+		task.started = System.currentTimeMillis();
+		Writer writer;
+		if (task.output == null){
+			writer = new BufferedWriter(new OutputStreamWriter(System.out), ResultPrinter.BUFFER_SIZE);
+		}else{
+			task.output.getParentFile().mkdirs();
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(task.output), StandardCharsets.UTF_8), ResultPrinter.BUFFER_SIZE);
+		}//end if
+		ResultPrinter printer = new ResultPrinter(writer, MechanicShop.OUTPUT_MODE, ResultPrinter.FLUSH_ROWS);
+		try{
+			String sql = sqlFor(task.report);
+			if (sql == null){
+				printer.begin(new String[] { "make", "model", "service" });
+				for (String[] row : this._esql.getServiceCounts().top(task.k)){
+					printer.row(row);
+					task.rows.incrementAndGet();
+				}//end for
+			}else{
+				query(task, sql, printer);
+			}//end if
+			return task.rows.get();
+		}finally{
+			task.finished = System.currentTimeMillis();
+			printer.end();
+			this._esql.getMetrics().recordPrinted(printer.getCharsWritten());
+			if (task.output != null) writer.close();
+		}//end try
+	}//end run
+
+	private void query(Task task, String sql, ResultPrinter printer) throws SQLException {
+		long start = System.nanoTime();
+		//time spent printing is not the query's
+		long printing = 0;
+		long recorded = -1;
+		ConnectionPool.PooledConnection pc = this._esql.getPool().borrow();
+		try{
+			Connection conn = pc.getConnection();
+			//the driver only uses a cursor outside autocommit mode
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = pc.getStatements().prepare(sql);
+			stmt.setFetchSize(MechanicShop.FETCH_SIZE);
+			stmt.setQueryTimeout(TIMEOUT_SECONDS);
+			try{
+				synchronized (task){
+					if (task.cancelled) throw new CancellationException();
+					task.running = stmt;
+				}
+				ResultSet rs = stmt.executeQuery();
+				int numCol = rs.getMetaData().getColumnCount();
+				String[] columns = new String[numCol];
+				for (int i = 1; i <= numCol; ++i)
+					columns[i - 1] = rs.getMetaData().getColumnName(i);
+				long before = System.nanoTime();
+				printer.begin(columns);
+				printing += System.nanoTime() - before;
+				while (rs.next()){
+					if (task.cancelled) throw new CancellationException();
+					String[] values = new String[numCol];
+					for (int i = 1; i <= numCol; ++i)
+						values[i - 1] = rs.getString(i);
+					before = System.nanoTime();
+					printer.row(values);
+					printing += System.nanoTime() - before;
+					task.rows.incrementAndGet();
+				}//end while
+				rs.close();
+				conn.commit();
+				recorded = task.rows.get();
+			}catch (SQLException e){
+				if (task.cancelled) throw new CancellationException();
+				throw e;
+			}finally{
+				synchronized (task){
+					task.running = null;
+				}
+				stmt.setQueryTimeout(0);
+				stmt.setFetchSize(0);
+			}//end try
+		}finally{
+			this._esql.getPool().release(pc);
+			this._esql.finish(sql, new Object[0], start + printing, recorded);
+		}//end try
+	}//end query
+
+	/**
+	 * Method to print every report submitted so far with its progress.
+	 *
+	 * @param out the destination
+	 */
+	public void printStatus(PrintStream out){
+		List<Task> tasks = getTasks();
+		if (tasks.isEmpty()) out.println("No reports queued");
+		for (Task task : tasks)
+			out.println(task);
+	}
+
+	/**
+	 * Method to cancel every report still queued or running and stop the
+	 * worker threads.
+	 */
+	public void shutdown(){
+		for (Task task : getTasks())
+			if (!task.future.isDone()) task.cancel();
+		this._executor.shutdownNow();
+	}
+}//end ReportRunner
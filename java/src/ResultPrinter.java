@@ -0,0 +1,182 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class prints query results through one large buffered writer
+ * instead of one console call per cell. Column names are captured once per
+ * result, and output is flushed every few hundred rows so long reports
+ * still appear progressively.
+ *
+ * Three layouts are supported: tab separated values (the historical
+ * output), comma separated values, and an aligned table. Table widths are
+ * computed per chunk of rows and only ever grow, so the printer never has
+ * to hold the whole result.
+ *
+ */
+
+public class ResultPrinter implements MechanicShop.RowHandler{
+	public enum Mode { TSV, CSV, TABLE }
+
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int FLUSH_ROWS = 512;
+
+	private final Writer _out;
+	private final Mode _mode;
+	private final int _flushRows;
+	private String[] _columns;
+	private int[] _widths;
+	private final List<String[]> _pending = new ArrayList<String[]>();
+	private boolean _headerWritten = false;
+	private int _rowCount = 0;
+	private long _charsWritten = 0;
+
+	public ResultPrinter(Writer out, Mode mode, int flushRows){
+		this._out = out;
+		this._mode = mode;
+		this._flushRows = flushRows;
+	}
+
+	/**
+	 * Method to build a printer writing to the given stream, which is
+	 * usually System.out. The stream itself is never closed.
+	 *
+	 * @param stream the destination stream
+	 * @param mode the output layout
+	 * @return the printer
+	 */
+	public static ResultPrinter to(PrintStream stream, Mode mode){
+		return new ResultPrinter(new BufferedWriter(new OutputStreamWriter(stream), BUFFER_SIZE), mode, FLUSH_ROWS);
+	}
+
+	/**
+	 * Method to read the output layout from a name such as "table".
+	 *
+	 * @param name the layout name, case insensitive
+	 * @return the layout, TSV when the name is null
+	 */
+	public static Mode parseMode(String name){
+		if (name == null) return Mode.TSV;
+		return Mode.valueOf(name.trim().toUpperCase());
+	}
+
+	public void begin(String[] columnNames){
+		this._columns = columnNames;
+		this._widths = new int[columnNames.length];
+		for (int i = 0; i < columnNames.length; ++i)
+			this._widths[i] = columnNames[i].length();
+	}
+
+	public void row(String[] values) throws SQLException {
+		try{
+			if (this._mode == Mode.TABLE){
+				this._pending.add(values);
+				if (this._pending.size() >= this._flushRows) writeTableChunk();
+			}else{
+				if (!this._headerWritten){
+					writeDelimited(this._columns);
+					this._headerWritten = true;
+				}//end if
+				writeDelimited(values);
+			}//end if
+			if (++this._rowCount % this._flushRows == 0) this._out.flush();
+		}catch (IOException e){
+			throw new SQLException("Unable to print result: " + e.getMessage(), e);
+		}//end try
+	}
+
+	/**
+	 * Method to write any rows still held back and flush the writer. It must
+	 * be called once after the last row.
+	 *
+	 * @throws java.sql.SQLException when the output could not be written
+	 */
+	public void end() throws SQLException {
+		try{
+			if (!this._pending.isEmpty()) writeTableChunk();
+			this._out.flush();
+		}catch (IOException e){
+			throw new SQLException("Unable to print result: " + e.getMessage(), e);
+		}//end try
+	}
+
+	public int getRowCount(){
+		return this._rowCount;
+	}
+
+	public long getCharsWritten(){
+		return this._charsWritten;
+	}
+
+	private void writeDelimited(String[] values) throws IOException {
+		char separator = this._mode == Mode.CSV ? ',' : '\t';
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0) write(separator);
+			String value = values[i] == null ? "null" : values[i];
+			if (this._mode == Mode.CSV) writeCsvField(value);
+			else write(value);
+		}//end for
+		write('\n');
+	}
+
+	private void writeCsvField(String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; ++i){
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}//end for
+		if (!quote){
+			write(value);
+			return;
+		}//end if
+		write('"');
+		write(value.replace("\"", "\"\""));
+		write('"');
+	}
+
+	private void writeTableChunk() throws IOException {
+		for (String[] values : this._pending){
+			for (int i = 0; i < values.length; ++i){
+				int length = values[i] == null ? 4 : values[i].length();
+				if (length > this._widths[i]) this._widths[i] = length;
+			}//end for
+		}//end for
+		if (!this._headerWritten){
+			writePadded(this._columns);
+			for (int i = 0; i < this._widths.length; ++i){
+				if (i > 0) write("-+-");
+				for (int j = 0; j < this._widths[i]; ++j) write('-');
+			}//end for
+			write('\n');
+			this._headerWritten = true;
+		}//end if
+		for (String[] values : this._pending)
+			writePadded(values);
+		this._pending.clear();
+	}
+
+	private void writePadded(String[] values) throws IOException {
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0) write(" | ");
+			String value = values[i] == null ? "null" : values[i];
+			write(value);
+			for (int j = value.length(); j < this._widths[i]; ++j) write(' ');
+		}//end for
+		write('\n');
+	}
+
+	private void write(String value) throws IOException {
+		this._out.write(value);
+		this._charsWritten += value.length();
+	}
+
+	private void write(char c) throws IOException {
+		this._out.write(c);
+		++this._charsWritten;
+	}
+}//end ResultPrinter
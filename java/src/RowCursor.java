@@ -0,0 +1,76 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This class walks a query result held open as a server-side cursor. Only
+ * one fetch batch is kept in memory at a time. The pooled connection that
+ * owns the cursor is given back to the pool when the cursor is closed,
+ * unless the cursor was opened inside a caller's transaction (pool null).
+ *
+ */
+
+public class RowCursor implements Iterator<List<String>>, AutoCloseable{
+	private final ConnectionPool _pool;
+	private ConnectionPool.PooledConnection _pc;
+	private final PreparedStatement _stmt;
+	private final ResultSet _rs;
+	private final String[] _columns;
+	private boolean _hasNext;
+
+	RowCursor(ConnectionPool pool, ConnectionPool.PooledConnection pc, PreparedStatement stmt, ResultSet rs) throws SQLException {
+		this._pool = pool;
+		this._pc = pc;
+		this._stmt = stmt;
+		this._rs = rs;
+		ResultSetMetaData rsmd = rs.getMetaData();
+		this._columns = new String[rsmd.getColumnCount()];
+		for (int i = 1; i <= this._columns.length; ++i)
+			this._columns[i - 1] = rsmd.getColumnName(i);
+		this._hasNext = rs.next();
+	}
+
+	public String[] getColumnNames(){
+		return this._columns.clone();
+	}
+
+	public boolean hasNext(){
+		return this._hasNext;
+	}
+
+	public List<String> next(){
+		if (!this._hasNext) throw new NoSuchElementException();
+		try{
+			List<String> record = new ArrayList<String>(this._columns.length);
+			for (int i = 1; i <= this._columns.length; ++i)
+				record.add(this._rs.getString(i));
+			this._hasNext = this._rs.next();
+			return record;
+		}catch (SQLException e){
+			this._hasNext = false;
+			throw new IllegalStateException(e.getMessage(), e);
+		}//end try
+	}
+
+	/**
+	 * Method to close the cursor and give its connection back to the pool.
+	 * Calling it more than once has no effect.
+	 */
+	public void close(){
+		if (this._pc == null) return;
+		try{
+			this._rs.close();
+			this._stmt.setFetchSize(0);
+			if (this._pool != null) this._pc.getConnection().commit();
+		}catch (SQLException e){
+			// the pool rolls the connection back on release.
+		}//end try
+		if (this._pool != null) this._pool.release(this._pc);
+		this._pc = null;
+	}//end close
+}//end RowCursor
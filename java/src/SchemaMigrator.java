@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class applies the versioned schema changes in sql/migrations on top
+ * of the base schema from create.sql. Files are named V<n>__<description>.sql
+ * and run in version order, each in its own transaction. Applied versions
+ * are recorded in schema_version so every file runs exactly once.
+ *
+ */
+
+public class SchemaMigrator{
+	static final String DEFAULT_DIR = "../sql/migrations";
+	static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+	/**
+	 * One migration file.
+	 */
+	static class Migration implements Comparable<Migration>{
+		final int version;
+		final String description;
+		final File file;
+
+		Migration(int version, String description, File file){
+			this.version = version;
+			this.description = description;
+			this.file = file;
+		}
+
+		public int compareTo(Migration other){
+			return Integer.compare(this.version, other.version);
+		}
+	}//end Migration
+
+	private final MechanicShop _esql;
+	private final File _dir;
+
+	public SchemaMigrator(MechanicShop esql, File dir){
+		this._esql = esql;
+		this._dir = dir;
+	}
+
+	/**
+	 * Method to list the migration files found in the directory, sorted by
+	 * version.
+	 *
+	 * @return the migrations
+	 */
+	public List<Migration> available(){
+		List<Migration> migrations = new ArrayList<Migration>();
+		File[] files = this._dir.listFiles();
+		if (files == null) return migrations;
+		for (File file : files){
+			Matcher m = FILE_NAME.matcher(file.getName());
+			if (m.matches())
+				migrations.add(new Migration(Integer.parseInt(m.group(1)), m.group(2).replace('_', ' '), file));
+		}//end for
+		java.util.Collections.sort(migrations);
+		return migrations;
+	}
+
+	/**
+	 * Method to apply every migration that has not been applied yet.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration fails; it is rolled back
+	 * @throws java.io.IOException when a file cannot be read
+	 */
+	public int migrate() throws SQLException, IOException {
+		ConnectionPool.PooledConnection pc = this._esql.getPool().borrow();
+		Connection conn = pc.getConnection();
+		int applied = 0;
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, description TEXT NOT NULL, applied_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+				Set<Integer> done = new HashSet<Integer>();
+				ResultSet rs = stmt.executeQuery("SELECT version FROM schema_version");
+				while (rs.next())
+					done.add(rs.getInt(1));
+				rs.close();
+
+				for (Migration migration : available()){
+					if (done.contains(migration.version)) continue;
+					System.out.println("Applying V" + migration.version + " " + migration.description + " ...");
+					String sql = new String(Files.readAllBytes(migration.file.toPath()), StandardCharsets.UTF_8);
+					conn.setAutoCommit(false);
+					try{
+						stmt.execute(sql);
+						PreparedStatement record = conn.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)");
+						record.setInt(1, migration.version);
+						record.setString(2, migration.description);
+						record.executeUpdate();
+						record.close();
+						conn.commit();
+					}catch (SQLException e){
+						conn.rollback();
+						throw new SQLException("Migration V" + migration.version + " failed: " + e.getMessage(), e);
+					}finally{
+						conn.setAutoCommit(true);
+					}//end try
+					++applied;
+				}//end for
+			}finally{
+				stmt.close();
+			}//end try
+		}finally{
+			this._esql.getPool().release(pc);
+		}//end try
+		System.out.println(applied == 0 ? "Schema is up to date" : applied + " migrations applied");
+		return applied;
+	}//end migrate
+}//end SchemaMigrator
@@ -0,0 +1,428 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class replays front-desk operations from a script instead of the
+ * menu. Every line holds one command, either as a flat JSON object
+ *
+ *   {"op":"add_car","vin":"1FTRX18W1XKA12345","make":"Ford","model":"F150","year":1999}
+ *
+ * or as the operation name followed by comma separated key=value pairs
+ *
+ *   open_request customer_id=12,vin=1FTRX18W1XKA12345,date=2024-03-01,odometer=42000,complain="brakes, noisy"
+ *
+ * Blank lines and lines starting with '#' are skipped. Commands run in
+ * groups of groupSize inside one transaction, each under its own savepoint,
+ * so a bad line fails alone while the rest of the group still commits in a
+ * single round trip. Each command writes one JSON line with its status and
+ * the rows it returned; results of a group are written once the group has
+ * committed.
+ *
+ */
+
+public class ScriptRunner{
+	static final int GROUP_SIZE = Integer.getInteger("mechanicshop.script.groupSize", 100);
+	static final String OPERATIONS = "add_customer, add_mechanic, add_car, open_request, update_request, close_request, report";
+
+	/**
+	 * One parsed script line.
+	 */
+	public static class Command{
+		final int line;
+		final String op;
+		final Map<String, String> args;
+
+		Command(int line, String op, Map<String, String> args){
+			this.line = line;
+			this.op = op;
+			this.args = args;
+		}
+
+		String text(String key){
+			String value = this.args.get(key);
+			if (value == null) throw new IllegalArgumentException("Missing field " + key);
+			return value;
+		}
+
+		int integer(String key){
+			return Integer.parseInt(text(key).trim());
+		}
+
+		Integer optionalInteger(String key){
+			String value = this.args.get(key);
+			return value == null || value.isEmpty() ? null : Integer.valueOf(value.trim());
+		}
+	}//end Command
+
+	/**
+	 * The result line of a command waiting for its group to commit.
+	 */
+	static class Pending{
+		final int line;
+		final String op;
+		final String json;
+		final boolean ok;
+
+		Pending(int line, String op, String json, boolean ok){
+			this.line = line;
+			this.op = op;
+			this.json = json;
+			this.ok = ok;
+		}
+	}//end Pending
+
+	private final MechanicShop _esql;
+	private final int _groupSize;
+	private int _ok = 0;
+	private int _failed = 0;
+
+	public ScriptRunner(MechanicShop esql, int groupSize){
+		this._esql = esql;
+		this._groupSize = groupSize;
+	}
+
+	/**
+	 * Method to run every command in the script and write one JSON result
+	 * line per command.
+	 *
+	 * @param script the script lines
+	 * @param out receives the results
+	 * @throws java.io.IOException when the script or the output fails
+	 * @throws java.sql.SQLException when a transaction cannot be opened
+	 */
+	public void run(Reader script, Writer out) throws IOException, SQLException {
+		long start = System.nanoTime();
+		BufferedReader reader = new BufferedReader(script, 1 << 16);
+		List<Pending> pending = new ArrayList<Pending>();
+		String line;
+		int lineNo = 0;
+		while ((line = reader.readLine()) != null){
+			++lineNo;
+			Command command;
+			try{
+				command = parse(lineNo, line);
+			}catch (IllegalArgumentException e){
+				pending.add(new Pending(lineNo, null, error(lineNo, null, e.getMessage()), false));
+				continue;
+			}//end try
+			if (command == null) continue;
+
+			if (!this._esql.inTransaction()) this._esql.beginTransaction();
+			Savepoint savepoint = this._esql.setSavepoint();
+			try{
+				QueryResult result = execute(this._esql, command);
+				this._esql.releaseSavepoint(savepoint);
+				pending.add(new Pending(command.line, command.op, ok(command, result), true));
+			}catch (SQLException | RuntimeException e){
+				//any failure, not only bad input, must undo the command and keep the group going
+				this._esql.rollbackToSavepoint(savepoint);
+				pending.add(new Pending(command.line, command.op, failed(command, e), false));
+			}//end try
+			if (pending.size() >= this._groupSize) flush(pending, out);
+		}//end while
+		flush(pending, out);
+		out.flush();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format("%d commands, %d ok, %d failed in %.2f s (%.0f commands/s)",
+			this._ok + this._failed, this._ok, this._failed, seconds, seconds == 0 ? 0.0 : (this._ok + this._failed) / seconds));
+	}//end run
+
+	/**
+	 * Method to commit the open group and write its results. When the commit
+	 * itself fails every command of the group is reported as rolled back.
+	 */
+	private void flush(List<Pending> pending, Writer out) throws IOException, SQLException {
+		String failure = null;
+		if (this._esql.inTransaction()){
+			try{
+				this._esql.commitTransaction();
+			}catch (SQLException e){
+				failure = e.getMessage();
+				//the counter saw services that never committed
+				this._esql.getServiceCounts().seed(this._esql);
+				this._esql.clearCaches();
+			}//end try
+		}//end if
+		for (Pending result : pending){
+			if (failure != null && result.ok){
+				out.write(error(result.line, result.op, "group rolled back: " + failure));
+				++this._failed;
+			}else{
+				out.write(result.json);
+				if (result.ok) ++this._ok; else ++this._failed;
+			}//end if
+			out.write('\n');
+		}//end for
+		pending.clear();
+	}//end flush
+
+	public int getOk(){
+		return this._ok;
+	}
+
+	public int getFailed(){
+		return this._failed;
+	}
+
+	/**
+	 * Method to run one command through ShopOperations.
+	 *
+	 * @param esql the connected shop
+	 * @param command the parsed command
+	 * @return the rows the operation returned
+	 * @throws java.sql.SQLException when the operation fails
+	 */
+	public static QueryResult execute(final MechanicShop esql, final Command command) throws SQLException {
+		try{
+			return esql.getMetrics().timeCall(command.op, () -> run(esql, command));
+		}catch (SQLException | RuntimeException e){
+			throw e;
+		}catch (Exception e){
+			throw new SQLException(e.getMessage(), e);
+		}//end try
+	}
+
+	private static QueryResult run(MechanicShop esql, Command command) throws SQLException {
+		switch (command.op){
+			case "add_customer":
+				return ShopOperations.addCustomer(esql, command.text("fname"), command.text("lname"),
+					command.text("phone"), command.text("address"));
+			case "add_mechanic":
+				return ShopOperations.addMechanic(esql, command.text("fname"), command.text("lname"), command.integer("experience"));
+			case "add_car":
+				return ShopOperations.addCar(esql, command.text("vin"), command.text("make"), command.text("model"),
+					command.integer("year"), command.optionalInteger("owner"));
+			case "open_request":
+				return ShopOperations.openRequest(esql, command.integer("customer_id"), command.text("vin"),
+					MechanicShop.parseDate(command.text("date")), command.integer("odometer"), command.text("complain"));
+			case "update_request":
+				return ShopOperations.updateRequest(esql, command.integer("rid"), command.optionalInteger("version"), MechanicShop.parseDate(command.text("date")),
+					command.integer("odometer"), command.text("complain"));
+			case "close_request":
+				return ShopOperations.closeRequest(esql, command.integer("mid"), command.integer("rid"),
+					command.optionalInteger("wid"), command.integer("bill"), command.text("comment"));
+			case "report":
+				Integer which = command.optionalInteger("n");
+				Integer k = command.optionalInteger("k");
+				return ShopOperations.report(esql, which == null ? 9 : which, k == null ? 10 : k);
+			default:
+				throw new IllegalArgumentException("Unknown operation " + command.op + ", expected one of " + OPERATIONS);
+		}
+	}//end execute
+
+	/**
+	 * Method to parse one script line.
+	 *
+	 * @param lineNo the line number, echoed in the result
+	 * @param line the line text
+	 * @return the command, or null for a blank or comment line
+	 * @throws java.lang.IllegalArgumentException when the line is malformed
+	 */
+	public static Command parse(int lineNo, String line){
+		String text = line.trim();
+		if (text.isEmpty() || text.startsWith("#")) return null;
+		Map<String, String> args;
+		String op;
+		if (text.startsWith("{")){
+			args = parseJson(text);
+			op = args.remove("op");
+			if (op == null) throw new IllegalArgumentException("Missing field op");
+		}else{
+			int end = 0;
+			while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != ',') ++end;
+			op = text.substring(0, end);
+			args = parsePairs(text.substring(end));
+		}//end if
+		return new Command(lineNo, op.toLowerCase(), args);
+	}//end parse
+
+	/**
+	 * Method to split key=value pairs separated by commas. A value may be
+	 * wrapped in double quotes to hold commas, with "" standing for a quote.
+	 */
+	static Map<String, String> parsePairs(String text){
+		Map<String, String> args = new LinkedHashMap<String, String>();
+		int i = 0;
+		int n = text.length();
+		while (i < n){
+			while (i < n && (text.charAt(i) == ',' || text.charAt(i) == ' ')) ++i;
+			if (i >= n) break;
+			int eq = text.indexOf('=', i);
+			if (eq < 0) throw new IllegalArgumentException("Expected key=value at: " + text.substring(i));
+			String key = text.substring(i, eq).trim();
+			i = eq + 1;
+			StringBuilder value = new StringBuilder();
+			if (i < n && text.charAt(i) == '"'){
+				++i;
+				while (true){
+					if (i >= n) throw new IllegalArgumentException("Unterminated quote in " + key);
+					char c = text.charAt(i++);
+					if (c == '"'){
+						if (i < n && text.charAt(i) == '"'){
+							value.append('"');
+							++i;
+						}else{
+							break;
+						}//end if
+					}else{
+						value.append(c);
+					}//end if
+				}//end while
+			}else{
+				while (i < n && text.charAt(i) != ',') value.append(text.charAt(i++));
+			}//end if
+			args.put(key, value.toString().trim());
+		}//end while
+		return args;
+	}//end parsePairs
+
+	/**
+	 * Method to parse a flat JSON object whose values are strings, numbers,
+	 * booleans or null. Every value is kept as its text.
+	 */
+	static Map<String, String> parseJson(String text){
+		Map<String, String> args = new LinkedHashMap<String, String>();
+		int[] pos = { skip(text, 1) };
+		if (pos[0] < text.length() && text.charAt(pos[0]) == '}') return args;
+		while (true){
+			String key = readString(text, pos);
+			pos[0] = skip(text, pos[0]);
+			if (pos[0] >= text.length() || text.charAt(pos[0]) != ':') throw new IllegalArgumentException("Expected ':' after " + key);
+			pos[0] = skip(text, pos[0] + 1);
+			String value;
+			if (pos[0] < text.length() && text.charAt(pos[0]) == '"'){
+				value = readString(text, pos);
+			}else{
+				int start = pos[0];
+				while (pos[0] < text.length() && ",} \t".indexOf(text.charAt(pos[0])) < 0) ++pos[0];
+				value = text.substring(start, pos[0]);
+				if (value.isEmpty()) throw new IllegalArgumentException("Missing value for " + key);
+				if (value.equals("null")) value = null;
+			}//end if
+			if (value != null) args.put(key, value);
+			pos[0] = skip(text, pos[0]);
+			if (pos[0] >= text.length()) throw new IllegalArgumentException("Unterminated JSON object");
+			char c = text.charAt(pos[0]);
+			if (c == '}') return args;
+			if (c != ',') throw new IllegalArgumentException("Expected ',' or '}' after " + key);
+			pos[0] = skip(text, pos[0] + 1);
+		}//end while
+	}//end parseJson
+
+	private static int skip(String text, int i){
+		while (i < text.length() && Character.isWhitespace(text.charAt(i))) ++i;
+		return i;
+	}
+
+	private static String readString(String text, int[] pos){
+		int i = pos[0];
+		if (i >= text.length() || text.charAt(i) != '"') throw new IllegalArgumentException("Expected a string at " + i);
+		StringBuilder sb = new StringBuilder();
+		++i;
+		while (true){
+			if (i >= text.length()) throw new IllegalArgumentException("Unterminated string");
+			char c = text.charAt(i++);
+			if (c == '"') break;
+			if (c != '\\'){
+				sb.append(c);
+				continue;
+			}//end if
+			if (i >= text.length()) throw new IllegalArgumentException("Unterminated string");
+			char e = text.charAt(i++);
+			switch (e){
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (i + 4 > text.length()) throw new IllegalArgumentException("Bad unicode escape");
+					sb.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				default: sb.append(e);
+			}
+		}//end while
+		pos[0] = i;
+		return sb.toString();
+	}//end readString
+
+	/**
+	 * Method to format a successful command as a JSON result line.
+	 */
+	public static String ok(Command command, QueryResult result){
+		return rows(command, "\"ok\"", result);
+	}
+
+	/**
+	 * Method to format a failed command as a JSON result line. A lost
+	 * compare-and-set update is reported with status conflict and the
+	 * current row, so the client can retry on top of it.
+	 */
+	public static String failed(Command command, Exception e){
+		if (e instanceof ShopOperations.Conflict)
+			return rows(command, "\"conflict\",\"error\":" + quote(e.getMessage()), ((ShopOperations.Conflict) e).getCurrent());
+		return error(command.line, command.op, e.getMessage());
+	}
+
+	private static String rows(Command command, String status, QueryResult result){
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("{\"line\":").append(command.line).append(",\"op\":").append(quote(command.op)).append(",\"status\":").append(status).append(",\"columns\":[");
+		String[] columns = result.getColumns();
+		for (int i = 0; i < columns.length; ++i){
+			if (i > 0) sb.append(',');
+			sb.append(quote(columns[i]));
+		}//end for
+		sb.append("],\"rows\":[");
+		List<String[]> rows = result.getRows();
+		for (int r = 0; r < rows.size(); ++r){
+			if (r > 0) sb.append(',');
+			sb.append('[');
+			String[] row = rows.get(r);
+			for (int i = 0; i < row.length; ++i){
+				if (i > 0) sb.append(',');
+				sb.append(row[i] == null ? "null" : quote(row[i].trim()));
+			}//end for
+			sb.append(']');
+		}//end for
+		return sb.append("]}").toString();
+	}//end ok
+
+	/**
+	 * Method to format a failed command as a JSON result line.
+	 */
+	public static String error(int line, String op, String message){
+		return "{\"line\":" + line + ",\"op\":" + (op == null ? "null" : quote(op)) + ",\"status\":\"error\",\"error\":" + quote(message) + "}";
+	}
+
+	/**
+	 * Method to quote a string as a JSON string literal.
+	 */
+	public static String quote(String value){
+		if (value == null) return "null";
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+					else sb.append(c);
+			}
+		}//end for
+		return sb.append('"').toString();
+	}//end quote
+}//end ScriptRunner
@@ -0,0 +1,237 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class keeps the number of service requests per car make and model
+ * in memory so report 9 does not rescan Service_Request for every k. It is
+ * seeded with one GROUP BY query and then bumped whenever a request is
+ * opened from this process, or, while the change feed is listening, for
+ * every request any session commits. The seed query also returns the
+ * transactions it saw, so a change it already counted is skipped when its
+ * notification arrives afterwards. Changes that arrive while a seed is
+ * running are kept, and the ones its query did not see are applied again
+ * to the fresh counts.
+ *
+ * Counts are held in a set sorted by count, so the top k are the first k
+ * entries. An increment removes the entry, changes it and puts it back.
+ *
+ */
+
+public class ServiceCountIndex{
+	static final String SEED_QUERY = "SELECT C.make, C.model, COUNT(SR.rid) AS service, CAST(txid_current_snapshot() AS text) AS seen\nFROM Car C, Service_Request SR\nWHERE C.vin = SR.car_vin\nGROUP BY C.make, C.model;";
+	static final String CAR_QUERY = "SELECT C.make, C.model\nFROM Car C\nWHERE C.vin = ?;";
+
+	/**
+	 * One make and model with its service count.
+	 */
+	static class Entry implements Comparable<Entry>{
+		final String make;
+		final String model;
+		long count;
+
+		Entry(String make, String model, long count){
+			this.make = make;
+			this.model = model;
+			this.count = count;
+		}
+
+		public int compareTo(Entry other){
+			if (this.count != other.count) return this.count > other.count ? -1 : 1;
+			int c = this.make.compareTo(other.make);
+			return c != 0 ? c : this.model.compareTo(other.model);
+		}
+	}//end Entry
+
+	/**
+	 * A change applied while a seed was running.
+	 */
+	static class Pending{
+		final long txid;
+		final String make;
+		final String model;
+		final int delta;
+
+		Pending(long txid, String make, String model, int delta){
+			this.txid = txid;
+			this.make = make;
+			this.model = model;
+			this.delta = delta;
+		}
+	}//end Pending
+
+	private final Map<String, Entry> _entries = new HashMap<String, Entry>();
+	private final TreeSet<Entry> _ranking = new TreeSet<Entry>();
+	//the transactions the last seed counted, null when it found no rows
+	private ChangeFeed.Snapshot _seen = null;
+	private int _seeding = 0;
+	private final List<Pending> _pending = new ArrayList<Pending>();
+
+	private static String key(String make, String model){
+		return make + '\0' + model;
+	}
+
+	/**
+	 * Method to replace every count with a fresh GROUP BY over the database.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public void seed(MechanicShop esql) throws SQLException {
+		synchronized (this){
+			++this._seeding;
+		}
+		try{
+			List<List<String>> rows = esql.executeQueryAndReturnResult(SEED_QUERY);
+			Map<String, Entry> fresh = counts(rows);
+			synchronized (this){
+				this._entries.clear();
+				this._ranking.clear();
+				this._entries.putAll(fresh);
+				this._ranking.addAll(fresh.values());
+				this._seen = rows.isEmpty() ? null : new ChangeFeed.Snapshot(rows.get(0).get(3));
+				//changes delivered during the query went to the old counts
+				for (Pending change : this._pending)
+					if (this._seen == null || !this._seen.sees(change.txid)) add(change.make, change.model, change.delta);
+			}
+		}finally{
+			synchronized (this){
+				if (--this._seeding == 0) this._pending.clear();
+			}
+		}//end try
+	}//end seed
+
+	private static Map<String, Entry> load(MechanicShop esql) throws SQLException {
+		return counts(esql.executeQueryAndReturnResult(SEED_QUERY));
+	}
+
+	private static Map<String, Entry> counts(List<List<String>> rows){
+		Map<String, Entry> counts = new HashMap<String, Entry>();
+		for (List<String> row : rows)
+			counts.put(key(row.get(0), row.get(1)), new Entry(row.get(0), row.get(1), Long.parseLong(row.get(2))));
+		return counts;
+	}
+
+	/**
+	 * Method to count one more service for a make and model.
+	 *
+	 * @param make the car make
+	 * @param model the car model
+	 */
+	public void increment(String make, String model){
+		add(make, model, 1);
+	}
+
+	private synchronized void add(String make, String model, int delta){
+		String k = key(make, model);
+		Entry entry = this._entries.get(k);
+		if (entry == null){
+			entry = new Entry(make, model, 0);
+			this._entries.put(k, entry);
+		}else{
+			this._ranking.remove(entry);
+		}//end if
+		entry.count += delta;
+		if (entry.count > 0){
+			this._ranking.add(entry);
+		}else{
+			this._entries.remove(k);
+		}//end if
+	}//end add
+
+	/**
+	 * Method to count one more service for the car with the given VIN,
+	 * looking up its make and model.
+	 *
+	 * @param esql the connected shop
+	 * @param vin the serviced car
+	 * @throws java.sql.SQLException when the car lookup fails
+	 */
+	public void recordService(MechanicShop esql, String vin) throws SQLException {
+		recordService(esql, vin, 1);
+	}
+
+	private void recordService(MechanicShop esql, String vin, int delta) throws SQLException {
+		List<List<String>> car = esql.executeQueryAndReturnResult(CAR_QUERY, vin);
+		if (car.size() > 0) add(car.get(0).get(0), car.get(0).get(1), delta);
+	}
+
+	private void recordChange(MechanicShop esql, String vin, int delta, long txid) throws SQLException {
+		List<List<String>> car = esql.executeQueryAndReturnResult(CAR_QUERY, vin);
+		if (car.size() == 0) return;
+		synchronized (this){
+			//checked here, a seed may have swapped in during the lookup
+			if (this._seen != null && this._seen.sees(txid)) return;
+			if (this._seeding > 0) this._pending.add(new Pending(txid, car.get(0).get(0), car.get(0).get(1), delta));
+			add(car.get(0).get(0), car.get(0).get(1), delta);
+		}
+	}//end recordChange
+
+	/**
+	 * Method to apply a Service_Request change from the change feed. The
+	 * fields are rid, old car_vin and new car_vin. A change the last seed
+	 * already counted is skipped, and a change made while a seed runs is
+	 * kept for it.
+	 *
+	 * @param esql the connected shop
+	 * @param change the committed change
+	 * @throws java.sql.SQLException when the car lookup fails
+	 */
+	public void apply(MechanicShop esql, ChangeFeed.Change change) throws SQLException {
+		synchronized (this){
+			if (this._seen != null && this._seen.sees(change.txid)) return;
+		}
+		String before = change.field(1);
+		String after = change.field(2);
+		if (before != null && before.equals(after)) return;
+		if (before != null) recordChange(esql, before, -1, change.txid);
+		if (after != null) recordChange(esql, after, 1, change.txid);
+	}//end apply
+
+	/**
+	 * Method to return the k makes and models with the most services, in
+	 * the same column order as the original report query.
+	 *
+	 * @param k the number of rows wanted
+	 * @return rows of make, model and service count
+	 */
+	public synchronized List<String[]> top(int k){
+		List<String[]> rows = new ArrayList<String[]>(Math.min(k, this._ranking.size()));
+		Iterator<Entry> it = this._ranking.iterator();
+		while (rows.size() < k && it.hasNext()){
+			Entry entry = it.next();
+			rows.add(new String[] { entry.make, entry.model, String.valueOf(entry.count) });
+		}//end while
+		return rows;
+	}//end top
+
+	/**
+	 * Method to compare the in-memory counts with the database and list
+	 * every make and model whose count differs.
+	 *
+	 * @param esql the connected shop
+	 * @return one line per difference, empty when consistent
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<String> verify(MechanicShop esql) throws SQLException {
+		Map<String, Entry> actual = load(esql);
+		List<String> diffs = new ArrayList<String>();
+		synchronized (this){
+			for (Map.Entry<String, Entry> e : actual.entrySet()){
+				Entry mine = this._entries.get(e.getKey());
+				long have = mine == null ? 0 : mine.count;
+				if (have != e.getValue().count)
+					diffs.add(e.getValue().make + " " + e.getValue().model + ": index " + have + ", database " + e.getValue().count);
+			}//end for
+			for (Map.Entry<String, Entry> e : this._entries.entrySet()){
+				if (!actual.containsKey(e.getKey()) && e.getValue().count != 0)
+					diffs.add(e.getValue().make + " " + e.getValue().model + ": index " + e.getValue().count + ", database 0");
+			}//end for
+		}
+		return diffs;
+	}//end verify
+}//end ServiceCountIndex
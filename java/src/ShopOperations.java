@@ -0,0 +1,205 @@
+import java.sql.SQLException;
+
+/**
+ * This class holds the shop's write and report operations without any
+ * prompting, so they can be driven from the menu, from a script or from a
+ * remote session. Every operation validates its arguments with the same
+ * rules as the interactive screens, keeps the caches and the service
+ * counter in step, and returns the affected rows straight from RETURNING.
+ * The old and new values of every write go to the audit queue.
+ *
+ */
+
+public class ShopOperations{
+	static final String INSERT_CUSTOMER = "INSERT INTO Customer(fname, lname, phone, address) VALUES (?, ?, ?, ?)\nRETURNING *;";
+	static final String INSERT_MECHANIC = "INSERT INTO Mechanic(fname, lname, experience) VALUES (?, ?, ?)\nRETURNING *;";
+	static final String INSERT_CAR = "INSERT INTO Car(vin, make, model, year) VALUES (?, ?, ?, ?)\nRETURNING *;";
+	//the car and its owner in one statement, so a bad owner leaves no car behind
+	static final String INSERT_OWNED_CAR = "WITH C AS (INSERT INTO Car(vin, make, model, year) VALUES (?, ?, ?, ?)\nRETURNING *),\n"
+		+ "O AS (INSERT INTO Owns(customer_id, car_vin) SELECT ?, C.vin FROM C\nRETURNING ownership_id, customer_id, car_vin)\n"
+		+ "SELECT C.*, O.ownership_id AS owns_ownership_id, O.customer_id AS owns_customer_id, O.car_vin AS owns_car_vin\nFROM C, O;";
+	static final String INSERT_REQUEST = "INSERT INTO Service_Request (customer_id, car_vin, date, odometer, complain ) VALUES (?, ?, ?, ?, ?)\nRETURNING *;";
+	//rid, row_version (null to skip the check), date, odometer, complain; locks the request, then returns the new row
+	//with applied 1 and the old values, or the current row with applied 0 when the version no longer matches
+	static final String UPDATE_REQUEST = "WITH input AS (SELECT CAST(? AS integer) AS rid, CAST(? AS integer) AS version, CAST(? AS date) AS date, CAST(? AS integer) AS odometer, CAST(? AS text) AS complain),\n"
+		+ "prior AS (SELECT SR.rid, SR.customer_id, SR.car_vin, SR.date, SR.odometer, SR.complain, SR.row_version FROM Service_Request SR, input I\n"
+		+ "\tWHERE SR.rid = I.rid FOR UPDATE OF SR),\n"
+		+ "updated AS (UPDATE Service_Request SR SET date = I.date, odometer = I.odometer, complain = I.complain FROM input I, prior P\n"
+		+ "\tWHERE SR.rid = P.rid AND SR.date = P.date AND (I.version IS NULL OR P.row_version = I.version)\n"
+		+ "\tRETURNING SR.rid, SR.customer_id, SR.car_vin, SR.date, SR.odometer, SR.complain, SR.row_version)\n"
+		+ "SELECT 1 AS applied, U.*, P.date AS old_date, P.odometer AS old_odometer, P.complain AS old_complain, P.row_version AS old_row_version\n"
+		+ "FROM updated U, prior P\n"
+		+ "UNION ALL\n"
+		+ "SELECT 0, P.*, P.date, P.odometer, P.complain, P.row_version FROM prior P WHERE NOT EXISTS (SELECT 1 FROM updated);";
+	//checks the mechanic and request, locks the closed request being replaced, updates or inserts it and
+	//returns the old and new values, all in one statement; mid, rid, wid (null for the latest or a new one), bill, comment
+	static final String CLOSE_REQUEST = "WITH input AS (SELECT CAST(? AS integer) AS mid, CAST(? AS integer) AS rid, CAST(? AS integer) AS wid, CAST(? AS integer) AS bill, CAST(? AS text) AS comment),\n"
+		+ "mechanic AS (SELECT M.id FROM Mechanic M, input I WHERE M.id = I.mid),\n"
+		+ "request AS (SELECT SR.rid FROM Service_Request SR, input I WHERE SR.rid = I.rid),\n"
+		+ "prior AS (SELECT CR.wid, CR.date, CR.bill, CR.comment FROM Closed_Request CR, input I\n"
+		+ "\tWHERE CR.rid = I.rid AND CR.mid = I.mid AND (I.wid IS NULL OR CR.wid = I.wid)\n"
+		+ "\tORDER BY CR.wid DESC LIMIT 1 FOR UPDATE OF CR),\n"
+		+ "updated AS (UPDATE Closed_Request CR SET date = CURRENT_DATE, bill = I.bill, comment = I.comment FROM prior P, input I\n"
+		+ "\tWHERE CR.wid = P.wid AND CR.date = P.date RETURNING CR.wid, CR.rid, CR.mid, CR.date, CR.bill, CR.comment),\n"
+		+ "inserted AS (INSERT INTO Closed_Request (rid, mid, date, comment, bill)\n"
+		+ "\tSELECT R.rid, M.id, CURRENT_DATE, I.comment, I.bill FROM mechanic M, request R, input I\n"
+		+ "\tWHERE I.wid IS NULL AND NOT EXISTS (SELECT 1 FROM prior)\n"
+		+ "\tRETURNING wid, rid, mid, date, bill, comment),\n"
+		+ "fresh AS (SELECT * FROM updated UNION ALL SELECT * FROM inserted)\n"
+		+ "SELECT (SELECT COUNT(*) FROM mechanic) AS mechanic_found, (SELECT COUNT(*) FROM request) AS request_found,\n"
+		+ "\tP.wid AS old_wid, P.date AS old_date, P.bill AS old_bill, P.comment AS old_comment,\n"
+		+ "\tF.wid, F.rid, F.mid, F.date, F.bill, F.comment\n"
+		+ "FROM input LEFT JOIN prior P ON true LEFT JOIN fresh F ON true;";
+
+	public static QueryResult addCustomer(MechanicShop esql, String fname, String lname, String phone, String address) throws SQLException {
+		BatchInserter.checkLength("Fname", fname, 32);
+		BatchInserter.checkLength("Lname", lname, 32);
+		BatchInserter.checkLength("Phone Number", phone, 13);
+		BatchInserter.checkLength("Address", address, 256);
+		QueryResult row = esql.executeQueryAndCollect(INSERT_CUSTOMER, fname, lname, phone, address);
+		esql.invalidateCustomer(Integer.parseInt(row.first("id")));
+		esql.audit("insert", "Customer", row.first("id"), null, AuditQueue.json(row, null));
+		return row;
+	}
+
+	public static QueryResult addMechanic(MechanicShop esql, String fname, String lname, int experience) throws SQLException {
+		BatchInserter.checkLength("Fname", fname, 32);
+		BatchInserter.checkLength("Lname", lname, 32);
+		if (experience < 0 || experience >= 100)
+			throw new IllegalArgumentException("Experience must be between 0 and 99");
+		QueryResult row = esql.executeQueryAndCollect(INSERT_MECHANIC, fname, lname, experience);
+		esql.audit("insert", "Mechanic", row.first("id"), null, AuditQueue.json(row, null));
+		return row;
+	}
+
+	/**
+	 * Method to add a car and, when an owner is given, record that the
+	 * customer owns it in the same statement.
+	 *
+	 * @param owner the owning customer id, or null for none
+	 */
+	public static QueryResult addCar(MechanicShop esql, String vin, String make, String model, int year, Integer owner) throws SQLException {
+		BatchInserter.checkLength("Vin", vin, 16);
+		BatchInserter.checkLength("Make", make, 32);
+		BatchInserter.checkLength("Model", model, 32);
+		if (year < 1970 || year > 9999)
+			throw new IllegalArgumentException("Year is not vaild!");
+		if (owner == null){
+			QueryResult row = esql.executeQueryAndCollect(INSERT_CAR, vin, make, model, year);
+			esql.audit("insert", "Car", vin, null, AuditQueue.json(row, null));
+			return row;
+		}//end if
+		QueryResult row = esql.executeQueryAndCollect(INSERT_OWNED_CAR, vin, make, model, year, owner);
+		esql.audit("insert", "Car", vin, null, AuditQueue.json(row, null, "owns_ownership_id", "owns_customer_id", "owns_car_vin"));
+		esql.audit("insert", "Owns", row.first("owns_ownership_id"), null, AuditQueue.json(row, "owns_"));
+		return row;
+	}
+
+	public static QueryResult openRequest(MechanicShop esql, int customerId, String vin, java.sql.Date date, int odometer, String complain) throws SQLException {
+		if (odometer <= 0)
+			throw new IllegalArgumentException("Odometer must be greater than 0");
+		if (esql.getPartitions() != null) esql.getPartitions().ensureMonth("service_request", date);
+		QueryResult row = esql.executeQueryAndCollect(INSERT_REQUEST, customerId, vin, date, odometer, complain);
+		//a listening change feed counts it once committed
+		ChangeFeed feed = esql.getChangeFeed();
+		if (feed == null || !feed.isListening()) esql.getServiceCounts().recordService(esql, vin);
+		esql.audit("insert", "Service_Request", row.first("rid"), null, AuditQueue.json(row, null));
+		return row;
+	}
+
+	/**
+	 * Method to update a service request only if it still has the version
+	 * the caller read, in one statement.
+	 *
+	 * @param version the row_version the caller read, or null to update
+	 *                whatever is there
+	 * @return the updated row
+	 * @throws ShopOperations.Conflict when the row changed since, with the
+	 *         current row
+	 */
+	public static QueryResult updateRequest(MechanicShop esql, int rid, Integer version, java.sql.Date date, int odometer, String complain) throws SQLException {
+		if (odometer <= 0)
+			throw new IllegalArgumentException("Odometer must be greater than 0");
+		//a new date can move the request to another month's partition
+		if (esql.getPartitions() != null) esql.getPartitions().ensureMonth("service_request", date);
+		QueryResult row = esql.executeQueryAndCollect(UPDATE_REQUEST, rid, version, date, odometer, complain);
+		esql.invalidateRequest(rid);
+		if (row.size() == 0)
+			throw new IllegalArgumentException("Service request " + rid + " does not exist");
+		if (!"1".equals(row.first("applied")))
+			throw new Conflict("Service request " + rid + " was changed since version " + version
+				+ ", it is now at version " + row.first("row_version"), row);
+		esql.audit("update", "Service_Request", row.first("rid"), AuditQueue.json(row, "old_"), AuditQueue.json(row, null, "applied"));
+		return row;
+	}
+
+	/**
+	 * A compare-and-set update that lost to another writer. It carries the
+	 * current row so the caller can show it and retry on top of it.
+	 */
+	public static class Conflict extends SQLException{
+		private static final long serialVersionUID = 1L;
+		private final QueryResult _current;
+
+		Conflict(String message, QueryResult current){
+			super(message, "40001");
+			this._current = current;
+		}
+
+		public QueryResult getCurrent(){
+			return this._current;
+		}
+
+		public int getCurrentVersion(){
+			return Integer.parseInt(this._current.first("row_version"));
+		}
+	}//end Conflict
+
+	/**
+	 * Method to close a service request in one round trip. The closed
+	 * request of this mechanic for this request is updated, the given one
+	 * or else the latest; when there is none a new one is written. The
+	 * statement checks the mechanic and the request and locks the row it
+	 * replaces, so it is atomic on its own and inside a transaction.
+	 *
+	 * @param wid the closed request to update, or null for the latest or a
+	 *            new one
+	 * @return one row with the old values (old_wid, old_date, old_bill,
+	 *         old_comment; null for a new closed request) and the new ones
+	 */
+	public static QueryResult closeRequest(MechanicShop esql, int mid, int rid, Integer wid, int bill, String comment) throws SQLException {
+		if (bill <= 0)
+			throw new IllegalArgumentException("Bill must be greater than 0");
+		if (esql.getPartitions() != null) esql.getPartitions().ensureMonth("closed_request", new java.sql.Date(System.currentTimeMillis()));
+		QueryResult row = esql.executeQueryAndCollect(CLOSE_REQUEST, mid, rid, wid, bill, comment);
+		if ("0".equals(row.first("mechanic_found")))
+			throw new IllegalArgumentException("Mechanic " + mid + " does not exist");
+		if ("0".equals(row.first("request_found")))
+			throw new IllegalArgumentException("Service request " + rid + " does not exist");
+		if (row.first("wid") == null)
+			throw new IllegalArgumentException("Closed request " + wid + " is not one of mechanic " + mid + " for request " + rid);
+		String before = AuditQueue.json(row, "old_");
+		esql.audit(before == null ? "insert" : "update", "Closed_Request", row.first("wid"), before,
+			AuditQueue.json(row, null, "mechanic_found", "request_found"));
+		return row;
+	}
+
+	/**
+	 * Method to run one of the reports behind menu options 6 to 10.
+	 *
+	 * @param which the menu option number
+	 * @param k the number of rows for report 9
+	 */
+	public static QueryResult report(MechanicShop esql, int which, int k) throws SQLException {
+		switch (which){
+			case 6: return esql.executeQueryAndCollect(MechanicShop.BILL_LESS_THAN_100);
+			case 7: return esql.executeQueryAndCollect(MechanicShop.MORE_THAN_20_CARS);
+			case 8: return esql.executeQueryAndCollect(MechanicShop.BEFORE_1995_UNDER_50000);
+			case 9:
+				if (k <= 0) throw new IllegalArgumentException("Integer K most be greter than 0");
+				return new QueryResult(new String[] { "make", "model", "service" }, esql.getServiceCounts().top(k));
+			case 10: return esql.executeQueryAndCollect(MechanicShop.TOTAL_BILL_LEADERBOARD);
+			default: throw new IllegalArgumentException("No report " + which);
+		}
+	}
+}//end ShopOperations
@@ -0,0 +1,226 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves many counter terminals from one process. Each terminal
+ * opens a TCP connection and sends the same lines the script mode accepts,
+ * one operation per line, and gets one JSON result line back per command.
+ * Besides the operations a session understands "help" and "quit".
+ *
+ * Sessions share the shop's connection pool, lookup caches and service
+ * counter, so a session only holds a database connection while one of its
+ * commands runs. Every command runs in its own transaction.
+ *
+ * Sessions run on virtual threads when the JVM provides them and on a
+ * cached thread pool otherwise.
+ *
+ */
+
+public class ShopServer{
+	static final String BIND_ADDRESS = System.getProperty("mechanicshop.server.bind", "127.0.0.1");
+	static final int MAX_SESSIONS = Integer.getInteger("mechanicshop.server.maxSessions", 256);
+	static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("mechanicshop.server.idleTimeoutMillis", 1800000);
+
+	private final MechanicShop _esql;
+	private final int _port;
+	private final ExecutorService _sessions;
+	private ServerSocket _socket = null;
+	private volatile boolean _running = false;
+
+	private final AtomicInteger _open = new AtomicInteger();
+	private final AtomicLong _accepted = new AtomicLong();
+	private final AtomicLong _refused = new AtomicLong();
+	private final AtomicLong _commands = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+
+	public ShopServer(MechanicShop esql, int port){
+		this._esql = esql;
+		this._port = port;
+		this._sessions = newSessionExecutor();
+	}
+
+	/**
+	 * Method to create the executor sessions run on: one virtual thread per
+	 * session on Java 21 and later, looked up reflectively so the shop still
+	 * builds for older releases, else a cached pool of daemon threads.
+	 *
+	 * @return the executor
+	 */
+	static ExecutorService newSessionExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "shop-session");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}//end try
+	}
+
+	/**
+	 * Method to accept terminal sessions until stop() is called.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public void serve() throws IOException {
+		this._socket = new ServerSocket();
+		this._socket.setReuseAddress(true);
+		this._socket.bind(new InetSocketAddress(InetAddress.getByName(BIND_ADDRESS), this._port));
+		this._running = true;
+		System.out.println("Serving terminals on " + BIND_ADDRESS + ":" + this._socket.getLocalPort());
+		try{
+			while (this._running){
+				Socket client;
+				try{
+					client = this._socket.accept();
+				}catch (IOException e){
+					if (!this._running) break;
+					throw e;
+				}//end try
+				if (this._open.get() >= MAX_SESSIONS){
+					this._refused.incrementAndGet();
+					refuse(client);
+					continue;
+				}//end if
+				this._open.incrementAndGet();
+				this._accepted.incrementAndGet();
+				this._sessions.execute(() -> session(client));
+			}//end while
+		}finally{
+			stop();
+		}//end try
+	}//end serve
+
+	/**
+	 * Method to stop accepting sessions and wait briefly for running
+	 * commands to finish.
+	 */
+	public void stop(){
+		this._running = false;
+		try{
+			if (this._socket != null) this._socket.close();
+		}catch (IOException e){
+			// ignored.
+		}
+		this._sessions.shutdownNow();
+		try{
+			this._sessions.awaitTermination(10, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}//end stop
+
+	private static void refuse(Socket client){
+		try{
+			Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+			out.write(ScriptRunner.error(0, null, "Too many sessions, try again later") + "\n");
+			out.flush();
+			client.close();
+		}catch (IOException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to serve one terminal: read a command, run it, answer with its
+	 * JSON result, until the terminal quits or disconnects.
+	 */
+	private void session(Socket client){
+		try{
+			client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+			client.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			int lineNo = 0;
+			while ((line = in.readLine()) != null){
+				++lineNo;
+				String text = line.trim();
+				if (text.equalsIgnoreCase("quit")) break;
+				if (text.equalsIgnoreCase("help")){
+					out.write("{\"operations\":" + ScriptRunner.quote(ScriptRunner.OPERATIONS) + "}\n");
+				}else{
+					String result = handle(lineNo, line);
+					if (result == null) continue;
+					out.write(result);
+					out.write('\n');
+				}//end if
+				out.flush();
+			}//end while
+		}catch (IOException e){
+			// the terminal went away, nothing to answer.
+		}finally{
+			this._open.decrementAndGet();
+			try{
+				client.close();
+			}catch (IOException e){
+				// ignored.
+			}
+		}//end try
+	}//end session
+
+	/**
+	 * Method to run one command line in its own transaction.
+	 *
+	 * @return the JSON result, or null for a blank or comment line
+	 */
+	String handle(int lineNo, String line){
+		ScriptRunner.Command command;
+		try{
+			command = ScriptRunner.parse(lineNo, line);
+		}catch (IllegalArgumentException e){
+			this._failed.incrementAndGet();
+			return ScriptRunner.error(lineNo, null, e.getMessage());
+		}//end try
+		if (command == null) return null;
+		this._commands.incrementAndGet();
+		try{
+			this._esql.beginTransaction();
+			try{
+				QueryResult result = ScriptRunner.execute(this._esql, command);
+				try{
+					this._esql.commitTransaction();
+				}catch (SQLException e){
+					//the counter saw services that never committed
+					this._esql.getServiceCounts().seed(this._esql);
+					this._esql.clearCaches();
+					throw e;
+				}//end try
+				return ScriptRunner.ok(command, result);
+			}catch (SQLException | RuntimeException e){
+				//a failed commit has already ended the transaction
+				if (this._esql.inTransaction()) this._esql.rollbackTransaction();
+				throw e;
+			}//end try
+		}catch (SQLException | RuntimeException e){
+			this._failed.incrementAndGet();
+			return ScriptRunner.failed(command, e);
+		}//end try
+	}//end handle
+
+	/**
+	 * Method to summarize the session counters in one line.
+	 *
+	 * @return the summary
+	 */
+	public String stats(){
+		return String.format("server sessions=%d accepted=%d refused=%d commands=%d failed=%d",
+			this._open.get(), this._accepted.get(), this._refused.get(), this._commands.get(), this._failed.get());
+	}
+}//end ShopServer
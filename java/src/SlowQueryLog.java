@@ -0,0 +1,201 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class logs the statements that take longer than a threshold, with
+ * their SQL template, bind values, row count, time and an EXPLAIN plan.
+ *
+ * The query helpers only hand the statement to a bounded ring buffer; a
+ * background thread captures the plan on a pooled connection and appends
+ * the entry to the log file. When the buffer is full the entry is dropped
+ * and counted, so a burst of slow statements never stalls the operator.
+ * The plan of a template is captured at most once per PLAN_INTERVAL_MILLIS.
+ *
+ * Settings: mechanicshop.slowQuery.millis (threshold, default 200, below 0
+ * turns the log off), mechanicshop.slowQuery.file (default
+ * slow-queries.log) and mechanicshop.slowQuery.buffer (default 1024).
+ *
+ */
+
+public class SlowQueryLog{
+	static final long THRESHOLD_MILLIS = Long.getLong("mechanicshop.slowQuery.millis", 200L);
+	static final String FILE = System.getProperty("mechanicshop.slowQuery.file", "slow-queries.log");
+	static final int BUFFER = Integer.getInteger("mechanicshop.slowQuery.buffer", 1024);
+	static final long PLAN_INTERVAL_MILLIS = Long.getLong("mechanicshop.slowQuery.planIntervalMillis", 60000L);
+	static final int MAX_BIND_LENGTH = 100;
+
+	/**
+	 * One slow statement waiting to be written.
+	 */
+	static class Entry{
+		final long at = System.currentTimeMillis();
+		final String sql;
+		final Object[] params;
+		final long nanos;
+		final long rows;
+		final String thread = Thread.currentThread().getName();
+
+		Entry(String sql, Object[] params, long nanos, long rows){
+			this.sql = sql;
+			this.params = params;
+			this.nanos = nanos;
+			this.rows = rows;
+		}
+	}//end Entry
+
+	//marks the end of the log for the writer thread
+	private static final Entry STOP = new Entry("", new Object[0], 0, 0);
+
+	private final MechanicShop _esql;
+	private final long _thresholdNanos;
+	private final ArrayBlockingQueue<Entry> _buffer = new ArrayBlockingQueue<Entry>(BUFFER);
+	private final Map<String, Long> _lastPlan = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong _logged = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private final Thread _writer;
+	private volatile boolean _closed = false;
+
+	public SlowQueryLog(MechanicShop esql, long thresholdMillis){
+		this._esql = esql;
+		this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this._writer = new Thread(this::drain, "slow-query-log");
+		this._writer.setDaemon(true);
+		this._writer.start();
+	}
+
+	/**
+	 * Method to queue a statement for the log when it was slower than the
+	 * threshold. It never blocks.
+	 *
+	 * @param sql the SQL template
+	 * @param params the bind values
+	 * @param nanos how long the statement took
+	 * @param rows rows returned or affected, negative when it failed
+	 */
+	public void check(String sql, Object[] params, long nanos, long rows){
+		if (nanos < this._thresholdNanos || this._closed) return;
+		if (this._buffer.offer(new Entry(sql, params == null ? new Object[0] : params.clone(), nanos, rows)))
+			this._logged.incrementAndGet();
+		else
+			this._dropped.incrementAndGet();
+	}
+
+	public long getLoggedCount(){
+		return this._logged.get();
+	}
+
+	public long getDroppedCount(){
+		return this._dropped.get();
+	}
+
+	/**
+	 * Method to stop the log after writing what is already queued, waiting
+	 * at most a few seconds.
+	 */
+	public void close(){
+		this._closed = true;
+		while (!this._buffer.offer(STOP)) this._buffer.poll();
+		try{
+			this._writer.join(5000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain(){
+		Writer out = null;
+		try{
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FILE, true), StandardCharsets.UTF_8));
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+			while (true){
+				Entry entry = this._buffer.take();
+				if (entry == STOP) break;
+				out.write(format(entry, format.format(new Date(entry.at)), plan(entry)));
+				//flush once the burst is written
+				if (this._buffer.isEmpty()) out.flush();
+			}//end while
+		}catch (IOException e){
+			System.err.println("Slow query log stopped: " + e.getMessage());
+		}catch (InterruptedException e){
+			// stopping.
+		}finally{
+			if (out != null){
+				try{
+					out.close();
+				}catch (IOException e){
+					// ignored.
+				}
+			}//end if
+		}//end try
+	}//end drain
+
+	/**
+	 * Method to capture the plan of an entry with EXPLAIN, binding the same
+	 * values. Plain EXPLAIN does not run the statement.
+	 */
+	String plan(Entry entry){
+		String head = entry.sql.trim().toUpperCase();
+		if (!(head.startsWith("SELECT") || head.startsWith("WITH") || head.startsWith("INSERT")
+				|| head.startsWith("UPDATE") || head.startsWith("DELETE")))
+			return "(not explained)";
+		Long last = this._lastPlan.get(entry.sql);
+		if (last != null && entry.at - last < PLAN_INTERVAL_MILLIS) return "(explained recently)";
+		this._lastPlan.put(entry.sql, entry.at);
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = this._esql.getPool().borrow();
+			PreparedStatement stmt = pc.getConnection().prepareStatement("EXPLAIN " + entry.sql);
+			try{
+				MechanicShop.bind(stmt, entry.params);
+				ResultSet rs = stmt.executeQuery();
+				StringBuilder plan = new StringBuilder();
+				while (rs.next())
+					plan.append("  ").append(rs.getString(1)).append('\n');
+				rs.close();
+				return plan.toString();
+			}finally{
+				stmt.close();
+			}//end try
+		}catch (SQLException e){
+			return "(EXPLAIN failed: " + e.getMessage() + ")";
+		}finally{
+			if (pc != null) this._esql.getPool().release(pc);
+		}//end try
+	}//end plan
+
+	static String format(Entry entry, String time, String plan){
+		StringBuilder sb = new StringBuilder(512);
+		sb.append(time).append(" slow query ").append(String.format("%.1f ms", entry.nanos / 1e6));
+		sb.append(entry.rows < 0 ? ", failed" : ", " + entry.rows + " rows").append(", thread ").append(entry.thread).append('\n');
+		sb.append("template: ").append(Metrics.normalize(entry.sql)).append('\n');
+		sb.append("binds: [");
+		for (int i = 0; i < entry.params.length; ++i){
+			if (i > 0) sb.append(", ");
+			Object value = entry.params[i];
+			if (value == null){
+				sb.append("null");
+			}else{
+				String text = value.toString();
+				if (text.length() > MAX_BIND_LENGTH) text = text.substring(0, MAX_BIND_LENGTH) + "...";
+				sb.append(value instanceof Number ? text : "'" + text + "'");
+			}//end if
+		}//end for
+		sb.append("]\nplan:\n").append(plan);
+		if (!plan.endsWith("\n")) sb.append('\n');
+		return sb.append('\n').toString();
+	}//end format
+}//end SlowQueryLog
@@ -0,0 +1,119 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps a size-bounded, least-recently-used cache of prepared
+ * statements for one physical connection. Statements are keyed by their SQL
+ * template, so the same lookup issued with different bind values reuses one
+ * PreparedStatement and Postgres parses and plans it only once.
+ *
+ */
+
+public class StatementCache{
+	//number of executions after which the driver switches to a named server-side statement
+	static final int SERVER_PREPARE_THRESHOLD = 2;
+
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public StatementCache(Connection connection, int capacity){
+		this._connection = connection;
+		this._capacity = capacity;
+		//access order turns the map into an LRU list; eviction happens in prepare()
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+	/**
+	 * Method to fetch a prepared statement for an SQL template, preparing it
+	 * on a miss. The returned statement belongs to the cache and must not be
+	 * closed by the caller.
+	 *
+	 * @param sql the SQL template with '?' placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return prepare(sql, null);
+	}
+
+	/**
+	 * Method to fetch a prepared statement that reports generated keys. The
+	 * same SQL prepared with and without key columns is cached twice.
+	 *
+	 * @param sql the SQL template with '?' placeholders
+	 * @param keyColumns the generated columns to return, or null for none
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql, String[] keyColumns) throws SQLException {
+		String key = keyColumns == null ? sql : sql + '\0' + String.join(",", keyColumns);
+		PreparedStatement stmt = this._statements.get(key);
+		if (stmt != null){
+			++this._hits;
+			return stmt;
+		}//end if
+		++this._misses;
+		stmt = keyColumns == null ? this._connection.prepareStatement(sql) : this._connection.prepareStatement(sql, keyColumns);
+		try{
+			stmt.unwrap(PGStatement.class).setPrepareThreshold(SERVER_PREPARE_THRESHOLD);
+		}catch (SQLException e){
+			// not a pgjdbc statement, keep the driver default.
+		}//end try
+		this._statements.put(key, stmt);
+		evict();
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Method to close the least recently used statements until the cache is
+	 * back within its capacity.
+	 */
+	private void evict(){
+		Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet().iterator();
+		while (this._statements.size() > this._capacity && it.hasNext()){
+			PreparedStatement eldest = it.next().getValue();
+			it.remove();
+			closeQuietly(eldest);
+		}//end while
+	}//end evict
+
+	public synchronized int size(){
+		return this._statements.size();
+	}
+
+	public synchronized long getHits(){
+		return this._hits;
+	}
+
+	public synchronized long getMisses(){
+		return this._misses;
+	}
+
+	/**
+	 * Method to close every cached statement. The connection itself is left
+	 * open.
+	 */
+	public synchronized void close(){
+		for (PreparedStatement stmt : this._statements.values()){
+			closeQuietly(stmt);
+		}//end for
+		this._statements.clear();
+	}//end close
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}//end StatementCache
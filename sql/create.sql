@@ -4,6 +4,7 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Bill CASCADE;--OK
 
 
 -------------
@@ -87,6 +88,68 @@ CREATE TABLE Closed_Request
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
 );
 
+---------------
+---AGGREGATES---
+---------------
+-- Running total of closed bills per customer, kept current by a trigger on
+-- Closed_Request and read by report 10 through the index on total.
+CREATE TABLE Customer_Bill
+(
+	customer_id INTEGER NOT NULL,
+	total BIGINT NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+CREATE INDEX customer_bill_total_idx ON Customer_Bill (total DESC, customer_id);
+
+CREATE OR REPLACE FUNCTION customer_bill_apply(p_rid INTEGER, p_delta BIGINT) RETURNS VOID AS $$
+	INSERT INTO Customer_Bill (customer_id, total)
+	SELECT SR.customer_id, p_delta FROM Service_Request SR WHERE SR.rid = p_rid
+	ON CONFLICT (customer_id) DO UPDATE SET total = Customer_Bill.total + EXCLUDED.total;
+$$ LANGUAGE SQL;
+
+CREATE OR REPLACE FUNCTION customer_bill_maintain() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM customer_bill_apply(OLD.rid, -OLD.bill);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM customer_bill_apply(NEW.rid, NEW.bill);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recomputes every total, used after bulk loads that bypass the trigger.
+CREATE OR REPLACE FUNCTION customer_bill_rebuild() RETURNS VOID AS $$
+	DELETE FROM Customer_Bill;
+	INSERT INTO Customer_Bill (customer_id, total)
+	SELECT SR.customer_id, SUM(CR.bill)
+	FROM Closed_Request CR, Service_Request SR
+	WHERE CR.rid = SR.rid
+	GROUP BY SR.customer_id;
+$$ LANGUAGE SQL;
+
+---------------
+---SEQUENCES---
+---------------
+-- New rows take their keys from these sequences; the loaded data keeps its
+-- own ids and the sequences are moved past them at the end of this file.
+CREATE SEQUENCE customer_id_seq OWNED BY Customer.id;
+ALTER TABLE Customer ALTER COLUMN id SET DEFAULT nextval('customer_id_seq');
+
+CREATE SEQUENCE mechanic_id_seq OWNED BY Mechanic.id;
+ALTER TABLE Mechanic ALTER COLUMN id SET DEFAULT nextval('mechanic_id_seq');
+
+CREATE SEQUENCE owns_ownership_id_seq OWNED BY Owns.ownership_id;
+ALTER TABLE Owns ALTER COLUMN ownership_id SET DEFAULT nextval('owns_ownership_id_seq');
+
+CREATE SEQUENCE service_request_rid_seq OWNED BY Service_Request.rid;
+ALTER TABLE Service_Request ALTER COLUMN rid SET DEFAULT nextval('service_request_rid_seq');
+
+CREATE SEQUENCE closed_request_wid_seq OWNED BY Closed_Request.wid;
+ALTER TABLE Closed_Request ALTER COLUMN wid SET DEFAULT nextval('closed_request_wid_seq');
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -147,4 +210,23 @@ COPY Closed_Request (
 	bill
 )
 FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+SELECT setval('customer_id_seq', COALESCE((SELECT MAX(id) FROM Customer), 0) + 1, false);
+SELECT setval('mechanic_id_seq', COALESCE((SELECT MAX(id) FROM Mechanic), 0) + 1, false);
+SELECT setval('owns_ownership_id_seq', COALESCE((SELECT MAX(ownership_id) FROM Owns), 0) + 1, false);
+SELECT setval('service_request_rid_seq', COALESCE((SELECT MAX(rid) FROM Service_Request), 0) + 1, false);
+SELECT setval('closed_request_wid_seq', COALESCE((SELECT MAX(wid) FROM Closed_Request), 0) + 1, false);
+
+-- The trigger is created after the load so COPY does not fire it per row.
+SELECT customer_bill_rebuild();
+CREATE TRIGGER closed_request_bill
+AFTER INSERT OR UPDATE OF rid, bill OR DELETE ON Closed_Request
+FOR EACH ROW EXECUTE PROCEDURE customer_bill_maintain();
+
+-- The tables can also be reloaded from the client without placing the
+-- files on the database host:
+--   java -cp lib/*:bin/ MechanicShop <dbname> <port> <user> load ../data
+--
+-- Later schema changes live in sql/migrations and are applied with:
+--   java -cp lib/*:bin/ MechanicShop <dbname> <port> <user> migrate
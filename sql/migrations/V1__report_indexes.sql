@@ -0,0 +1,28 @@
+-- Indexes for the lookups in options 4 and 5 and the reports in 6 to 10.
+-- Create.sql only defines primary keys, so every foreign key join and the
+-- last name / year filters fell back to sequential scans.
+
+-- option 4: customer search by last name
+CREATE INDEX IF NOT EXISTS customer_lname_idx ON Customer (lname, id);
+
+-- option 4 cars of a customer, option 7 cars per customer
+CREATE INDEX IF NOT EXISTS owns_customer_idx ON Owns (customer_id, car_vin);
+CREATE INDEX IF NOT EXISTS owns_car_idx ON Owns (car_vin);
+
+-- option 4 requests of a customer's car, options 6 and 8 joins
+CREATE INDEX IF NOT EXISTS service_request_customer_idx ON Service_Request (customer_id, car_vin);
+CREATE INDEX IF NOT EXISTS service_request_car_idx ON Service_Request (car_vin, odometer);
+
+-- option 5 closed requests of a mechanic, option 6 bill filter and join
+CREATE INDEX IF NOT EXISTS closed_request_mid_idx ON Closed_Request (mid, rid);
+CREATE INDEX IF NOT EXISTS closed_request_rid_idx ON Closed_Request (rid);
+CREATE INDEX IF NOT EXISTS closed_request_bill_idx ON Closed_Request (bill, rid);
+
+-- option 8 cars built before 1995
+CREATE INDEX IF NOT EXISTS car_year_idx ON Car (year, vin);
+
+ANALYZE Customer;
+ANALYZE Owns;
+ANALYZE Car;
+ANALYZE Service_Request;
+ANALYZE Closed_Request;
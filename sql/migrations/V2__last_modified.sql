@@ -0,0 +1,39 @@
+-- Change timestamps for the incremental refresh of the analytics snapshot.
+-- Inserts are stamped by the column default and updates by the trigger, so
+-- a refresh only reads the rows changed since the one before.
+
+ALTER TABLE Customer ADD COLUMN IF NOT EXISTS last_modified TIMESTAMPTZ NOT NULL DEFAULT now();
+ALTER TABLE Car ADD COLUMN IF NOT EXISTS last_modified TIMESTAMPTZ NOT NULL DEFAULT now();
+ALTER TABLE Owns ADD COLUMN IF NOT EXISTS last_modified TIMESTAMPTZ NOT NULL DEFAULT now();
+ALTER TABLE Service_Request ADD COLUMN IF NOT EXISTS last_modified TIMESTAMPTZ NOT NULL DEFAULT now();
+ALTER TABLE Closed_Request ADD COLUMN IF NOT EXISTS last_modified TIMESTAMPTZ NOT NULL DEFAULT now();
+
+CREATE OR REPLACE FUNCTION touch_last_modified() RETURNS TRIGGER AS $$
+BEGIN
+	NEW.last_modified := now();
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS customer_touch ON Customer;
+CREATE TRIGGER customer_touch BEFORE UPDATE ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+DROP TRIGGER IF EXISTS car_touch ON Car;
+CREATE TRIGGER car_touch BEFORE UPDATE ON Car
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+DROP TRIGGER IF EXISTS owns_touch ON Owns;
+CREATE TRIGGER owns_touch BEFORE UPDATE ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+DROP TRIGGER IF EXISTS service_request_touch ON Service_Request;
+CREATE TRIGGER service_request_touch BEFORE UPDATE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+DROP TRIGGER IF EXISTS closed_request_touch ON Closed_Request;
+CREATE TRIGGER closed_request_touch BEFORE UPDATE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+
+-- the refresh reads each table by last_modified > watermark
+CREATE INDEX IF NOT EXISTS customer_modified_idx ON Customer (last_modified);
+CREATE INDEX IF NOT EXISTS car_modified_idx ON Car (last_modified);
+CREATE INDEX IF NOT EXISTS owns_modified_idx ON Owns (last_modified);
+CREATE INDEX IF NOT EXISTS service_request_modified_idx ON Service_Request (last_modified);
+CREATE INDEX IF NOT EXISTS closed_request_modified_idx ON Closed_Request (last_modified);
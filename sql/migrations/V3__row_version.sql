@@ -0,0 +1,16 @@
+-- Row versions for compare-and-set updates of service requests. Every
+-- update bumps the version through the trigger, so an update that names
+-- the version it read only applies when nobody changed the row since.
+
+ALTER TABLE Service_Request ADD COLUMN IF NOT EXISTS row_version INTEGER NOT NULL DEFAULT 1;
+
+CREATE OR REPLACE FUNCTION bump_row_version() RETURNS TRIGGER AS $$
+BEGIN
+	NEW.row_version := OLD.row_version + 1;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS service_request_version ON Service_Request;
+CREATE TRIGGER service_request_version BEFORE UPDATE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE bump_row_version();
@@ -0,0 +1,17 @@
+-- Old and new values of every write made through the shop operations,
+-- written behind the operations in batches by the audit queue.
+
+CREATE TABLE IF NOT EXISTS Audit_Log
+(
+	id BIGSERIAL NOT NULL,
+	at TIMESTAMPTZ NOT NULL,
+	operation TEXT NOT NULL,
+	table_name TEXT NOT NULL,
+	row_key TEXT NOT NULL,
+	old_values JSONB,
+	new_values JSONB,
+	PRIMARY KEY (id)
+);
+
+-- history of one row
+CREATE INDEX IF NOT EXISTS audit_log_row_idx ON Audit_Log (table_name, row_key, at);
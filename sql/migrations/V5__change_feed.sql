@@ -0,0 +1,67 @@
+-- Change feed. Every committed row change on the tables below is published
+-- on the shop_changes channel, so a running shop can drop its cached copies
+-- and move its in-memory aggregates without polling. The payload is tab
+-- separated: table, operation, transaction id, then the row's key and the
+-- columns the listeners need, old value before new where both matter.
+-- NOTIFY is delivered at commit, so rolled back writes are never seen.
+
+CREATE OR REPLACE FUNCTION publish_change() RETURNS TRIGGER AS $$
+DECLARE
+	fields TEXT[];
+BEGIN
+	IF TG_TABLE_NAME = 'customer' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.id::text, OLD.lname::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.id::text, NULL, NEW.lname::text];
+		ELSE
+			fields := ARRAY[NEW.id::text, OLD.lname::text, NEW.lname::text];
+		END IF;
+	ELSIF TG_TABLE_NAME = 'car' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.vin::text];
+		ELSE
+			fields := ARRAY[NEW.vin::text];
+		END IF;
+	ELSIF TG_TABLE_NAME = 'owns' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.ownership_id::text, OLD.customer_id::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.ownership_id::text, NULL, NEW.customer_id::text];
+		ELSE
+			fields := ARRAY[NEW.ownership_id::text, OLD.customer_id::text, NEW.customer_id::text];
+		END IF;
+	ELSIF TG_TABLE_NAME = 'service_request' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.rid::text, OLD.car_vin::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.rid::text, NULL, NEW.car_vin::text];
+		ELSE
+			fields := ARRAY[NEW.rid::text, OLD.car_vin::text, NEW.car_vin::text];
+		END IF;
+	ELSIF TG_OP = 'DELETE' THEN
+		fields := ARRAY[OLD.wid::text, OLD.rid::text];
+	ELSE
+		fields := ARRAY[NEW.wid::text, NEW.rid::text];
+	END IF;
+	PERFORM pg_notify('shop_changes', TG_TABLE_NAME || E'\t' || TG_OP || E'\t' || txid_current()
+		|| E'\t' || array_to_string(fields, E'\t', ''));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS customer_publish ON Customer;
+CREATE TRIGGER customer_publish AFTER INSERT OR UPDATE OR DELETE ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+DROP TRIGGER IF EXISTS car_publish ON Car;
+CREATE TRIGGER car_publish AFTER INSERT OR UPDATE OR DELETE ON Car
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+DROP TRIGGER IF EXISTS owns_publish ON Owns;
+CREATE TRIGGER owns_publish AFTER INSERT OR UPDATE OR DELETE ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+DROP TRIGGER IF EXISTS service_request_publish ON Service_Request;
+CREATE TRIGGER service_request_publish AFTER INSERT OR UPDATE OR DELETE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+DROP TRIGGER IF EXISTS closed_request_publish ON Closed_Request;
+CREATE TRIGGER closed_request_publish AFTER INSERT OR UPDATE OR DELETE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
@@ -0,0 +1,201 @@
+-- Range partitioning of Service_Request and Closed_Request by date, one
+-- partition per month, so vacuum, index size and the reports that only
+-- look at recent months stop growing with the history. Needs PostgreSQL 13
+-- or later for the BEFORE UPDATE triggers on the partitioned tables.
+--
+-- The partition key has to be part of every unique constraint, so the
+-- primary keys become (rid, date) and (wid, date); rid and wid still come
+-- from their sequences. The foreign key from Closed_Request.rid cannot
+-- reference rid alone any more and is dropped; CLOSE_REQUEST only inserts
+-- for a request it found.
+--
+-- A row whose month has no partition yet lands in the DEFAULT partition.
+-- create_month_partition() moves that month's rows out when it creates
+-- the month, and the shop creates the coming months when it starts.
+
+-- a trigger cloned onto a partition sees the partition's name, so the
+-- change feed strips the month to publish the table's own
+CREATE OR REPLACE FUNCTION publish_change() RETURNS TRIGGER AS $$
+DECLARE
+	tbl TEXT := regexp_replace(TG_TABLE_NAME, '_(default|[0-9]{4}_[0-9]{2})$', '');
+	fields TEXT[];
+BEGIN
+	IF tbl = 'customer' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.id::text, OLD.lname::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.id::text, NULL, NEW.lname::text];
+		ELSE
+			fields := ARRAY[NEW.id::text, OLD.lname::text, NEW.lname::text];
+		END IF;
+	ELSIF tbl = 'car' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.vin::text];
+		ELSE
+			fields := ARRAY[NEW.vin::text];
+		END IF;
+	ELSIF tbl = 'owns' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.ownership_id::text, OLD.customer_id::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.ownership_id::text, NULL, NEW.customer_id::text];
+		ELSE
+			fields := ARRAY[NEW.ownership_id::text, OLD.customer_id::text, NEW.customer_id::text];
+		END IF;
+	ELSIF tbl = 'service_request' THEN
+		IF TG_OP = 'DELETE' THEN
+			fields := ARRAY[OLD.rid::text, OLD.car_vin::text, NULL];
+		ELSIF TG_OP = 'INSERT' THEN
+			fields := ARRAY[NEW.rid::text, NULL, NEW.car_vin::text];
+		ELSE
+			fields := ARRAY[NEW.rid::text, OLD.car_vin::text, NEW.car_vin::text];
+		END IF;
+	ELSIF TG_OP = 'DELETE' THEN
+		fields := ARRAY[OLD.wid::text, OLD.rid::text];
+	ELSE
+		fields := ARRAY[NEW.wid::text, NEW.rid::text];
+	END IF;
+	PERFORM pg_notify('shop_changes', tbl || E'\t' || TG_OP || E'\t' || txid_current()
+		|| E'\t' || array_to_string(fields, E'\t', ''));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- partitions are named <table>_YYYY_MM
+CREATE OR REPLACE FUNCTION create_month_partition(p_parent TEXT, p_month DATE) RETURNS TEXT AS $$
+DECLARE
+	parent TEXT := lower(p_parent);
+	month_start DATE := CAST(date_trunc('month', p_month) AS date);
+	month_end DATE := CAST(date_trunc('month', p_month) + interval '1 month' AS date);
+	part TEXT := lower(p_parent) || to_char(p_month, '_YYYY_MM');
+	fallback TEXT := lower(p_parent) || '_default';
+BEGIN
+	IF to_regclass(part) IS NOT NULL THEN
+		RETURN part;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part, parent);
+	-- the rows only move, so the triggers of the default partition stay quiet
+	EXECUTE format('ALTER TABLE %I DISABLE TRIGGER USER', fallback);
+	EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+		fallback, month_start, month_end, part);
+	EXECUTE format('ALTER TABLE %I ENABLE TRIGGER USER', fallback);
+	EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, part, month_start, month_end);
+	RETURN part;
+END;
+$$ LANGUAGE plpgsql;
+
+-- every missing month from one date to another, returns how many were created
+CREATE OR REPLACE FUNCTION create_month_partitions(p_parent TEXT, p_from DATE, p_to DATE) RETURNS INTEGER AS $$
+DECLARE
+	month_start DATE := CAST(date_trunc('month', p_from) AS date);
+	created INTEGER := 0;
+BEGIN
+	WHILE month_start <= p_to LOOP
+		IF to_regclass(lower(p_parent) || to_char(month_start, '_YYYY_MM')) IS NULL THEN
+			PERFORM create_month_partition(p_parent, month_start);
+			created := created + 1;
+		END IF;
+		month_start := CAST(month_start + interval '1 month' AS date);
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a partition for every month found in the default partition
+CREATE OR REPLACE FUNCTION split_default_partition(p_parent TEXT) RETURNS INTEGER AS $$
+DECLARE
+	months DATE[];
+	month_start DATE;
+BEGIN
+	-- read first: the default partition cannot be altered while a query on it is open
+	EXECUTE format('SELECT array_agg(DISTINCT CAST(date_trunc(''month'', date) AS date)) FROM %I', lower(p_parent) || '_default')
+		INTO months;
+	IF months IS NULL THEN
+		RETURN 0;
+	END IF;
+	FOREACH month_start IN ARRAY months LOOP
+		PERFORM create_month_partition(p_parent, month_start);
+	END LOOP;
+	RETURN array_length(months, 1);
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER TABLE Closed_Request RENAME TO closed_request_heap;
+ALTER TABLE Service_Request RENAME TO service_request_heap;
+ALTER SEQUENCE service_request_rid_seq OWNED BY NONE;
+ALTER SEQUENCE closed_request_wid_seq OWNED BY NONE;
+
+CREATE TABLE Service_Request
+(
+	rid INTEGER NOT NULL DEFAULT nextval('service_request_rid_seq'),
+	customer_id INTEGER NOT NULL,
+	car_vin VARCHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	odometer _PINTEGER NOT NULL,
+	complain TEXT,
+	last_modified TIMESTAMPTZ NOT NULL DEFAULT now(),
+	row_version INTEGER NOT NULL DEFAULT 1
+) PARTITION BY RANGE (date);
+CREATE TABLE service_request_default PARTITION OF Service_Request DEFAULT;
+
+CREATE TABLE Closed_Request
+(
+	wid INTEGER NOT NULL DEFAULT nextval('closed_request_wid_seq'),
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	comment TEXT,
+	bill _PINTEGER NOT NULL,
+	last_modified TIMESTAMPTZ NOT NULL DEFAULT now()
+) PARTITION BY RANGE (date);
+CREATE TABLE closed_request_default PARTITION OF Closed_Request DEFAULT;
+
+-- every month of the history and the next three, so the copy goes straight to its partition
+SELECT create_month_partitions('Service_Request', COALESCE(MIN(date), CURRENT_DATE),
+	CAST(GREATEST(MAX(date), CURRENT_DATE) + interval '3 months' AS date)) FROM service_request_heap;
+SELECT create_month_partitions('Closed_Request', COALESCE(MIN(date), CURRENT_DATE),
+	CAST(GREATEST(MAX(date), CURRENT_DATE) + interval '3 months' AS date)) FROM closed_request_heap;
+
+-- no triggers exist yet, so Customer_Bill and the change feed do not see the copy
+INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain, last_modified, row_version)
+SELECT rid, customer_id, car_vin, date, odometer, complain, last_modified, row_version FROM service_request_heap;
+INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill, last_modified)
+SELECT wid, rid, mid, date, comment, bill, last_modified FROM closed_request_heap;
+
+-- takes the old triggers and index names with them
+DROP TABLE closed_request_heap;
+DROP TABLE service_request_heap;
+ALTER SEQUENCE service_request_rid_seq OWNED BY Service_Request.rid;
+ALTER SEQUENCE closed_request_wid_seq OWNED BY Closed_Request.wid;
+
+ALTER TABLE Service_Request ADD PRIMARY KEY (rid, date);
+ALTER TABLE Service_Request ADD FOREIGN KEY (customer_id) REFERENCES Customer(id);
+ALTER TABLE Service_Request ADD FOREIGN KEY (car_vin) REFERENCES Car(vin);
+ALTER TABLE Closed_Request ADD PRIMARY KEY (wid, date);
+ALTER TABLE Closed_Request ADD FOREIGN KEY (mid) REFERENCES Mechanic(id);
+
+-- the indexes of V1 and V2, created on every partition
+CREATE INDEX service_request_customer_idx ON Service_Request (customer_id, car_vin);
+CREATE INDEX service_request_car_idx ON Service_Request (car_vin, odometer);
+CREATE INDEX service_request_modified_idx ON Service_Request (last_modified);
+CREATE INDEX closed_request_mid_idx ON Closed_Request (mid, rid);
+CREATE INDEX closed_request_rid_idx ON Closed_Request (rid);
+CREATE INDEX closed_request_bill_idx ON Closed_Request (bill, rid);
+CREATE INDEX closed_request_modified_idx ON Closed_Request (last_modified);
+
+-- the triggers of create.sql, V2, V3 and V5, cloned onto every partition
+CREATE TRIGGER closed_request_bill AFTER INSERT OR UPDATE OF rid, bill OR DELETE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE customer_bill_maintain();
+CREATE TRIGGER service_request_touch BEFORE UPDATE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+CREATE TRIGGER closed_request_touch BEFORE UPDATE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE touch_last_modified();
+CREATE TRIGGER service_request_version BEFORE UPDATE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE bump_row_version();
+CREATE TRIGGER service_request_publish AFTER INSERT OR UPDATE OR DELETE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+CREATE TRIGGER closed_request_publish AFTER INSERT OR UPDATE OR DELETE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE publish_change();
+
+ANALYZE Service_Request;
+ANALYZE Closed_Request;
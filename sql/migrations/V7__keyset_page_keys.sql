@@ -0,0 +1,12 @@
+-- Unique keys for the option 4 and option 5 listings. A car can be owned
+-- more than once and a request closed more than once, so the pages
+-- continue after ownership_id and wid instead of car_vin and rid.
+
+-- option 4 cars of a customer, a page at a time
+CREATE INDEX IF NOT EXISTS owns_customer_page_idx ON Owns (customer_id, ownership_id);
+
+-- option 5 closed requests of a mechanic, a page at a time
+CREATE INDEX IF NOT EXISTS closed_request_mid_page_idx ON Closed_Request (mid, wid);
+
+ANALYZE Owns;
+ANALYZE Closed_Request;